@@ -0,0 +1,97 @@
+package org.owasp.validator.html.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+
+/**
+ * Inputs and policies shared by the benchmarks.
+ */
+final class Corpus {
+
+    /**
+     * Large enough for every page in the corpus, so that no policy rejects an
+     * input on size alone.
+     */
+    static final String MAX_INPUT_SIZE = String.valueOf(10 * 1024 * 1024);
+
+    static final String TINY = "John O Smith";
+
+    static final String COMMENT = "<p>Great post, <b>thanks</b>! See <a href=\"http://www.owasp.org/\" "
+            + "onclick=\"steal()\">this</a> and <i style=\"color: red; behavior: url(x.htc)\">that</i>.</p>"
+            + "<script>alert(document.cookie)</script><img src=\"javascript:alert(1)\">"
+            + "<ul><li>one</li><li>two &amp; three</li></ul>";
+
+    private Corpus() {
+    }
+
+    /**
+     * @param name <code>tiny</code>, <code>comment</code> or the file name of
+     *             a page from the corpus.
+     */
+    static String input(String name) throws IOException {
+        if ("tiny".equals(name)) {
+            return TINY;
+        }
+        if ("comment".equals(name)) {
+            return COMMENT;
+        }
+        return read("/s/" + name);
+    }
+
+    /**
+     * @param shape <code>kept</code>, <code>filtered</code>,
+     *              <code>promoted</code> or <code>removed</code>; see
+     *              {@link WideDocumentBenchmark}.
+     * @param width How many siblings the document has.
+     */
+    static String wide(String shape, int width) {
+        StringBuilder sb = new StringBuilder(width * 24);
+        if ("filtered".equals(shape)) {
+            sb.append("<foo>");
+        }
+        for (int i = 0; i < width; i++) {
+            if ("promoted".equals(shape)) {
+                sb.append("<foo><span>").append(i).append("</span></foo>");
+            } else if ("removed".equals(shape) && i % 2 == 1) {
+                sb.append("<script>").append(i).append("</script>");
+            } else {
+                sb.append("<span>").append(i).append("</span>");
+            }
+        }
+        if ("filtered".equals(shape)) {
+            sb.append("</foo>");
+        }
+        return sb.toString();
+    }
+
+    static Policy policy(String name) throws PolicyException {
+        InputStream in = Corpus.class.getResourceAsStream("/" + name);
+        if (in == null) {
+            throw new IllegalArgumentException("No bundled policy " + name);
+        }
+        return Policy.getInstance(in).cloneWithDirective("maxInputSize", MAX_INPUT_SIZE);
+    }
+
+    private static String read(String resource) throws IOException {
+        InputStream in = Corpus.class.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IllegalArgumentException("No corpus page " + resource);
+        }
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[8192];
+            for (int n; (n = reader.read(buffer)) != -1;) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package org.owasp.validator.html.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.Sanitizer;
+
+/**
+ * The calibration behind <code>AntiSamy.AUTO</code>: both engines, and the
+ * choice between them, over inputs from a few characters to a few megabytes.
+ * <p/>
+ * <code>EngineCostModel</code>'s fixed cost and cost per character for an
+ * engine are the line through its times for every input, against the input
+ * lengths. <code>AUTO</code> should come out at about the lower of
+ * <code>DOM</code> and <code>SAX</code> for every input.
+ * <p/>
+ * <code>input</code> is <code>tiny</code> or <code>comment</code> as in
+ * {@link ScanBenchmark}, or <code>wide</code> followed by a width, for a
+ * flat document of that many siblings, every other one a
+ * <code>&lt;script&gt;</code>, as in {@link WideDocumentBenchmark}.
+ * Run with <code>-prof gc</code> to see the memory the engines take as well.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EngineSelectionBenchmark {
+
+    @Param({"DOM", "SAX", "AUTO"})
+    public String engine;
+
+    @Param({"antisamy.xml", "antisamy-myspace.xml"})
+    public String policyFile;
+
+    @Param({"tiny", "comment", "wide100", "wide1000", "wide10000", "wide100000"})
+    public String input;
+
+    private Sanitizer sanitizer;
+    private String html;
+
+    @Setup
+    public void setUp() throws Exception {
+        Policy policy = Corpus.policy(policyFile).cloneWithDirective(Policy.PLAIN_TEXT_FAST_PATH, "false");
+        int scanType = "DOM".equals(engine) ? AntiSamy.DOM : "SAX".equals(engine) ? AntiSamy.SAX : AntiSamy.AUTO;
+        sanitizer = Sanitizer.getInstance(policy, scanType);
+        html = input.startsWith("wide")
+                ? Corpus.wide("removed", Integer.parseInt(input.substring("wide".length())))
+                : Corpus.input(input);
+    }
+
+    @Benchmark
+    public String scan() throws Exception {
+        return sanitizer.sanitize(html).getCleanHTML();
+    }
+}
@@ -0,0 +1,81 @@
+package org.owasp.validator.html.benchmark;
+
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.xerces.util.XMLAttributesImpl;
+import org.apache.xerces.xni.QName;
+import org.apache.xerces.xni.XMLString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.validator.html.InternalPolicy;
+import org.owasp.validator.html.scan.MagicSAXFilter;
+
+/**
+ * The SAX engine's filter on its own: prebuilt XNI events for
+ * <code>width</code> sibling elements are pushed through a
+ * <code>MagicSAXFilter</code> that has nothing downstream, so neither parsing
+ * nor serializing is measured. Run with <code>-prof gc</code> and read
+ * <code>gc.alloc.rate.norm</code>, the bytes allocated per operation.
+ * <p/>
+ * <code>shape</code> is <code>kept</code> (<code>&lt;p align&gt;</code>s that
+ * pass validation with their attribute), <code>stripped</code>
+ * (<code>&lt;p&gt;</code>s that lose an attribute the policy does not know),
+ * <code>filtered</code> (unknown tags, each with an error message) or
+ * <code>removed</code> (<code>&lt;script&gt;</code>s).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SaxFilterBenchmark {
+
+    @Param({"1000"})
+    public int width;
+
+    @Param({"kept", "stripped", "filtered", "removed"})
+    public String shape;
+
+    private InternalPolicy policy;
+    private MagicSAXFilter filter;
+    private QName element;
+    private XMLAttributesImpl attributes;
+    private XMLString text;
+
+    @Setup
+    public void setUp() throws Exception {
+        policy = (InternalPolicy) Corpus.policy("antisamy.xml");
+        filter = new MagicSAXFilter(ResourceBundle.getBundle("AntiSamy", Locale.US));
+
+        String name = "filtered".equals(shape) ? "foo" : "removed".equals(shape) ? "script" : "p";
+        String attribute = "stripped".equals(shape) ? "onclick" : "align";
+        element = new QName(null, name, name, null);
+        attributes = new XMLAttributesImpl();
+        attributes.addAttribute(new QName(null, attribute, attribute, null), "CDATA", "center");
+        char[] chars = "Great post, thanks!".toCharArray();
+        text = new XMLString(chars, 0, chars.length);
+    }
+
+    @Benchmark
+    public int filter() {
+        filter.reset(policy);
+        for (int i = 0; i < width; i++) {
+            filter.startElement(element, attributes, null);
+            filter.characters(text, null);
+            filter.endElement(element, null);
+        }
+        return filter.getErrorMessages().size();
+    }
+}
@@ -0,0 +1,110 @@
+package org.owasp.validator.html.benchmark;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.ResourceBundle;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import javax.xml.transform.sax.SAXSource;
+
+import org.apache.xerces.xni.parser.XMLDocumentFilter;
+import org.cyberneko.html.parsers.SAXParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.validator.html.InternalPolicy;
+import org.owasp.validator.html.scan.MagicSAXFilter;
+import org.xml.sax.InputSource;
+
+/**
+ * The two ways of getting the SAX engine's filtered events to the
+ * serializer: through an identity <code>Transformer</code>, with its output
+ * properties set before every scan, or by making the serializer the parser's
+ * own content and lexical handler, as <code>AntiSamySAXScanner</code> does.
+ * Parser, filter and policy are the same for both.
+ * <p/>
+ * <code>input</code> is as in {@link ScanBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+@SuppressWarnings("deprecation")
+public class SaxPipelineBenchmark {
+
+    private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
+
+    @Param({"comment", "slashdot.org.htm", "cnn.com"})
+    public String input;
+
+    private InternalPolicy policy;
+    private String html;
+    private MagicSAXFilter filter;
+    private SAXParser parser;
+    private Transformer transformer;
+
+    @Setup
+    public void setUp() throws Exception {
+        policy = (InternalPolicy) Corpus.policy("antisamy.xml");
+        html = Corpus.input(input);
+        filter = new MagicSAXFilter(ResourceBundle.getBundle("AntiSamy", Locale.US));
+
+        parser = new SAXParser();
+        parser.setFeature("http://xml.org/sax/features/namespaces", false);
+        parser.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
+        parser.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment", true);
+        parser.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections", true);
+        parser.setFeature("http://apache.org/xml/features/scanner/notify-char-refs", true);
+        parser.setFeature("http://apache.org/xml/features/scanner/notify-builtin-refs", true);
+        parser.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+        parser.setProperty("http://cyberneko.org/html/properties/filters", new XMLDocumentFilter[] {filter});
+
+        transformer = TransformerFactory.newInstance().newTransformer();
+    }
+
+    @Benchmark
+    public String transformer() throws Exception {
+        StringWriter out = new StringWriter();
+        filter.reset(policy);
+        transformer.setOutputProperty(OutputKeys.INDENT, "no");
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer.setOutputProperty(OutputKeys.METHOD, "html");
+        transformer.transform(new SAXSource(parser, new InputSource(new StringReader(html))),
+                new SAXResult(serializer(out)));
+        return out.toString();
+    }
+
+    @Benchmark
+    public String direct() throws Exception {
+        StringWriter out = new StringWriter();
+        filter.reset(policy);
+        org.apache.xml.serialize.HTMLSerializer serializer = serializer(out);
+        parser.setContentHandler(serializer);
+        parser.setProperty(LEXICAL_HANDLER, serializer);
+        parser.parse(new InputSource(new StringReader(html)));
+        return out.toString();
+    }
+
+    private static org.apache.xml.serialize.HTMLSerializer serializer(StringWriter out) {
+        org.apache.xml.serialize.OutputFormat format = new org.apache.xml.serialize.OutputFormat();
+        format.setOmitXMLDeclaration(true);
+        format.setOmitDocumentType(true);
+        format.setPreserveEmptyAttributes(true);
+        return new org.apache.xml.serialize.HTMLSerializer(out, format);
+    }
+}
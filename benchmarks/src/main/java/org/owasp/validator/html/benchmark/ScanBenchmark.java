@@ -0,0 +1,73 @@
+package org.owasp.validator.html.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.AntiSamyExt;
+import org.owasp.validator.html.Policy;
+
+/**
+ * One scan per invocation, for every combination of engine, bundled policy
+ * and input class.
+ * <p/>
+ * <code>engine</code> is <code>DOM</code> or <code>SAX</code> for
+ * <code>AntiSamy</code>, or <code>EXT</code>/<code>EXT_ATTR</code> for
+ * <code>AntiSamyExt</code> without/with the attribute context re-scan.
+ * <code>input</code> is <code>tiny</code> (a form field), <code>comment</code>
+ * (a short user comment with some attacks in it) or a page from
+ * <code>src/test/resources/s</code>.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScanBenchmark {
+
+    @Param({"DOM", "SAX", "EXT", "EXT_ATTR"})
+    public String engine;
+
+    @Param({"antisamy.xml", "antisamy-ebay.xml", "antisamy-tinymce.xml", "antisamy-slashdot.xml",
+            "antisamy-myspace.xml", "antisamy-anythinggoes.xml", "antixss_attr.xml"})
+    public String policyFile;
+
+    @Param({"tiny", "comment", "slashdot.org.htm", "cnn.com", "fark.com", "google.com.html",
+            "microsoft.com", "deadspin.com"})
+    public String input;
+
+    private Policy policy;
+    private String html;
+    private AntiSamy antiSamy;
+    private AntiSamyExt antiSamyExt;
+
+    @Setup
+    public void setUp() throws Exception {
+        policy = Corpus.policy(policyFile);
+        html = Corpus.input(input);
+        antiSamy = new AntiSamy();
+        antiSamyExt = new AntiSamyExt();
+    }
+
+    @Benchmark
+    public String scan() throws Exception {
+        if ("DOM".equals(engine)) {
+            return antiSamy.scan(html, policy, AntiSamy.DOM).getCleanHTML();
+        }
+        if ("SAX".equals(engine)) {
+            return antiSamy.scan(html, policy, AntiSamy.SAX).getCleanHTML();
+        }
+        return antiSamyExt.scan(html, policy, "EXT_ATTR".equals(engine)).getCleanHTML();
+    }
+}
@@ -0,0 +1,58 @@
+package org.owasp.validator.html.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.Policy;
+
+/**
+ * DOM scans of generated flat documents with <code>width</code> siblings,
+ * where the cost of walking a sibling list shows.
+ * <p/>
+ * <code>shape</code> is <code>kept</code> (<code>&lt;span&gt;</code>s that
+ * all pass validation), <code>filtered</code> (the same spans inside an
+ * unknown tag, so all of them get promoted at once), <code>promoted</code>
+ * (siblings that are unknown tags, each promoting its own child) or
+ * <code>removed</code> (every other sibling is a <code>&lt;script&gt;</code>).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WideDocumentBenchmark {
+
+    @Param({"1000", "10000"})
+    public int width;
+
+    @Param({"kept", "filtered", "promoted", "removed"})
+    public String shape;
+
+    private Policy policy;
+    private String html;
+    private AntiSamy antiSamy;
+
+    @Setup
+    public void setUp() throws Exception {
+        policy = Corpus.policy("antisamy.xml");
+        html = Corpus.wide(shape, width);
+        antiSamy = new AntiSamy();
+    }
+
+    @Benchmark
+    public String scan() throws Exception {
+        return antiSamy.scan(html, policy, AntiSamy.DOM).getCleanHTML();
+    }
+}
@@ -35,6 +35,7 @@ import java.util.*;
 import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanTimeoutException;
 import org.owasp.validator.html.util.ErrorMessageUtil;
 import org.owasp.validator.html.util.HTMLEntityEncoder;
 import org.w3c.css.sac.CSSException;
@@ -111,6 +112,12 @@ public class CssHandler implements DocumentHandler {
 	 */
 	private boolean selectorOpen = false;
 
+	/**
+	 * When the scan has to be finished by (in milliseconds), or 0 for never.
+	 */
+	private long deadline = 0;
+	private long maxScanTime = 0;
+
 	/**
 	 * Constructs a handler for stylesheets using the given policy and queue for
 	 * imported stylesheets.
@@ -147,6 +154,25 @@ public class CssHandler implements DocumentHandler {
 		this.isInline = (tagName != null);
 	}
 
+	/**
+	 * Makes the handler abort once the given deadline has passed.
+	 *
+	 * @param deadline
+	 *            the time to stop at, in milliseconds, or 0 for never
+	 * @param maxScanTime
+	 *            the budget the deadline was derived from, for reporting
+	 */
+	public void setDeadline(long deadline, long maxScanTime) {
+		this.deadline = deadline;
+		this.maxScanTime = maxScanTime;
+	}
+
+	private void checkDeadline() throws CSSException {
+		if (deadline != 0 && System.currentTimeMillis() > deadline) {
+			throw new CSSException(new ScanTimeoutException(maxScanTime));
+		}
+	}
+
 	/**
 	 * Returns the cleaned stylesheet.
 	 * 
@@ -372,6 +398,8 @@ public class CssHandler implements DocumentHandler {
 	 */
 	public void startSelector(SelectorList selectors) throws CSSException {
 
+		checkDeadline();
+
 		// keep track of number of valid selectors from this rule
 		int selectorCount = 0;
 
@@ -473,6 +501,8 @@ public class CssHandler implements DocumentHandler {
 	 */
 	public void property(String name, LexicalUnit value, boolean important)
 			throws CSSException {
+		checkDeadline();
+
 		// only bother validating and building if we are either inline or within
 		// a selector tag
 
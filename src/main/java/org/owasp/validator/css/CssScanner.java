@@ -40,6 +40,8 @@ import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanTimeoutException;
+import org.w3c.css.sac.CSSException;
 import org.w3c.css.sac.InputSource;
 
 /**
@@ -75,6 +77,12 @@ public class CssScanner {
     protected final ResourceBundle messages;
     private static final Pattern p = Pattern.compile(CDATA, Pattern.DOTALL);
 
+    /**
+     * When scanning has to be finished by (in milliseconds), or 0 for never.
+     */
+    protected long deadline = 0;
+    protected long maxScanTime = 0;
+
     /**
      * Constructs a scanner based on the given policy.
      * 
@@ -86,6 +94,27 @@ public class CssScanner {
     	this.messages = messages;
     }
 
+    /**
+     * Makes every following scan abort with a <code>ScanTimeoutException</code>
+     * once the given deadline has passed. The deadline is checked before
+     * parsing and at every rule and property.
+     *
+     * @param deadline
+     *                the time to stop at, in milliseconds, or 0 for never
+     * @param maxScanTime
+     *                the budget the deadline was derived from, for reporting
+     */
+    public void setDeadline(long deadline, long maxScanTime) {
+        this.deadline = deadline;
+        this.maxScanTime = maxScanTime;
+    }
+
+    protected void checkDeadline() throws ScanTimeoutException {
+        if (deadline != 0 && System.currentTimeMillis() > deadline) {
+            throw new ScanTimeoutException(maxScanTime);
+        }
+    }
+
     /**
      * Scans the contents of a full stylesheet (ex. a file based stylesheet
      * or the complete stylesheet contents as declared within &lt;style&gt;
@@ -125,6 +154,8 @@ public class CssScanner {
 	LinkedList stylesheets = new LinkedList();
 
 	CssHandler handler = new CssHandler(policy, stylesheets, errorMessages, messages);
+	handler.setDeadline(deadline, maxScanTime);
+	checkDeadline();
 
 	// parse the stylesheet
 	parser.setDocumentHandler(handler);
@@ -145,6 +176,12 @@ public class CssScanner {
 	 */
 	} catch (ParseException pe) {
 		throw new ScanException(pe);
+	} catch (CSSException ce) {
+		ScanTimeoutException timeout = ScanTimeoutException.find(ce);
+		if (timeout != null) {
+			throw timeout;
+		}
+		throw ce;
 	}
 
 	parseImportedStylesheets(stylesheets, handler, errorMessages, sizeLimit);
@@ -191,6 +228,8 @@ public class CssScanner {
 
 	CssHandler handler = new CssHandler(policy, stylesheets, errorMessages,
 		tagName, messages);
+	handler.setDeadline(deadline, maxScanTime);
+	checkDeadline();
 
 	parser.setDocumentHandler(handler);
 
@@ -202,6 +241,12 @@ public class CssScanner {
 	    parser.parseStyleDeclaration(taintedCss);
 	} catch (IOException ioe) {
 	    throw new ScanException(ioe);
+	} catch (CSSException ce) {
+	    ScanTimeoutException timeout = ScanTimeoutException.find(ce);
+	    if (timeout != null) {
+		throw timeout;
+	    }
+	    throw ce;
 	}
 
 	parseImportedStylesheets(stylesheets, handler, errorMessages, sizeLimit);
@@ -209,6 +254,7 @@ public class CssScanner {
 	return new CleanResults(startOfScan, handler.getCleanStylesheet(), null, errorMessages);
     }
     
+
     /**
 	 * Parses through a <code>LinkedList</code> of imported stylesheet
 	 * URIs, this method parses through those stylesheets and validates them
@@ -24,10 +24,11 @@
 
 package org.owasp.validator.html;
 
-import org.owasp.validator.html.scan.AntiSamyDOMScanner;
-import org.owasp.validator.html.scan.AntiSamySAXScanner;
-
 import java.io.File;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * 
@@ -44,8 +45,16 @@ public class AntiSamy {
 
 	public static int DOM = 0;
 	public static int SAX = 1;
+	/**
+	 * Scans with the SAX engine, except inputs of a few characters, which the
+	 * cost model expects the DOM engine to do faster. Results may come from
+	 * either engine, so only <code>scanFragment</code> is sure to give a DOM
+	 * fragment.
+	 */
+	public static int AUTO = 2;
 
 	private Policy policy = null;
+	private ScanCache cache = null;
 
 	public AntiSamy() {
 	}
@@ -54,6 +63,19 @@ public class AntiSamy {
 		this.policy = policy;
 	}
 
+	/**
+	 * Puts a result cache in front of the <code>scan()</code> methods, or
+	 * removes it when <code>null</code> is passed. A cache may be shared by
+	 * any number of <code>AntiSamy</code> instances and policies.
+	 */
+	public void setCache(ScanCache cache) {
+		this.cache = cache;
+	}
+
+	public ScanCache getCache() {
+		return cache;
+	}
+
 	/**
 	 * The meat and potatoes. The <code>scan()</code> family of methods are the
 	 * only methods the outside world should be calling to invoke AntiSamy.
@@ -88,22 +110,143 @@ public class AntiSamy {
 
 	/**
 	 * This method wraps <code>scan()</code> using the Policy object passed in.
+	 * It scans with the DOM engine; pass {@link #AUTO} to have the engine
+	 * picked per input.
 	 */
 	public CleanResults scan(String taintedHTML, Policy policy) throws ScanException, PolicyException {
-		return new AntiSamyDOMScanner(policy).scan(taintedHTML);
+		return this.scan(taintedHTML, policy, DOM);
 	}
 
+	/**
+	 * Scans with the shared <code>Sanitizer</code> of the given policy and
+	 * engine, so repeated calls do not pay for scanner construction. If a
+	 * cache is set, repeated inputs are answered from it.
+	 */
 	public CleanResults scan(String taintedHTML, Policy policy, int scanType) throws ScanException, PolicyException {
 
-		if (scanType == DOM) {
-			return new AntiSamyDOMScanner(policy).scan(taintedHTML);
-		} else {
-			return new AntiSamySAXScanner(policy).scan(taintedHTML);
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+		if (cache != null) {
+			return cache.scan(taintedHTML, policy, scanType);
+		}
+		return Sanitizer.getInstance(policy, scanType).sanitize(taintedHTML);
+	}
+
+	/**
+	 * Scans within the given time budget instead of the policy's
+	 * <code>maxScanTime</code>. When the budget runs out, the scan either
+	 * throws a <code>ScanTimeoutException</code> or returns the degraded
+	 * output chosen by the policy's <code>onScanTimeout</code> directive.
+	 *
+	 * @param maxScanTime The budget in milliseconds, or 0 for none.
+	 */
+	public CleanResults scan(String taintedHTML, Policy policy, int scanType, long maxScanTime) throws ScanException, PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+		if (cache != null) {
+			return cache.scan(taintedHTML, policy, scanType, maxScanTime);
+		}
+		return Sanitizer.getInstance(policy, scanType).sanitize(taintedHTML, maxScanTime);
+	}
+
+	/**
+	 * Scans with the DOM engine for the validated fragment alone. Nothing is
+	 * serialized, so the returned results have no clean HTML, and the
+	 * fragment's <code>Document</code> belongs to the caller.
+	 */
+	public CleanResults scanFragment(String taintedHTML, Policy policy) throws ScanException, PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+		return Sanitizer.getInstance(policy, DOM).sanitizeFragment(taintedHTML);
+	}
+
+	/**
+	 * Scans a batch of inputs with the DOM engine. Parser, serializer and
+	 * buffer setup is paid once for the whole batch rather than per input.
+	 *
+	 * @param taintedHTML
+	 *            Untrusted HTML strings which may contain malicious code.
+	 * @return One <code>CleanResults</code> per input, in input order.
+	 */
+	public List<CleanResults> scanAll(List<String> taintedHTML, Policy policy) throws ScanException, PolicyException {
+		return this.scanAll(taintedHTML, policy, DOM);
+	}
+
+	public List<CleanResults> scanAll(List<String> taintedHTML, Policy policy, int scanType) throws ScanException, PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+		return Sanitizer.getInstance(policy, scanType).sanitizeAll(taintedHTML);
+	}
+
+	/**
+	 * Streams untrusted HTML from <code>in</code> to <code>out</code> with the
+	 * SAX engine, without holding either side in memory. Neither stream is
+	 * closed, and the returned results carry no clean HTML of their own.
+	 */
+	public CleanResults scan(Reader in, Writer out, Policy policy) throws ScanException, PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+		return Sanitizer.getInstance(policy, SAX).sanitize(in, out);
+	}
+
+	/**
+	 * Opens a session that sanitizes untrusted HTML fed to it in chunks into
+	 * <code>out</code> with the SAX engine, as the chunks arrive.
+	 *
+	 * @throws ScanException When the policy's <code>maxSessions</code>
+	 *         sessions are already open.
+	 * @see SanitizerSession
+	 */
+	public SanitizerSession open(Writer out, Policy policy) throws ScanException, PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
+		}
+		return Sanitizer.getInstance(policy, SAX).open(out);
+	}
+
+	/**
+	 * Queues a DOM scan on the shared {@link AsyncSanitizer} pool instead of
+	 * scanning on the calling thread.
+	 *
+	 * @throws java.util.concurrent.RejectedExecutionException When the pool's
+	 *         queue is full.
+	 */
+	public Future<CleanResults> scanAsync(String taintedHTML, Policy policy) throws PolicyException {
+		return this.scanAsync(taintedHTML, policy, DOM);
+	}
+
+	public Future<CleanResults> scanAsync(String taintedHTML, Policy policy, int scanType) throws PolicyException {
+		return this.scanAsync(taintedHTML, policy, scanType, null);
+	}
+
+	/**
+	 * Queues a scan on the shared {@link AsyncSanitizer} pool and tells
+	 * <code>listener</code> how it ends, so the caller need not block on the
+	 * returned future.
+	 */
+	public Future<CleanResults> scanAsync(String taintedHTML, Policy policy, int scanType, ScanListener listener)
+			throws PolicyException {
+
+		if (policy == null) {
+			throw new PolicyException("No policy loaded");
 		}
+		return AsyncSanitizer.getDefault().scan(taintedHTML, policy, scanType, listener);
 	}
 
 	/**
 	 * This method wraps <code>scan()</code> using the Policy object passed in.
+	 * It scans with the DOM engine; pass {@link #AUTO} to have the engine
+	 * picked per input.
 	 */
 	public CleanResults scan(String taintedHTML, String filename) throws ScanException, PolicyException {
 
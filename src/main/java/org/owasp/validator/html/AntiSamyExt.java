@@ -1,16 +1,30 @@
 package org.owasp.validator.html;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.owasp.validator.html.scan.AntisamyDOMScannerExt;
+import org.owasp.validator.html.util.ThreadUtil;
 
 /**
  * Created by chuyifan on 2018/9/21.
  */
 public class AntiSamyExt extends AntiSamy {
+
+    /**
+     * Below this many non-empty values a parallel map scan is done on the
+     * calling thread anyway.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 64;
+
     public CleanResults scan(String taintedHTML, Policy policy) throws ScanException, PolicyException {
         return new AntisamyDOMScannerExt(policy).scan(taintedHTML);
     }
@@ -22,32 +36,126 @@ public class AntiSamyExt extends AntiSamy {
 
     public MultiCleanResults scan(Map<String, String[]> taintedHTML, Policy policy)
             throws ScanException, PolicyException {
-        Iterator<Map.Entry<String, String[]>> iterator = taintedHTML.entrySet().iterator();
+        return scan(taintedHTML, policy, null, Integer.MAX_VALUE);
+    }
+
+    public MultiCleanResults scan(Map<String, String[]> taintedHTML, Policy policy, Executor executor)
+            throws ScanException, PolicyException {
+        return scan(taintedHTML, policy, executor, DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Scans every value of every parameter. When an executor is given and
+     * there are at least <code>parallelThreshold</code> non-empty values, the
+     * values are split into chunks that are scanned concurrently on that
+     * executor. The results are merged in the map's iteration order, so the
+     * outcome is the same as for a sequential scan.
+     *
+     * @param taintedHTML       The request parameters to scan.
+     * @param policy            The policy to scan against.
+     * @param executor          The executor to scan on, or null to scan on the calling thread.
+     * @param parallelThreshold The minimum number of non-empty values to go parallel for.
+     */
+    public MultiCleanResults scan(Map<String, String[]> taintedHTML, Policy policy, Executor executor,
+            int parallelThreshold) throws ScanException, PolicyException {
+        List<String> values = new ArrayList<String>();
+        for (String[] entryValues : taintedHTML.values()) {
+            if (entryValues != null) {
+                for (String value : entryValues) {
+                    if (StringUtils.isNotEmpty(value)) {
+                        values.add(value);
+                    }
+                }
+            }
+        }
+
+        List<CleanResults> scanned;
+        if (executor == null || values.isEmpty() || values.size() < parallelThreshold) {
+            scanned = new AntisamyDOMScannerExt(policy).scanAll(values);
+        } else {
+            scanned = scanParallel(values, policy, executor);
+        }
+
+        /*
+         * Clean HTML is only kept for parameters with an injection, so it is
+         * only serialized for those.
+         */
+        int next = 0;
         MultiCleanResults results = new MultiCleanResults();
-        for (; iterator.hasNext();) {
-            Map.Entry<String, String[]> entry = iterator.next();
+        for (Map.Entry<String, String[]> entry : taintedHTML.entrySet()) {
             if (entry.getValue() != null) {
+                int first = next;
                 boolean xssInjected = false;
                 for (String value : entry.getValue()) {
-                    AntisamyDOMScannerExt antisamyDOMScannerExt = new AntisamyDOMScannerExt(policy);
                     if (StringUtils.isNotEmpty(value)) {
-                        CleanResults cleanResults = antisamyDOMScannerExt.scan(value);
-                        results.addCleanHtml(entry.getKey(), cleanResults.getCleanHTML().length() <= value.length()
-                                ? cleanResults.getCleanHTML() : " ");
-                        if (cleanResults.getNumberOfErrors() > 0) {
+                        if (scanned.get(next++).getNumberOfErrors() > 0) {
                             xssInjected = true;
                             results.addErrorMessages(Arrays.asList(value));
                         }
                     }
-                    else {
-                        results.addCleanHtml(entry.getKey(), "");
-                    }
                 }
-                if (!xssInjected) {
-                    results.removeCleanHtml(entry.getKey());
+                if (xssInjected) {
+                    next = first;
+                    for (String value : entry.getValue()) {
+                        if (StringUtils.isNotEmpty(value)) {
+                            String cleanHtml = scanned.get(next++).getCleanHTML();
+                            results.addCleanHtml(entry.getKey(), cleanHtml.length() <= value.length() ? cleanHtml : " ");
+                        } else {
+                            results.addCleanHtml(entry.getKey(), "");
+                        }
+                    }
                 }
             }
         }
         return results;
     }
+
+    private List<CleanResults> scanParallel(List<String> values, final Policy policy, Executor executor)
+            throws ScanException {
+        int chunks = Math.min(values.size(), Runtime.getRuntime().availableProcessors());
+        int chunkSize = (values.size() + chunks - 1) / chunks;
+
+        List<FutureTask<List<CleanResults>>> tasks = new ArrayList<FutureTask<List<CleanResults>>>(chunks);
+        for (int from = 0; from < values.size(); from += chunkSize) {
+            final List<String> chunk = values.subList(from, Math.min(from + chunkSize, values.size()));
+            FutureTask<List<CleanResults>> task = new FutureTask<List<CleanResults>>(new Callable<List<CleanResults>>() {
+                public List<CleanResults> call() throws Exception {
+                    return new AntisamyDOMScannerExt(policy).scanAll(chunk);
+                }
+            });
+            tasks.add(task);
+        }
+
+        for (int i = 0; i < tasks.size() - 1; i++) {
+            try {
+                executor.execute(tasks.get(i));
+            } catch (RejectedExecutionException e) {
+                // the calling thread scans it below
+            }
+        }
+
+        /*
+         * The calling thread scans the last chunk, then every chunk the
+         * executor has not started, from the back: one still queued behind
+         * the calling thread itself, or behind other work, would otherwise
+         * never be waited out. A chunk the executor has started, or gets to
+         * later, runs only once, since a FutureTask does.
+         */
+        for (int i = tasks.size() - 1; i >= 0; i--) {
+            tasks.get(i).run();
+        }
+
+        List<CleanResults> scanned = new ArrayList<CleanResults>(values.size());
+        try {
+            for (FutureTask<List<CleanResults>> task : tasks) {
+                scanned.addAll(task.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScanException(e);
+        } catch (ExecutionException e) {
+            throw ThreadUtil.scanFailure(e);
+        }
+        return scanned;
+    }
 }
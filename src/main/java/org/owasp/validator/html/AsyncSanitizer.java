@@ -0,0 +1,262 @@
+package org.owasp.validator.html;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.owasp.validator.html.util.ThreadUtil;
+
+/**
+ * Runs scans on a dedicated, bounded thread pool so that callers which must
+ * not block (e.g. I/O threads) can hand sanitization off and keep going.
+ * <p/>
+ * At most <code>queueLimit</code> scans wait for a worker. Anything beyond
+ * that goes to the configured <code>RejectedExecutionHandler</code>; the
+ * default aborts with a <code>RejectedExecutionException</code>, which is the
+ * caller's signal to shed load. Whatever the handler does, a scan it neither
+ * runs nor leaves queued fails with a <code>RejectedExecutionException</code>,
+ * so its future and its {@link ScanListener} always hear the outcome. Queue
+ * depth and rejections are exposed so the pool's saturation can be monitored.
+ */
+public class AsyncSanitizer {
+
+    public static final int DEFAULT_QUEUE_LIMIT = 1024;
+
+    private static volatile AsyncSanitizer defaultInstance;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AsyncSanitizer() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_LIMIT);
+    }
+
+    public AsyncSanitizer(int threads, int queueLimit) {
+        this(threads, queueLimit, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public AsyncSanitizer(int threads, int queueLimit, RejectedExecutionHandler rejectionPolicy) {
+        this(threads, queueLimit, rejectionPolicy, ThreadUtil.daemonThreads("antisamy-sanitizer-"));
+    }
+
+    /**
+     * @param threads         The number of worker threads.
+     * @param queueLimit      How many scans may wait for a worker before new ones are rejected.
+     * @param rejectionPolicy What to do with a scan once the queue is full.
+     * @param threadFactory   Creates the worker threads.
+     */
+    public AsyncSanitizer(int threads, int queueLimit, final RejectedExecutionHandler rejectionPolicy,
+            ThreadFactory threadFactory) {
+        if (rejectionPolicy == null) {
+            throw new IllegalArgumentException("No rejection policy given");
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ScanQueue(queueLimit), threadFactory, new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        rejected.incrementAndGet();
+                        try {
+                            rejectionPolicy.rejectedExecution(r, executor);
+                        } finally {
+                            if (r instanceof ScanTask && !((ScanTask) r).queued) {
+                                ((ScanTask) r).reject();
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Returns the pool used by <code>AntiSamy.scanAsync()</code>. It is sized
+     * to the number of processors, queues up to {@link #DEFAULT_QUEUE_LIMIT}
+     * scans and runs on daemon threads.
+     */
+    public static AsyncSanitizer getDefault() {
+        AsyncSanitizer instance = defaultInstance;
+        if (instance == null) {
+            synchronized (AsyncSanitizer.class) {
+                instance = defaultInstance;
+                if (instance == null) {
+                    instance = new AsyncSanitizer();
+                    defaultInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
+
+    public Future<CleanResults> scan(String taintedHTML, Policy policy) {
+        return scan(taintedHTML, policy, AntiSamy.DOM);
+    }
+
+    /**
+     * Queues a scan of the given HTML.
+     *
+     * @param taintedHTML Untrusted HTML which may contain malicious code.
+     * @param policy      The policy to scan against.
+     * @param scanType    <code>AntiSamy.DOM</code>, <code>AntiSamy.SAX</code> or <code>AntiSamy.AUTO</code>.
+     * @return A future for the scan results. A <code>ScanException</code>
+     *         surfaces as the cause of the future's <code>ExecutionException</code>.
+     * @throws java.util.concurrent.RejectedExecutionException When the queue is
+     *         full and the rejection policy aborts.
+     */
+    public Future<CleanResults> scan(String taintedHTML, Policy policy, int scanType) {
+        return scan(taintedHTML, policy, scanType, null);
+    }
+
+    /**
+     * Queues a scan of the given HTML and tells <code>listener</code> how it
+     * ends, so the caller never has to block on the future.
+     *
+     * @param listener Told of the results or the failure, or null.
+     * @throws java.util.concurrent.RejectedExecutionException When the queue is
+     *         full and the rejection policy aborts. The listener has been told
+     *         of the rejection by then.
+     */
+    public Future<CleanResults> scan(final String taintedHTML, Policy policy, int scanType, ScanListener listener) {
+        final Sanitizer sanitizer = Sanitizer.getInstance(policy, scanType);
+        ScanTask task = new ScanTask(new Callable<CleanResults>() {
+            public CleanResults call() throws Exception {
+                return sanitizer.sanitize(taintedHTML);
+            }
+        }, listener);
+        executor.execute(task);
+        return task;
+    }
+
+    /**
+     * @return The number of scans waiting for a worker.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueLimit() {
+        return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    /**
+     * @return The number of scans handed to the rejection policy so far.
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * A queued scan. It runs at most once, or is failed as rejected instead,
+     * whichever comes first, and tells its listener when it is done.
+     */
+    private static final class ScanTask extends FutureTask<CleanResults> {
+        private final ScanListener listener;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        volatile boolean queued;
+
+        ScanTask(Callable<CleanResults> scan, ScanListener listener) {
+            super(scan);
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            if (claimed.compareAndSet(false, true)) {
+                super.run();
+            }
+        }
+
+        void reject() {
+            if (claimed.compareAndSet(false, true)) {
+                setException(new RejectedExecutionException("Scan rejected by the sanitizer pool"));
+            }
+        }
+
+        @Override
+        protected void done() {
+            if (listener == null) {
+                return;
+            }
+            CleanResults results;
+            try {
+                results = get();
+            } catch (CancellationException e) {
+                listener.failed(e);
+                return;
+            } catch (ExecutionException e) {
+                listener.failed(e.getCause());
+                return;
+            } catch (InterruptedException e) {
+                // cannot happen, the task is done
+                Thread.currentThread().interrupt();
+                return;
+            }
+            listener.scanned(results);
+        }
+    }
+
+    /**
+     * Marks the scans it accepts as queued, and fails the ones a rejection
+     * handler drops from it. Workers only ever <code>take()</code>; a
+     * discard-oldest handler is what calls <code>poll()</code>.
+     */
+    private static final class ScanQueue extends ArrayBlockingQueue<Runnable> {
+
+        ScanQueue(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public boolean offer(Runnable r) {
+            if (!super.offer(r)) {
+                return false;
+            }
+            if (r instanceof ScanTask) {
+                ((ScanTask) r).queued = true;
+            }
+            return true;
+        }
+
+        @Override
+        public Runnable poll() {
+            Runnable r = super.poll();
+            if (r instanceof ScanTask) {
+                ((ScanTask) r).reject();
+            }
+            return r;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if (!super.remove(o)) {
+                return false;
+            }
+            if (o instanceof ScanTask) {
+                ((ScanTask) o).queued = false;
+            }
+            return true;
+        }
+    }
+}
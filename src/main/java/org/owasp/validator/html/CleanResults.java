@@ -49,6 +49,7 @@ public class CleanResults {
 	private long elapsedScan;
 
 	private DocumentFragment cleanXMLDocumentFragment;
+	private boolean timedOut;
 
 	/*
 	 * For extension.
@@ -69,6 +70,13 @@ public class CleanResults {
 		this.errorMessages = errorMessages;
 	}
 
+    /**
+     * @param cleanHTML Produces the clean HTML on demand, as the DOM engine's
+     *                  results do. It is called on every
+     *                  {@link #getCleanHTML()}, so it should remember its
+     *                  result, and must be thread-safe if the results are
+     *                  shared between threads.
+     */
     public CleanResults(long startOfScan, Callable<String> cleanHTML,
                         DocumentFragment XMLDocumentFragment, List<String> errorMessages) {
         this.elapsedScan = System.currentTimeMillis() - startOfScan;
@@ -77,16 +85,39 @@ public class CleanResults {
         this.errorMessages = errorMessages;
     }
 
+	/**
+	 * For scans that only validate, leaving the fragment unserialized.
+	 */
+	public CleanResults(long startOfScan, DocumentFragment XMLDocumentFragment, List<String> errorMessages) {
+		this.elapsedScan = System.currentTimeMillis() - startOfScan;
+		this.cleanXMLDocumentFragment = XMLDocumentFragment;
+		this.errorMessages = errorMessages;
+	}
+
+	/**
+	 * For scans that ran out of time and fell back to degraded output.
+	 */
+	public CleanResults(long startOfScan, String cleanHTML, List<String> errorMessages, boolean timedOut) {
+		this(startOfScan, cleanHTML, null, errorMessages);
+		this.timedOut = timedOut;
+	}
+
 	public DocumentFragment getCleanXMLDocumentFragment() {
 		return cleanXMLDocumentFragment;
 	}
 
     /**
-	 * Return the filtered HTML as a String.
+	 * Return the filtered HTML as a String. The DOM engine only serializes
+	 * it on the first call, from the fragment as it is then.
 	 * 
-	 * @return A String object which contains the serialized, safe HTML.
+	 * @return A String object which contains the serialized, safe HTML, or
+	 *         null for results of a fragment-only scan.
+	 * @throws RuntimeException if the clean HTML could not be serialized.
 	 */
 	public String getCleanHTML() {
+        if (cleanHTML == null) {
+            return null;
+        }
         try {
             return cleanHTML.call();
         } catch (Exception e) {
@@ -114,6 +145,14 @@ public class CleanResults {
 		return (elapsedScan) / 1000D;
 	}
 
+	/**
+	 * @return Whether the scan ran out of time, in which case the clean HTML
+	 *         is the degraded output chosen by the policy.
+	 */
+	public boolean isTimedOut() {
+		return timedOut;
+	}
+
 	/**
 	 * Return the number of errors encountered during filtering.
 	 */
@@ -0,0 +1,43 @@
+package org.owasp.validator.html;
+
+/**
+ * Picks the engine for an <code>AntiSamy.AUTO</code> scan of one input from
+ * its length. In effect <code>AUTO</code> is the SAX engine: the DOM engine
+ * only gets inputs of a few characters, for which its lower fixed cost
+ * outweighs its higher cost per character.
+ * <p/>
+ * The time an engine takes is estimated as a fixed cost per scan plus a cost
+ * per input character, fitted to <code>EngineSelectionBenchmark</code> in the
+ * benchmarks module: the least squares line through each engine's times for
+ * <code>tiny</code>, <code>comment</code> and <code>wide100</code> to
+ * <code>wide100000</code> (12 to 1,988,890 characters), weighted so that every
+ * input counts alike, on JDK 17 and a single core. Both bundled policies it
+ * runs with gave the same times to within 2%. The lines are within 25% of
+ * every time but the SAX engine's for <code>comment</code>, which varied by
+ * more than that between iterations. Refit when either engine changes.
+ * <p/>
+ * Nothing else goes into the estimate. What a policy's actions, mark-and-emit
+ * or parallel validation do to either engine has not been measured.
+ */
+final class EngineCostModel {
+
+    static final double DOM_FIXED_NANOS = 3100;
+    static final double DOM_NANOS_PER_CHAR = 61;
+    static final double SAX_FIXED_NANOS = 3200;
+    static final double SAX_NANOS_PER_CHAR = 48;
+
+    /**
+     * @return <code>AntiSamy.DOM</code> or <code>AntiSamy.SAX</code>.
+     */
+    int choose(int length) {
+        return domNanos(length) < saxNanos(length) ? AntiSamy.DOM : AntiSamy.SAX;
+    }
+
+    double domNanos(int length) {
+        return DOM_FIXED_NANOS + DOM_NANOS_PER_CHAR * length;
+    }
+
+    double saxNanos(int length) {
+        return SAX_FIXED_NANOS + SAX_NANOS_PER_CHAR * length;
+    }
+}
@@ -31,6 +31,19 @@ public class InternalPolicy extends Policy {
     private final boolean allowDynamicAttributes;
     private final boolean allowUnknownTag;
     private final boolean allowUnknownAttributes;
+    private final boolean plainTextFastPath;
+    private final boolean fastSerializer;
+    private final boolean markAndEmit;
+    private final long maxScanTime;
+    private final String onScanTimeout;
+    private final int maxNestingDepth;
+    private final int parallelValidationThreshold;
+    private final long maxSessionIdleTime;
+    private final int maxSessions;
+
+    private volatile Sanitizer domSanitizer;
+    private volatile Sanitizer saxSanitizer;
+    private volatile Sanitizer autoSanitizer;
 
 
     protected InternalPolicy(URL baseUrl, ParseContext parseContext) throws PolicyException {
@@ -53,6 +66,15 @@ public class InternalPolicy extends Policy {
         this.allowDynamicAttributes = isTrue(Policy.ALLOW_DYNAMIC_ATTRIBUTES);
         this.allowUnknownTag=isTrue("allowUnknownTag");
         this.allowUnknownAttributes=isTrue("allowUnknownAttributes");
+        this.plainTextFastPath = !"false".equals(getDirective(Policy.PLAIN_TEXT_FAST_PATH));
+        this.fastSerializer = isTrue(Policy.FAST_SERIALIZER);
+        this.markAndEmit = isTrue(Policy.MARK_AND_EMIT);
+        this.maxScanTime = determineMaxScanTime();
+        this.onScanTimeout = getDirective(Policy.ON_SCAN_TIMEOUT);
+        this.maxNestingDepth = determineMaxNestingDepth();
+        this.parallelValidationThreshold = determineParallelValidationThreshold();
+        this.maxSessionIdleTime = determineMaxSessionIdleTime();
+        this.maxSessions = determineMaxSessions();
     }
 
     protected InternalPolicy(Policy old, Map<String, String> directives, Map<String, Tag> tagRules) {
@@ -75,6 +97,43 @@ public class InternalPolicy extends Policy {
         this.allowDynamicAttributes = isTrue(Policy.ALLOW_DYNAMIC_ATTRIBUTES);
         this.allowUnknownTag=isTrue("allowUnknownTag");
         this.allowUnknownAttributes=isTrue("allowUnknownAttributes");
+        this.plainTextFastPath = !"false".equals(getDirective(Policy.PLAIN_TEXT_FAST_PATH));
+        this.fastSerializer = isTrue(Policy.FAST_SERIALIZER);
+        this.markAndEmit = isTrue(Policy.MARK_AND_EMIT);
+        this.maxScanTime = determineMaxScanTime();
+        this.onScanTimeout = getDirective(Policy.ON_SCAN_TIMEOUT);
+        this.maxNestingDepth = determineMaxNestingDepth();
+        this.parallelValidationThreshold = determineParallelValidationThreshold();
+        this.maxSessionIdleTime = determineMaxSessionIdleTime();
+        this.maxSessions = determineMaxSessions();
+    }
+
+    /**
+     * Returns the sanitizer for this policy and the given engine, creating it
+     * on first use. A race may create a sanitizer twice; both are equivalent.
+     */
+    Sanitizer getSanitizer(int scanType) {
+        Sanitizer sanitizer;
+        if (scanType == AntiSamy.DOM) {
+            sanitizer = domSanitizer;
+            if (sanitizer == null) {
+                sanitizer = new Sanitizer(this, AntiSamy.DOM);
+                domSanitizer = sanitizer;
+            }
+        } else if (scanType == AntiSamy.AUTO) {
+            sanitizer = autoSanitizer;
+            if (sanitizer == null) {
+                sanitizer = new Sanitizer(this, AntiSamy.AUTO);
+                autoSanitizer = sanitizer;
+            }
+        } else {
+            sanitizer = saxSanitizer;
+            if (sanitizer == null) {
+                sanitizer = new Sanitizer(this, AntiSamy.SAX);
+                saxSanitizer = sanitizer;
+            }
+        }
+        return sanitizer;
     }
 
     public boolean isAllowUnknownTag() {
@@ -85,6 +144,99 @@ public class InternalPolicy extends Policy {
         return allowUnknownAttributes;
     }
 
+    /**
+     * Whether an attribute the policy has no rule for is removed. Unless
+     * <code>allowUnknownAttributes</code> is set, a policy that declares
+     * event attributes removes those, and one that declares none removes
+     * every attribute it has no rule for.
+     *
+     * @param name The attribute name, in lower case.
+     */
+    public boolean isUnknownAttributeRemoved(String name) {
+        if (allowUnknownAttributes) {
+            return false;
+        }
+        return !hasEventAttributes() || getEventAttributeByName(name) != null;
+    }
+
+    /**
+     * Whether input without any markup may skip the parser. On unless the
+     * policy sets <code>plainTextFastPath</code> to <code>false</code>.
+     */
+    public boolean isPlainTextFastPath() {
+        return plainTextFastPath;
+    }
+
+    /**
+     * Whether the DOM engine writes clean HTML with its own writer instead of
+     * the Xerces serializers. Off unless the policy sets
+     * <code>fastSerializer</code> to <code>true</code>.
+     */
+    public boolean isFastSerializer() {
+        return fastSerializer;
+    }
+
+    /**
+     * Whether the DOM engine records what it decides about each node and
+     * writes clean HTML from the untouched tree, instead of changing the tree
+     * as it goes. Its results then have no fragment. Off unless the policy
+     * sets <code>markAndEmit</code> to <code>true</code>.
+     */
+    public boolean isMarkAndEmit() {
+        return markAndEmit;
+    }
+
+    /**
+     * @return The time budget of a scan in milliseconds, or 0 for none.
+     */
+    public long getMaxScanTime() {
+        return maxScanTime;
+    }
+
+    /**
+     * What a scan that runs out of time returns: <code>"encode"</code> for
+     * the entity-encoded input, <code>"empty"</code> for nothing. Anything
+     * else, including no value, makes it throw a
+     * <code>ScanTimeoutException</code>.
+     */
+    public String getOnScanTimeout() {
+        return onScanTimeout;
+    }
+
+    /**
+     * @return How deeply the DOM engine lets tags nest before it gives up on
+     *         the input, or 0 for no limit.
+     */
+    public int getMaxNestingDepth() {
+        return maxNestingDepth;
+    }
+
+    /**
+     * @return How long an input must be for the DOM engine to validate its
+     *         top-level subtrees concurrently, or 0 to always validate on
+     *         the scanning thread.
+     */
+    public int getParallelValidationThreshold() {
+        return parallelValidationThreshold;
+    }
+
+    /**
+     * @return How long a <code>SanitizerSession</code>'s scan waits for its
+     *         next chunk, in milliseconds, before it gives up on the session,
+     *         or 0 to wait for as long as it takes.
+     */
+    public long getMaxSessionIdleTime() {
+        return maxSessionIdleTime;
+    }
+
+    /**
+     * @return How many <code>SanitizerSession</code>s a sanitizer for this
+     *         policy keeps open at once, each on a worker thread of its own.
+     */
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
     public Tag getEmbedTag() {
         return embedTag;
     }
@@ -170,4 +322,44 @@ public class InternalPolicy extends Policy {
 
         return maxInputSize;
     }
+
+    private long determineMaxScanTime() {
+        try {
+            return Math.max(0L, Long.parseLong(getDirective(Policy.MAX_SCAN_TIME)));
+        } catch (NumberFormatException ignore) {
+            return 0L;
+        }
+    }
+
+    private int determineMaxNestingDepth() {
+        try {
+            return Math.max(0, Integer.parseInt(getDirective(Policy.MAX_NESTING_DEPTH)));
+        } catch (NumberFormatException ignore) {
+            return Policy.DEFAULT_MAX_NESTING_DEPTH;
+        }
+    }
+
+    private int determineParallelValidationThreshold() {
+        try {
+            return Math.max(0, Integer.parseInt(getDirective(Policy.PARALLEL_VALIDATION_THRESHOLD)));
+        } catch (NumberFormatException ignore) {
+            return 0;
+        }
+    }
+
+    private long determineMaxSessionIdleTime() {
+        try {
+            return Math.max(0L, Long.parseLong(getDirective(Policy.MAX_SESSION_IDLE_TIME)));
+        } catch (NumberFormatException ignore) {
+            return Policy.DEFAULT_MAX_SESSION_IDLE_TIME;
+        }
+    }
+
+    private int determineMaxSessions() {
+        try {
+            return Math.max(1, Integer.parseInt(getDirective(Policy.MAX_SESSIONS)));
+        } catch (NumberFormatException ignore) {
+            return Policy.DEFAULT_MAX_SESSIONS;
+        }
+    }
 }
@@ -30,6 +30,8 @@ import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -68,6 +70,9 @@ public class Policy {
 
     public static final int DEFAULT_MAX_INPUT_SIZE = 100000;
     public static final int DEFAULT_MAX_STYLESHEET_IMPORTS = 1;
+    public static final int DEFAULT_MAX_NESTING_DEPTH = 450;
+    public static final long DEFAULT_MAX_SESSION_IDLE_TIME = 60000;
+    public static final int DEFAULT_MAX_SESSIONS = 64;
 
     public static final String OMIT_XML_DECLARATION = "omitXmlDeclaration";
     public static final String OMIT_DOCTYPE_DECLARATION = "omitDoctypeDeclaration";
@@ -81,6 +86,15 @@ public class Policy {
     public static final String PRESERVE_COMMENTS = "preserveComments";
     public static final String ENTITY_ENCODE_INTL_CHARS = "entityEncodeIntlChars";
     public static final String ALLOW_DYNAMIC_ATTRIBUTES = "allowDynamicAttributes";
+    public static final String PLAIN_TEXT_FAST_PATH = "plainTextFastPath";
+    public static final String FAST_SERIALIZER = "fastSerializer";
+    public static final String MARK_AND_EMIT = "markAndEmit";
+    public static final String MAX_SCAN_TIME = "maxScanTime";
+    public static final String ON_SCAN_TIMEOUT = "onScanTimeout";
+    public static final String MAX_NESTING_DEPTH = "maxNestingDepth";
+    public static final String PARALLEL_VALIDATION_THRESHOLD = "parallelValidationThreshold";
+    public static final String MAX_SESSION_IDLE_TIME = "maxSessionIdleTime";
+    public static final String MAX_SESSIONS = "maxSessions";
 
     public static final String EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
     public static final String EXTERNAL_PARAM_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
@@ -102,6 +116,8 @@ public class Policy {
     private final TagMatcher allowedEmptyTagsMatcher;
     private final TagMatcher requiresClosingTagsMatcher;
 
+    private volatile String fingerprint;
+
     /**
      * The path to the base policy file, used to resolve relative paths when reading included files
      */
@@ -791,6 +807,13 @@ public class Policy {
 
     }
 
+    /**
+     * @return Whether the policy declares any <event-attributes>.
+     */
+    public boolean hasEventAttributes() {
+        return !eventAttributes.isEmpty();
+    }
+
     /**
      * A method for returning one of the dynamic <global-attribute> entries by
      * name.
@@ -838,6 +861,82 @@ public class Policy {
     }
 
 
+    /**
+     * Returns a SHA-256 digest over everything that affects scan output: the
+     * directives, tag, attribute and CSS rules, common regular expressions
+     * and the empty/closing tag lists. Two policies with the same fingerprint
+     * sanitize identically, wherever they were loaded from.
+     *
+     * @return The fingerprint as a lowercase hex string.
+     */
+    public String getFingerprint() {
+        String result = fingerprint;
+        if (result == null) {
+            result = computeFingerprint();
+            fingerprint = result;
+        }
+        return result;
+    }
+
+    private String computeFingerprint() {
+        StringBuilder sb = new StringBuilder();
+
+        sb.append("directives");
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(directives).entrySet()) {
+            sb.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+        }
+
+        sb.append("\ntags");
+        for (Tag tag : new TreeMap<String, Tag>(tagRules).values()) {
+            sb.append('\n').append(tag.getName()).append(' ').append(tag.getAction())
+                    .append(' ').append(tag.getRegularExpression());
+            for (String attributeName : new TreeSet<String>(tag.getAttributeNames())) {
+                sb.append(' ').append(attributeName).append(':')
+                        .append(tag.getAttributeByName(attributeName).getOnInvalid());
+            }
+        }
+
+        appendAttributes(sb, "global", globalAttributes);
+        appendAttributes(sb, "dynamic", dynamicAttributes);
+        appendAttributes(sb, "event", eventAttributes);
+
+        sb.append("\ncss");
+        for (Property property : new TreeMap<String, Property>(cssRules).values()) {
+            sb.append('\n').append(property.getName())
+                    .append(' ').append(property.getAllowedValues())
+                    .append(' ').append(property.getAllowedRegExp())
+                    .append(' ').append(property.getShorthandRefs());
+        }
+
+        sb.append("\nregexps");
+        for (Map.Entry<String, AntiSamyPattern> entry : new TreeMap<String, AntiSamyPattern>(commonRegularExpressions).entrySet()) {
+            sb.append('\n').append(entry.getKey()).append('=').append(entry.getValue().getPattern().pattern());
+        }
+
+        sb.append("\nempty ").append(new TreeSet<String>(allowedEmptyTagsMatcher.getAllowedLowercase()));
+        sb.append("\nclosing ").append(new TreeSet<String>(requiresClosingTagsMatcher.getAllowedLowercase()));
+
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void appendAttributes(StringBuilder sb, String section, Map<String, Attribute> attributes) {
+        sb.append('\n').append(section);
+        for (Attribute attribute : new TreeMap<String, Attribute>(attributes).values()) {
+            sb.append('\n').append(attribute.matcherRegEx(false)).append(' ').append(attribute.getOnInvalid());
+        }
+    }
+
     /**
      * Resolves public & system ids to files stored within the JAR.
      */
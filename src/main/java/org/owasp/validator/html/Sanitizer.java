@@ -0,0 +1,329 @@
+package org.owasp.validator.html;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.owasp.validator.html.scan.AbstractAntiSamyScanner;
+import org.owasp.validator.html.scan.AntiSamyDOMScanner;
+import org.owasp.validator.html.scan.AntiSamySAXScanner;
+import org.owasp.validator.html.util.ObjectPool;
+
+/**
+ * A sanitizer compiled for one <code>Policy</code> and one scan engine.
+ * <p/>
+ * Instances are immutable and thread-safe, and are meant to be built once and
+ * shared. All per-policy state is resolved up front, and the scanners are
+ * recycled between calls instead of being constructed for every scan. A DOM
+ * scan still builds its fragment in a <code>Document</code> of its own, since
+ * the results may outlive the scanner's turn, unless the policy sets
+ * <code>markAndEmit</code>: such a scan hands out no fragment, and reuses the
+ * scanner's <code>Document</code> once its result has been written.
+ *
+ * <p/>
+ * An <code>AntiSamy.AUTO</code> sanitizer has no scanners of its own. It
+ * hands each input to the policy's SAX sanitizer, or to its DOM sanitizer for
+ * inputs of a few characters, which the cost model expects it to do faster.
+ *
+ * @see AntiSamy#DOM
+ * @see AntiSamy#SAX
+ * @see AntiSamy#AUTO
+ */
+public final class Sanitizer {
+
+    private final InternalPolicy policy;
+    private final int scanType;
+    private final ObjectPool<AbstractAntiSamyScanner> idleScanners;
+    private final EngineCostModel costModel;
+    private volatile SanitizerSession.Workers sessionWorkers;
+
+    public Sanitizer(Policy policy) {
+        this(policy, AntiSamy.DOM);
+    }
+
+    public Sanitizer(Policy policy, int scanType) {
+        if (policy == null) {
+            throw new IllegalArgumentException("No policy loaded");
+        }
+        this.policy = (InternalPolicy) policy;
+        this.scanType = scanType;
+        this.idleScanners = new ObjectPool<AbstractAntiSamyScanner>(new ObjectPool.Factory<AbstractAntiSamyScanner>() {
+            public AbstractAntiSamyScanner create() {
+                return newScanner();
+            }
+        }, AbstractAntiSamyScanner.DEFAULT_POOL_MAX_IDLE, false);
+        this.costModel = scanType == AntiSamy.AUTO ? new EngineCostModel() : null;
+    }
+
+    /**
+     * Returns the shared sanitizer for the given policy and engine. The
+     * instance is created on first use and cached on the policy itself.
+     *
+     * @param policy   The policy to sanitize against.
+     * @param scanType <code>AntiSamy.DOM</code>, <code>AntiSamy.SAX</code> or
+     *                 <code>AntiSamy.AUTO</code>.
+     * @return The sanitizer for that policy and engine.
+     */
+    public static Sanitizer getInstance(Policy policy, int scanType) {
+        if (policy == null) {
+            throw new IllegalArgumentException("No policy loaded");
+        }
+        return ((InternalPolicy) policy).getSanitizer(scanType);
+    }
+
+    /**
+     * Sanitizes untrusted HTML according to this sanitizer's policy.
+     *
+     * @param taintedHTML Untrusted HTML which may contain malicious code.
+     * @return A <code>CleanResults</code> object which contains information
+     *         about the scan (including the results).
+     * @throws ScanException When there is a problem encountered
+     *         while scanning the HTML.
+     */
+    public CleanResults sanitize(String taintedHTML) throws ScanException {
+        if (costModel != null) {
+            return engineFor(taintedHTML).sanitize(taintedHTML);
+        }
+        AbstractAntiSamyScanner scanner = borrow();
+        try {
+            return scanner.scan(taintedHTML);
+        } finally {
+            idleScanners.release(scanner);
+        }
+    }
+
+    /**
+     * Sanitizes untrusted HTML within the given time budget, overriding the
+     * policy's <code>maxScanTime</code> for this call.
+     *
+     * @param taintedHTML Untrusted HTML which may contain malicious code.
+     * @param maxScanTime The budget in milliseconds, or 0 for none.
+     * @throws ScanTimeoutException When the budget runs out and the policy
+     *         asks for no degraded output.
+     */
+    public CleanResults sanitize(String taintedHTML, long maxScanTime) throws ScanException {
+        if (costModel != null) {
+            return engineFor(taintedHTML).sanitize(taintedHTML, maxScanTime);
+        }
+        AbstractAntiSamyScanner scanner = borrow();
+        try {
+            scanner.setMaxScanTime(maxScanTime);
+            return scanner.scan(taintedHTML);
+        } finally {
+            scanner.setMaxScanTime(-1);
+            idleScanners.release(scanner);
+        }
+    }
+
+    /**
+     * Sanitizes everything the reader yields into the writer. The SAX engine
+     * streams, so memory use does not grow with the input; the DOM engine
+     * reads the input fully first. <code>AntiSamy.AUTO</code> streams, since
+     * how long the input is cannot be known up front. Neither stream is
+     * closed.
+     *
+     * @param in  Untrusted HTML which may contain malicious code.
+     * @param out Receives the clean HTML.
+     * @return The scan results, carrying at least the error messages.
+     * @throws ScanException When there is a problem encountered
+     *         while scanning the HTML, or reading or writing it.
+     */
+    public CleanResults sanitize(Reader in, Writer out) throws ScanException {
+        if (costModel != null) {
+            return policy.getSanitizer(AntiSamy.SAX).sanitize(in, out);
+        }
+        AbstractAntiSamyScanner scanner = borrow();
+        try {
+            return scanner.scan(in, out);
+        } finally {
+            idleScanners.release(scanner);
+        }
+    }
+
+    /**
+     * Sanitizes everything the reader yields into the writer within the
+     * given time budget, overriding the policy's <code>maxScanTime</code>
+     * for this call.
+     *
+     * @param maxScanTime The budget in milliseconds, or 0 for none.
+     */
+    public CleanResults sanitize(Reader in, Writer out, long maxScanTime) throws ScanException {
+        if (costModel != null) {
+            return policy.getSanitizer(AntiSamy.SAX).sanitize(in, out, maxScanTime);
+        }
+        AbstractAntiSamyScanner scanner = borrow();
+        try {
+            scanner.setMaxScanTime(maxScanTime);
+            return scanner.scan(in, out);
+        } finally {
+            scanner.setMaxScanTime(-1);
+            idleScanners.release(scanner);
+        }
+    }
+
+    /**
+     * Opens a session that sanitizes untrusted HTML fed to it in chunks into
+     * the writer, as the chunks arrive.
+     *
+     * @param out Receives the clean HTML. It is not closed.
+     * @return The session, which must be closed once the input has ended.
+     * @throws ScanException When the policy's <code>maxSessions</code>
+     *         sessions of this sanitizer are already open.
+     * @see SanitizerSession
+     */
+    public SanitizerSession open(Writer out) throws ScanException {
+        if (out == null) {
+            throw new IllegalArgumentException("No writer given");
+        }
+        return new SanitizerSession(this, out, policy.getMaxSessionIdleTime(), sessionWorkers());
+    }
+
+    /**
+     * Returns the threads this sanitizer's sessions scan on, creating them
+     * on the first <code>open()</code>, since most sanitizers never open one.
+     */
+    private SanitizerSession.Workers sessionWorkers() {
+        SanitizerSession.Workers workers = sessionWorkers;
+        if (workers == null) {
+            synchronized (this) {
+                workers = sessionWorkers;
+                if (workers == null) {
+                    workers = new SanitizerSession.Workers(policy.getMaxSessions());
+                    sessionWorkers = workers;
+                }
+            }
+        }
+        return workers;
+    }
+
+    /**
+     * Sanitizes untrusted HTML into a DOM fragment only, never serializing
+     * it. The fragment's <code>Document</code> is not shared with any pooled
+     * scanner, so the caller may render it into a larger document as it
+     * pleases.
+     *
+     * @param taintedHTML Untrusted HTML which may contain malicious code.
+     * @return The scan results, carrying the fragment and the error messages
+     *         but no clean HTML.
+     * @throws ScanException When there is a problem encountered
+     *         while scanning the HTML.
+     * @throws UnsupportedOperationException When this sanitizer uses the SAX
+     *         engine, which builds no fragment. An <code>AntiSamy.AUTO</code>
+     *         sanitizer uses the DOM engine.
+     */
+    public CleanResults sanitizeFragment(String taintedHTML) throws ScanException {
+        if (costModel != null) {
+            return policy.getSanitizer(AntiSamy.DOM).sanitizeFragment(taintedHTML);
+        }
+        if (scanType != AntiSamy.DOM) {
+            throw new UnsupportedOperationException("Only the DOM engine builds a fragment");
+        }
+        AbstractAntiSamyScanner scanner = borrow();
+        try {
+            return ((AntiSamyDOMScanner) scanner).scanFragment(taintedHTML);
+        } finally {
+            idleScanners.release(scanner);
+        }
+    }
+
+    /**
+     * Sanitizes a batch of untrusted HTML strings. The parser, output buffer
+     * and serializer are set up once and reused for every input.
+     *
+     * @param taintedHTML Untrusted HTML strings which may contain malicious code.
+     * @return One <code>CleanResults</code> per input, in input order.
+     * @throws ScanException When there is a problem encountered
+     *         while scanning any of the inputs.
+     */
+    public List<CleanResults> sanitizeAll(List<String> taintedHTML) throws ScanException {
+        if (costModel != null) {
+            return sanitizeAllAuto(taintedHTML);
+        }
+        AbstractAntiSamyScanner scanner = borrow();
+        try {
+            return scanner.scanAll(taintedHTML);
+        } finally {
+            idleScanners.release(scanner);
+        }
+    }
+
+    /**
+     * The pool of scanners behind this sanitizer. Its idle limit and thread
+     * affinity may be tuned, and it exposes usage metrics. That of an
+     * <code>AntiSamy.AUTO</code> sanitizer stays empty; its scans go through
+     * the pools of the policy's DOM and SAX sanitizers.
+     */
+    public ObjectPool<?> getScannerPool() {
+        return idleScanners;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getScanType() {
+        return scanType;
+    }
+
+    /**
+     * @return The engine the given input is scanned with: the one the cost
+     *         model picks if this sanitizer is <code>AntiSamy.AUTO</code>,
+     *         or else this sanitizer's own.
+     */
+    public int getScanType(String taintedHTML) {
+        if (costModel == null) {
+            return scanType;
+        }
+        return costModel.choose(taintedHTML == null ? 0 : taintedHTML.length());
+    }
+
+    private Sanitizer engineFor(String taintedHTML) {
+        return policy.getSanitizer(getScanType(taintedHTML));
+    }
+
+    /**
+     * Splits the batch by engine, so each engine still scans its share as
+     * one batch, and puts the results back in input order.
+     */
+    private List<CleanResults> sanitizeAllAuto(List<String> taintedHTML) throws ScanException {
+        List<String> dom = new ArrayList<String>();
+        List<String> sax = new ArrayList<String>();
+        boolean[] isDom = new boolean[taintedHTML.size()];
+        for (int i = 0; i < isDom.length; i++) {
+            String html = taintedHTML.get(i);
+            isDom[i] = getScanType(html) == AntiSamy.DOM;
+            (isDom[i] ? dom : sax).add(html);
+        }
+        if (sax.isEmpty()) {
+            return policy.getSanitizer(AntiSamy.DOM).sanitizeAll(dom);
+        }
+        if (dom.isEmpty()) {
+            return policy.getSanitizer(AntiSamy.SAX).sanitizeAll(sax);
+        }
+        List<CleanResults> domResults = policy.getSanitizer(AntiSamy.DOM).sanitizeAll(dom);
+        List<CleanResults> saxResults = policy.getSanitizer(AntiSamy.SAX).sanitizeAll(sax);
+        List<CleanResults> results = new ArrayList<CleanResults>(isDom.length);
+        for (int i = 0, d = 0, s = 0; i < isDom.length; i++) {
+            results.add(isDom[i] ? domResults.get(d++) : saxResults.get(s++));
+        }
+        return results;
+    }
+
+    private AbstractAntiSamyScanner borrow() {
+        try {
+            return idleScanners.borrow();
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private AbstractAntiSamyScanner newScanner() {
+        if (scanType == AntiSamy.DOM) {
+            return new AntiSamyDOMScanner(policy);
+        }
+        return new AntiSamySAXScanner(policy);
+    }
+}
@@ -0,0 +1,278 @@
+package org.owasp.validator.html;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.owasp.validator.html.util.ThreadUtil;
+
+/**
+ * Sanitizes input that arrives in chunks, such as a streamed upload, as it
+ * arrives instead of after it has all been buffered. Obtained from
+ * {@link Sanitizer#open(Writer)}:
+ * <pre>
+ * SanitizerSession session = sanitizer.open(out);
+ * while ((n = in.read(buf)) != -1) {
+ *     session.feed(buf, 0, n);
+ * }
+ * CleanResults results = session.close();
+ * </pre>
+ * The HTML parser cannot stop in the middle of a token and pick up again
+ * later, so the scan itself runs as a streaming scan on a worker thread of
+ * its own and is handed each chunk in turn. {@link #feed} returns once the
+ * scan has used up the chunk and waits for the next one, so by then
+ * everything the chunk allowed has been sanitized, and <code>out</code> is
+ * only ever written while <code>feed</code> or <code>close</code> waits. With
+ * the SAX engine, clean HTML reaches <code>out</code> as the chunks come in;
+ * the DOM engine holds everything back until <code>close()</code>.
+ * <p/>
+ * The policy's <code>maxScanTime</code> is not applied, since how long a
+ * session lasts is up to how fast its input arrives. Its
+ * <code>maxInputSize</code> is, and so is its
+ * <code>maxSessionIdleTime</code>: a scan left waiting that long for its
+ * next chunk gives up, so a session that is never closed ties up its
+ * worker for no longer than that. A sanitizer keeps at most
+ * <code>maxSessions</code> sessions open at once; opening one more fails
+ * instead of starting another thread.
+ * <p/>
+ * A session is meant to be used by one thread and must be closed, or
+ * aborted when the input will not be sanitized after all. A feed or close
+ * that throws has already ended the scan.
+ */
+public final class SanitizerSession {
+
+    private final Chunks chunks;
+    private final Future<CleanResults> results;
+    private boolean closed;
+
+    /**
+     * @throws ScanException When <code>workers</code> already runs as many
+     *         sessions as it may.
+     */
+    SanitizerSession(final Sanitizer sanitizer, final Writer out, long maxIdleTime, final Workers workers)
+            throws ScanException {
+        if (!workers.permits.tryAcquire()) {
+            throw new ScanException("Too many open sessions: " + workers.maxSessions);
+        }
+        chunks = new Chunks(maxIdleTime);
+        try {
+            results = workers.pool.submit(new Callable<CleanResults>() {
+                public CleanResults call() throws Exception {
+                    try {
+                        return sanitizer.sanitize(chunks, out, 0);
+                    } finally {
+                        chunks.finish();
+                        workers.permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            workers.permits.release();
+            throw new ScanException(e);
+        }
+    }
+
+    /**
+     * Hands the next chunk of untrusted HTML to the scan and waits until the
+     * scan has used it up. The chunk is not copied, and the caller may reuse
+     * the array once this returns.
+     *
+     * @throws ScanException When the scan has failed, on this chunk or on
+     *         one before. The session is over then.
+     * @throws IllegalStateException When the session has been closed.
+     */
+    public void feed(char[] buf, int off, int len) throws ScanException {
+        if (closed) {
+            throw new IllegalStateException("Session is closed");
+        }
+        if (off < 0 || len < 0 || off + len > buf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return;
+        }
+        try {
+            if (chunks.supply(buf, off, len)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            chunks.abort();
+            Thread.currentThread().interrupt();
+            throw new ScanException(e);
+        }
+        closed = true;
+        results();
+        throw new IllegalStateException("Scan ended before its input did");
+    }
+
+    /**
+     * Ends the input and waits for the scan to finish writing the clean
+     * HTML. <code>out</code> is flushed but not closed. Closing a session
+     * again returns the same results.
+     *
+     * @return The scan results, carrying the error messages. Only the DOM
+     *         engine's also carry the clean HTML.
+     * @throws ScanException When the scan fails.
+     */
+    public CleanResults close() throws ScanException {
+        closed = true;
+        chunks.end();
+        return results();
+    }
+
+    /**
+     * Ends the session without ending the input: the scan stops where it is
+     * and writes nothing more to <code>out</code>, and its worker is free
+     * once this returns. What the SAX engine already wrote stays written.
+     * Aborting a session that is over does nothing.
+     */
+    public void abort() {
+        closed = true;
+        chunks.abort();
+        try {
+            results.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException expected) {
+            // the scan failed on the aborted input, or before
+        }
+    }
+
+    private CleanResults results() throws ScanException {
+        try {
+            return results.get();
+        } catch (InterruptedException e) {
+            chunks.abort();
+            Thread.currentThread().interrupt();
+            throw new ScanException(e);
+        } catch (ExecutionException e) {
+            throw ThreadUtil.scanFailure(e);
+        }
+    }
+
+    /**
+     * What the scan reads from: one chunk at a time, handed over by the
+     * session's thread, which waits until the scan comes back for more.
+     */
+    private static final class Chunks extends Reader {
+        private final long maxIdleTime;
+        private char[] chunk;
+        private int next;
+        private int end;
+        private boolean starved;
+        private boolean ended;
+        private boolean aborted;
+        private boolean finished;
+
+        Chunks(long maxIdleTime) {
+            this.maxIdleTime = maxIdleTime;
+        }
+
+        public synchronized int read(char[] cbuf, int off, int len) throws IOException {
+            long deadline = maxIdleTime > 0 ? System.currentTimeMillis() + maxIdleTime : 0;
+            while (next == end && !ended && !aborted) {
+                starved = true;
+                notifyAll();
+                long timeout = 0;
+                if (deadline != 0) {
+                    timeout = deadline - System.currentTimeMillis();
+                    if (timeout <= 0) {
+                        throw new InterruptedIOException("No input for " + maxIdleTime + " ms");
+                    }
+                }
+                try {
+                    wait(timeout);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            starved = false;
+            if (aborted) {
+                throw new IOException("Session aborted");
+            }
+            if (next == end) {
+                return -1;
+            }
+            int n = Math.min(len, end - next);
+            System.arraycopy(chunk, next, cbuf, off, n);
+            next += n;
+            return n;
+        }
+
+        /**
+         * Leaves the session to end the input.
+         */
+        public void close() {
+        }
+
+        /**
+         * @return Whether the scan used up the chunk and is still going,
+         *         rather than having failed.
+         */
+        synchronized boolean supply(char[] buf, int off, int len) throws InterruptedException {
+            chunk = buf;
+            next = off;
+            end = off + len;
+            starved = false;
+            notifyAll();
+            try {
+                while (!finished && !(starved && next == end)) {
+                    wait();
+                }
+                return !finished;
+            } finally {
+                chunk = null;
+                next = 0;
+                end = 0;
+            }
+        }
+
+        synchronized void end() {
+            ended = true;
+            notifyAll();
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * The daemon threads a sanitizer's sessions scan on, one per open
+     * session and no more than <code>maxSessions</code>. Threads are created
+     * as needed and let go once idle for a while.
+     */
+    static final class Workers {
+        private static final ThreadFactory THREADS = ThreadUtil.daemonThreads("antisamy-session-");
+
+        final int maxSessions;
+        final Semaphore permits;
+        final ThreadPoolExecutor pool;
+
+        Workers(int maxSessions) {
+            this.maxSessions = maxSessions;
+            this.permits = new Semaphore(maxSessions);
+            // a session frees its permit just before its thread is free, so
+            // the next one may have to wait for that thread in the queue
+            this.pool = new ThreadPoolExecutor(maxSessions, maxSessions, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), THREADS);
+            this.pool.allowCoreThreadTimeOut(true);
+        }
+    }
+}
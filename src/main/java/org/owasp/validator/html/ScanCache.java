@@ -0,0 +1,154 @@
+package org.owasp.validator.html;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.owasp.validator.html.util.TinyLfuCache;
+
+/**
+ * Remembers scan results so that input seen before is answered with a lookup
+ * instead of a parse. Entries are keyed by the policy's
+ * {@link Policy#getFingerprint() fingerprint}, the engine and a SHA-256
+ * digest of the input, and evicted by frequency once the cache is full.
+ * <p/>
+ * Only the clean HTML and the error messages are kept. Results served from
+ * the cache therefore have no <code>DocumentFragment</code>. Inputs longer
+ * than <code>maxInputLength</code> are never cached, so a few huge documents
+ * cannot crowd out the many small repeats.
+ */
+public class ScanCache {
+
+    public static final int DEFAULT_MAX_INPUT_LENGTH = 16 * 1024;
+
+    private final TinyLfuCache<Key, Entry> cache;
+    private final int maxInputLength;
+
+    public ScanCache(int maximumSize) {
+        this(maximumSize, DEFAULT_MAX_INPUT_LENGTH);
+    }
+
+    public ScanCache(int maximumSize, int maxInputLength) {
+        this.cache = new TinyLfuCache<Key, Entry>(maximumSize);
+        this.maxInputLength = maxInputLength;
+    }
+
+    /**
+     * Returns the cached results for this input, or scans it with the shared
+     * sanitizer of the policy and engine and caches the outcome.
+     */
+    public CleanResults scan(String taintedHTML, Policy policy, int scanType) throws ScanException {
+        return scan(taintedHTML, policy, scanType, -1);
+    }
+
+    /**
+     * Like {@link #scan(String, Policy, int)}, with a time budget for the
+     * scan on a miss. Results of scans that ran out of time are not cached.
+     *
+     * @param maxScanTime The budget in milliseconds, 0 for none, or a
+     *                    negative value for the policy's own budget.
+     */
+    public CleanResults scan(String taintedHTML, Policy policy, int scanType, long maxScanTime) throws ScanException {
+        if (taintedHTML == null) {
+            throw new ScanException(new NullPointerException("Null input"));
+        }
+        if (taintedHTML.length() > maxInputLength) {
+            return Sanitizer.getInstance(policy, scanType).sanitize(taintedHTML, maxScanTime);
+        }
+
+        long startOfScan = System.currentTimeMillis();
+        Key key = new Key(policy.getFingerprint(), scanType, digest(taintedHTML));
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            return new CleanResults(startOfScan, entry.cleanHTML, null, new ArrayList<String>(entry.errorMessages));
+        }
+
+        CleanResults results = Sanitizer.getInstance(policy, scanType).sanitize(taintedHTML, maxScanTime);
+        if (results.isTimedOut()) {
+            return results;
+        }
+        cache.put(key, new Entry(results.getCleanHTML(),
+                Collections.unmodifiableList(new ArrayList<String>(results.getErrorMessages()))));
+        return results;
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return cache.getHitCount();
+    }
+
+    public long getMissCount() {
+        return cache.getMissCount();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static byte[] digest(String input) {
+        try {
+            return SHA256.get().digest(input.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Key {
+        private final String policyFingerprint;
+        private final int scanType;
+        private final byte[] inputDigest;
+        private final int hash;
+
+        Key(String policyFingerprint, int scanType, byte[] inputDigest) {
+            this.policyFingerprint = policyFingerprint;
+            this.scanType = scanType;
+            this.inputDigest = inputDigest;
+            this.hash = 31 * (31 * policyFingerprint.hashCode() + scanType) + Arrays.hashCode(inputDigest);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && scanType == other.scanType
+                    && Arrays.equals(inputDigest, other.inputDigest)
+                    && policyFingerprint.equals(other.policyFingerprint);
+        }
+    }
+
+    private static final class Entry {
+        private final String cleanHTML;
+        private final List<String> errorMessages;
+
+        Entry(String cleanHTML, List<String> errorMessages) {
+            this.cleanHTML = cleanHTML;
+            this.errorMessages = errorMessages;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.owasp.validator.html;
+
+/**
+ * Told when a scan queued on an {@link AsyncSanitizer} is over, so that
+ * callers which must not block never have to wait on its future.
+ * <p/>
+ * Exactly one of the methods is called, once, on the thread that ends the
+ * scan: a worker, the caller of <code>scan()</code> if the scan is rejected,
+ * or whoever cancels the future. It should hand off anything slow.
+ */
+public interface ScanListener {
+
+    void scanned(CleanResults results);
+
+    /**
+     * @param cause The <code>ScanException</code> or runtime exception the
+     *              scan failed with, a <code>RejectedExecutionException</code>
+     *              if it never ran, or a <code>CancellationException</code>.
+     */
+    void failed(Throwable cause);
+}
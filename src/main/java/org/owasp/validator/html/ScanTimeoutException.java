@@ -0,0 +1,61 @@
+package org.owasp.validator.html;
+
+import javax.xml.transform.TransformerException;
+
+import org.apache.xerces.xni.XNIException;
+import org.w3c.css.sac.CSSException;
+import org.xml.sax.SAXException;
+
+/**
+ * Thrown when a scan runs past its time budget, as set by the
+ * <code>maxScanTime</code> directive or per call. The scanners check the
+ * budget between elements and between CSS rules, so a scan stops shortly
+ * after its deadline rather than exactly on it.
+ */
+public class ScanTimeoutException extends ScanException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long maxScanTime;
+
+	public ScanTimeoutException(long maxScanTime) {
+		super("Scan exceeded its time budget of " + maxScanTime + " ms");
+		this.maxScanTime = maxScanTime;
+	}
+
+	/**
+	 * @return The budget that was exceeded, in milliseconds.
+	 */
+	public long getMaxScanTime() {
+		return maxScanTime;
+	}
+
+	/**
+	 * Finds a timeout among the causes of an exception that came back
+	 * through a parser or transformer.
+	 *
+	 * @return The timeout, or <code>null</code> if there is none.
+	 */
+	public static ScanTimeoutException find(Throwable t) {
+		for (int i = 0; t != null && i < 16; i++) {
+			if (t instanceof ScanTimeoutException) {
+				return (ScanTimeoutException) t;
+			}
+			Throwable next = t.getCause();
+			if (next == null && t instanceof CSSException) {
+				next = ((CSSException) t).getException();
+			}
+			if (next == null && t instanceof TransformerException) {
+				next = ((TransformerException) t).getException();
+			}
+			if (next == null && t instanceof XNIException) {
+				next = ((XNIException) t).getException();
+			}
+			if (next == null && t instanceof SAXException) {
+				next = ((SAXException) t).getException();
+			}
+			t = next;
+		}
+		return null;
+	}
+}
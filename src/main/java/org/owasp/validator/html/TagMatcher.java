@@ -56,4 +56,8 @@ public class TagMatcher {
     public int size() {
         return allowedLowercase.size();
     }
+
+    Set<String> getAllowedLowercase() {
+        return allowedLowercase;
+    }
 }
@@ -151,4 +151,11 @@ public class Tag {
     public Attribute getAttributeByName(String name) {
         return allowedAttributes.get(name);
     }
+
+    /**
+     * @return The names of all attributes allowed on this tag.
+     */
+    public Set<String> getAttributeNames() {
+        return Collections.unmodifiableSet(allowedAttributes.keySet());
+    }
 }
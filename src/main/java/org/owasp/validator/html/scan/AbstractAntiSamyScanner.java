@@ -24,29 +24,38 @@
 
 package org.owasp.validator.html.scan;
 
+import java.io.IOException;
+import java.io.Reader;
 import java.io.Writer;
 import java.util.*;
 
 import org.apache.xml.serialize.OutputFormat;
 import org.owasp.validator.html.*;
+import org.owasp.validator.html.model.Attribute;
+import org.owasp.validator.html.model.Tag;
 import org.owasp.validator.html.util.ErrorMessageUtil;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
 
 public abstract class AbstractAntiSamyScanner {
 
 	protected final InternalPolicy policy;
-	protected final List<String> errorMessages = new ArrayList<String>();
+	protected List<String> errorMessages = new ArrayList<String>();
 
 	protected static final ResourceBundle messages = getResourceBundle();
 	protected final Locale locale = Locale.getDefault();
 
+	protected long maxScanTime;
+	protected long deadline;
+	private long maxScanTimeOverride = -1;
+
 	protected boolean isNofollowAnchors = false;
 	protected boolean isValidateParamAsEmbed = false;
     protected static InternalPolicy attrPolicy;
-    protected static final String PAD_END_STR = " >";
-    protected static final String PAD_END_GT_STR = ">";
-    protected static final String PAD_START_QUOTE_STR = "<z a=\"";
-    protected static final String PAD_START_SINGLE_QUOTE_STR = "<z a='";
-    protected static final String PAD_START_STR_FOR_END = "</z>";
+
+    /**
+     * How many parsers each engine keeps idle by default.
+     */
+    public static final int DEFAULT_POOL_MAX_IDLE = 2 * Runtime.getRuntime().availableProcessors();
 
     static {
         try{
@@ -55,8 +64,54 @@ public abstract class AbstractAntiSamyScanner {
             throw new RuntimeException(ex);
         }
     }
+	/**
+	 * Scans the given HTML. A scanner may be reused for any number of
+	 * sequential scans, but it must never be shared between threads; use a
+	 * {@link org.owasp.validator.html.Sanitizer} for that.
+	 */
 	public abstract CleanResults scan(String html) throws ScanException;
 
+	/**
+	 * Scans a batch of inputs, returning one result per input in input order.
+	 * Engines override this to share their parser, output buffer and
+	 * serializer across the whole batch.
+	 */
+	public List<CleanResults> scanAll(List<String> htmls) throws ScanException {
+		List<CleanResults> results = new ArrayList<CleanResults>(htmls.size());
+		for (String html : htmls) {
+			results.add(scan(html));
+		}
+		return results;
+	}
+
+	/**
+	 * Scans everything the reader yields and writes the clean HTML to the
+	 * writer. Neither is closed. This default reads the whole input first;
+	 * engines that can stream override it. On failure the writer may already
+	 * have received part of the output.
+	 *
+	 * @return The scan results. Whether they also hold the clean HTML is up
+	 *         to the engine.
+	 */
+	public CleanResults scan(Reader in, Writer out) throws ScanException {
+		if (in == null || out == null) {
+			throw new ScanException(new NullPointerException("Null input"));
+		}
+		try {
+			StringBuilder html = new StringBuilder();
+			char[] buffer = new char[4096];
+			for (int n; (n = in.read(buffer)) != -1;) {
+				html.append(buffer, 0, n);
+			}
+			CleanResults results = scan(html.toString());
+			out.write(results.getCleanHTML());
+			out.flush();
+			return results;
+		} catch (IOException e) {
+			throw new ScanException(e);
+		}
+	}
+
 	/** @noinspection UnusedDeclaration TODO: Investigate */
     public abstract CleanResults getResults();
 
@@ -108,6 +163,112 @@ public abstract class AbstractAntiSamyScanner {
         return new ASHTMLSerializer(w, format, policy);
 	}
 
+	/**
+	 * Tells whether the input can skip parsing, filtering and serialization
+	 * because both engines would hand it back unchanged. That holds for
+	 * non-empty printable ASCII with no markup, entity or quote characters
+	 * and no trailing blank, as long as the output is not being formatted.
+	 */
+	protected boolean isPlainText(String html) {
+		if (!policy.isPlainTextFastPath() || policy.isFormatOutput()) {
+			return false;
+		}
+		int length = html.length();
+		if (length == 0 || html.charAt(length - 1) == ' ') {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = html.charAt(i);
+			if (c < 0x20 || c > 0x7e || c == '<' || c == '>' || c == '&' || c == '"' || c == '\'') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Overrides the policy's <code>maxScanTime</code> for the following
+	 * scans. A negative value goes back to the policy's budget, 0 means no
+	 * budget.
+	 */
+	public void setMaxScanTime(long maxScanTime) {
+		this.maxScanTimeOverride = maxScanTime;
+	}
+
+	protected void startClock(long startOfScan) {
+		maxScanTime = maxScanTimeOverride >= 0 ? maxScanTimeOverride : policy.getMaxScanTime();
+		deadline = maxScanTime > 0 ? startOfScan + maxScanTime : 0;
+	}
+
+	protected void checkDeadline() throws ScanTimeoutException {
+		if (deadline != 0 && System.currentTimeMillis() > deadline) {
+			throw new ScanTimeoutException(maxScanTime);
+		}
+	}
+
+	/**
+	 * Builds the degraded results the policy asks for once a scan has run out
+	 * of time, or rethrows the timeout if it asks for none.
+	 */
+	protected CleanResults degrade(String html, long startOfScan, ScanTimeoutException e) throws ScanTimeoutException {
+		String cleanHTML;
+		if ("encode".equals(policy.getOnScanTimeout())) {
+			cleanHTML = HTMLEntityEncoder.htmlEntityEncode(html);
+		} else if ("empty".equals(policy.getOnScanTimeout())) {
+			cleanHTML = "";
+		} else {
+			throw e;
+		}
+		addError(ErrorMessageUtil.ERROR_SCAN_TIMEOUT, new Object[]{e.getMaxScanTime()});
+		return new CleanResults(startOfScan, cleanHTML, errorMessages, true);
+	}
+
+	/**
+	 * Reports input that would break out of a quoted attribute value if it
+	 * were put into one: the attributes it would add that the attribute
+	 * policy does not allow. Their errors go before those of the scan.
+	 */
+	protected void scanAttr(String html, CharIndex attributeChars) {
+		attributeChars.index(html);
+		boolean singleQuotes = attributeChars.count('\'') > 0;
+		boolean doubleQuotes = attributeChars.count('"') > 0;
+		if ((!singleQuotes && !doubleQuotes) || attributeChars.count('=') == 0) {
+			return;
+		}
+
+		char quote = doubleQuotes ? '"' : '\'';
+		List<String> found = AttributeBreakout.attributes(html, attributeChars.first(quote), quote);
+		if (found.isEmpty()) {
+			return;
+		}
+		List<String> scanErrors = errorMessages;
+		errorMessages = new ArrayList<String>();
+		for (int i = 0; i < found.size(); i += 3) {
+			checkBreakoutAttribute(found.get(i), found.get(i + 1), found.get(i + 2));
+		}
+		errorMessages.addAll(scanErrors);
+	}
+
+	/**
+	 * Judges an attribute the way the attribute policy would if it were on
+	 * an unknown tag.
+	 */
+	private void checkBreakoutAttribute(String tagName, String name, String value) {
+		Tag tag = attrPolicy.getTagByLowercaseName(tagName);
+		Attribute attr = tag != null ? tag.getAttributeByName(name) : null;
+		if (attr == null) {
+			attr = attrPolicy.getGlobalAttributeByName(name);
+		}
+
+		if (attr != null) {
+			if (!attr.containsAllowedValue(value.toLowerCase()) && !attr.matchesAllowedExpression(value)) {
+				addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+			}
+		} else if (attrPolicy.isUnknownAttributeRemoved(name)) {
+			addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+		}
+	}
+
 	protected String trim(String original, String cleaned) {
         if (cleaned.endsWith("\n")) {
             if (!original.endsWith("\n")) {
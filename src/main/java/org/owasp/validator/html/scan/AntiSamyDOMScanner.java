@@ -24,9 +24,7 @@
 package org.owasp.validator.html.scan;
 
 import org.apache.batik.css.parser.ParseException;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.xerces.dom.DocumentImpl;
-import org.cyberneko.html.CharPosition;
 import org.cyberneko.html.HTMLConfiguration;
 import org.cyberneko.html.parsers.DOMFragmentParser;
 import org.owasp.validator.css.CssScanner;
@@ -35,10 +33,13 @@ import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.PolicyException;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanTimeoutException;
 import org.owasp.validator.html.model.Attribute;
 import org.owasp.validator.html.model.Tag;
 import org.owasp.validator.html.util.ErrorMessageUtil;
 import org.owasp.validator.html.util.HTMLEntityEncoder;
+import org.owasp.validator.html.util.ObjectPool;
+import org.owasp.validator.html.util.ThreadUtil;
 import org.w3c.dom.*;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -50,7 +51,12 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -64,22 +70,32 @@ import java.util.regex.Pattern;
  */
 public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
-    private Document document = new DocumentImpl();
-    private DocumentFragment dom = document.createDocumentFragment();
+    private DocumentFragment dom;
     private CleanResults results = null;
-    private static final int maxDepth = 450;
+    private final List<Frame> stack = new ArrayList<Frame>();
+    private final List<Node> emptied = new ArrayList<Node>();
+    private final AtomicReference<Output> idleOutput = new AtomicReference<Output>();
+    private final AtomicReference<Document> idleDocument = new AtomicReference<Document>();
+    private Marks marks;
+    private int maxNestingDepth;
     private static final Pattern invalidXmlCharacters =
             Pattern.compile("[\\u0000-\\u001F\\uD800-\\uDFFF\\uFFFE-\\uFFFF&&[^\\u0009\\u000A\\u000D]]");
     private static final Pattern conditionalDirectives =
             Pattern.compile("<?!?\\[\\s*(?:end)?if[^]]*\\]>?");
 
-    private static final Queue<CachedItem> cachedItems = new ConcurrentLinkedQueue<CachedItem>();
+    private static final ObjectPool<CachedItem> cachedItems = new ObjectPool<CachedItem>(
+            new ObjectPool.Factory<CachedItem>() {
+                public CachedItem create() throws Exception {
+                    return new CachedItem();
+                }
+            }, DEFAULT_POOL_MAX_IDLE, false);
     private static final String ESCAPE_SINGLE_QUOTE = "&#x27;";
     private static final String ESCAPE_DOUBLE_QUOTE = "&quot;";
 
     static class CachedItem {
         private final DOMFragmentParser parser;
         private final Matcher invalidXmlCharMatcher = invalidXmlCharacters.matcher("");
+        private final CharIndex attributeChars = new CharIndex('\'', '"', '=');
 
 
         CachedItem() throws SAXNotSupportedException, SAXNotRecognizedException {
@@ -91,6 +107,88 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         }
     }
 
+    /*
+     * What is left to do for an element once its children have been
+     * validated.
+     */
+    private static final int AFTER_NOTHING = 0;
+    private static final int AFTER_ENCODE = 1;
+    private static final int AFTER_FILTER = 2;
+    private static final int AFTER_VALIDATE = 3;
+    private static final int AFTER_ATTRIBUTE_FILTER = 4;
+    private static final int AFTER_ATTRIBUTE_ENCODE = 5;
+
+    /*
+     * Outcomes of processAttributes().
+     */
+    private static final int ATTRIBUTES_DONE = 0;
+    private static final int TAG_REMOVED = 1;
+    private static final int CHILDREN_FIRST = 2;
+
+    /**
+     * One level of the tree walk: the children of a node being validated,
+     * and what to do with that node once they all have been. In a
+     * mark-and-emit scan, <code>mark</code> is the number of that node.
+     */
+    private static final class Frame {
+        final int depth;
+        final int after;
+        final Element ele;
+        final int mark;
+        final Validation validation;
+
+        Node next;
+
+        Frame(Node first, int depth, int after, Element ele, int mark, Validation validation) {
+            this.next = first;
+            this.depth = depth;
+            this.after = after;
+            this.ele = ele;
+            this.mark = mark;
+            this.validation = validation;
+        }
+    }
+
+    /**
+     * An element being validated against a tag rule, or as an allowed
+     * unknown tag. Its attributes may need more work once the children are
+     * done.
+     */
+    private static final class Validation {
+        final int depth;
+        final Element ele;
+        final int mark;
+        final String tagName;
+        final String tagNameLowerCase;
+        final Tag tag;
+        final boolean knownTag;
+        final String paramName;
+
+        int attributeIndex;
+        String attributeName;
+        String attributeValue;
+        boolean encode;
+
+        Validation(int depth, Element ele, int mark, String tagName, String tagNameLowerCase, Tag tag,
+                boolean knownTag, String paramName) {
+            this.depth = depth;
+            this.ele = ele;
+            this.mark = mark;
+            this.tagName = tagName;
+            this.tagNameLowerCase = tagNameLowerCase;
+            this.tag = tag;
+            this.knownTag = knownTag;
+            this.paramName = paramName;
+        }
+
+        void pendingAttribute(int index, String name, String value, boolean encode) {
+            this.attributeIndex = index;
+            this.attributeName = name;
+            this.attributeValue = value;
+            this.encode = encode;
+        }
+    }
+
     public AntiSamyDOMScanner(Policy policy) {
         super(policy);
     }
@@ -100,6 +198,19 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         super();
     }
 
+    /**
+     * A helper that validates part of the document <code>parent</code> is
+     * scanning, under the same settings and deadline.
+     */
+    private AntiSamyDOMScanner(AntiSamyDOMScanner parent) {
+        super(parent.policy);
+        isNofollowAnchors = parent.isNofollowAnchors;
+        isValidateParamAsEmbed = parent.isValidateParamAsEmbed;
+        maxNestingDepth = parent.maxNestingDepth;
+        maxScanTime = parent.maxScanTime;
+        deadline = parent.deadline;
+    }
+
     public CleanResults scan(String html) throws ScanException {
         return scan(html,false);
     }
@@ -121,7 +232,101 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
             throw new ScanException(new NullPointerException("Null input"));
         }
 
-        errorMessages.clear();
+        CachedItem cachedItem = borrowCachedItem();
+        try {
+            return scan(html, scanAttr, cachedItem, false);
+        } finally {
+            cachedItems.release(cachedItem);
+        }
+    }
+
+    /**
+     * Scans without ever serializing: the results carry the validated
+     * fragment and the errors, and no clean HTML. The fragment belongs to a
+     * <code>Document</code> of its own that the scanner forgets about, so
+     * the caller may import, adopt or change it freely.
+     * <p/>
+     * A scan that runs out of time still returns the policy's degraded HTML
+     * instead of a fragment.
+     *
+     * @param html
+     *            A String whose contents we want to scan.
+     * @return A <code>CleanResults</code> object whose
+     *         <code>getCleanHTML()</code> is null.
+     * @throws ScanException
+     */
+    public CleanResults scanFragment(String html) throws ScanException {
+
+        if (html == null) {
+            throw new ScanException(new NullPointerException("Null input"));
+        }
+
+        CachedItem cachedItem = borrowCachedItem();
+        try {
+            return scan(html, false, cachedItem, true);
+        } finally {
+            cachedItems.release(cachedItem);
+            dom = null;
+            results = null;
+        }
+    }
+
+    public List<CleanResults> scanAll(List<String> htmls) throws ScanException {
+        return scanAll(htmls, false);
+    }
+
+    /**
+     * Scans a batch of inputs. One parser is taken for the whole batch
+     * instead of one per input. The results take turns on the scanner's
+     * output buffer and serializer when their clean HTML is asked for.
+     *
+     * @param htmls
+     *            The Strings whose contents we want to scan.
+     * @return One <code>CleanResults</code> per input, in input order.
+     * @throws ScanException
+     */
+    public List<CleanResults> scanAll(List<String> htmls, boolean scanAttr) throws ScanException {
+
+        List<CleanResults> cleanResults = new ArrayList<CleanResults>(htmls.size());
+        if (htmls.isEmpty()) {
+            return cleanResults;
+        }
+
+        CachedItem cachedItem = borrowCachedItem();
+        try {
+            for (String html : htmls) {
+                if (html == null) {
+                    throw new ScanException(new NullPointerException("Null input"));
+                }
+                cleanResults.add(scan(html, scanAttr, cachedItem, false));
+            }
+        } finally {
+            cachedItems.release(cachedItem);
+        }
+        return cleanResults;
+    }
+
+    private CachedItem borrowCachedItem() throws ScanException {
+        try {
+            return cachedItems.borrow();
+        } catch (Exception e) {
+            throw new ScanException(e);
+        }
+    }
+
+    /**
+     * The pool of NekoHTML parsers shared by all DOM scanners. Its idle limit
+     * and thread affinity may be tuned, and it exposes usage metrics.
+     */
+    public static ObjectPool<?> getParserPool() {
+        return cachedItems;
+    }
+
+    private CleanResults scan(String html, boolean scanAttr, CachedItem cachedItem, boolean fragmentOnly)
+            throws ScanException {
+
+        errorMessages = new ArrayList<String>();
+        results = null;
         int maxInputSize = policy.getMaxInputSize();
 
         if (maxInputSize < html.length()) {
@@ -131,16 +336,34 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
         isNofollowAnchors = policy.isNofollowAnchors();
         isValidateParamAsEmbed = policy.isValidateParamAsEmbed();
+        maxNestingDepth = policy.getMaxNestingDepth();
 
         long startOfScan = System.currentTimeMillis();
+        startClock(startOfScan);
+
+        if (isPlainText(html)) {
+            Document owner = new DocumentImpl();
+            dom = owner.createDocumentFragment();
+            dom.appendChild(owner.createTextNode(html));
+            results = fragmentOnly ? new CleanResults(startOfScan, dom, errorMessages)
+                    : new CleanResults(startOfScan, html, dom, errorMessages);
+            return results;
+        }
 
-        try {
+        boolean ownWriter = !fragmentOnly && canWrite();
+        boolean marking = policy.isMarkAndEmit() && ownWriter;
 
-            CachedItem cachedItem;
-            cachedItem = cachedItems.poll();
-            if (cachedItem == null){
-                cachedItem = new CachedItem();
-            }
+        /*
+         * A mark-and-emit scan hands out nothing but the clean HTML, so it
+         * parses into the scanner's Document, which its result gives back
+         * once written. Every other scan gets a Document of its own: the
+         * caller may hold on to the fragment through the CleanResults, and a
+         * Xerces Document must not be used by two threads at once.
+         */
+        Document owner = marking ? borrowDocument() : new DocumentImpl();
+        boolean documentLent = false;
+
+        try {
 
             /*
              * We have to replace any invalid XML characters to prevent NekoHTML
@@ -159,62 +382,254 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
             DOMFragmentParser parser = cachedItem.getDomFragmentParser();
 
+            dom = owner.createDocumentFragment();
+
             try {
                 parser.parse(new InputSource(new StringReader(html)), dom);
             } catch (Exception e) {
                 throw new ScanException(e);
             }
 
-            processChildren(dom, 0);
+            /*
+             * A mark-and-emit scan leaves the fragment as parsed, so it has
+             * nothing to hand out but the clean HTML.
+             */
+            if (marking) {
+                marks = new Marks(dom, html.length());
+            }
+
+            validate(dom, html.length());
+
+            if (scanAttr) {
+                scanAttr(html, cachedItem.attributeChars);
+            }
 
             /*
-             * Serialize the output and then return the resulting DOM object and
-             * its string representation.
+             * Return the DOM object; its string representation is only
+             * serialized once someone asks for it. A fragment too deep for
+             * the Xerces serializers is turned down now, while a
+             * ScanException can still be thrown.
              */
+            if (fragmentOnly) {
+                results = new CleanResults(startOfScan, dom, errorMessages);
+            } else if (marks != null) {
+                results = new CleanResults(startOfScan, new LazyCleanHtml(this, marks, owner, html), null, errorMessages);
+                documentLent = true;
+            } else {
+                if (!ownWriter && (maxNestingDepth == 0 || maxNestingDepth > Policy.DEFAULT_MAX_NESTING_DEPTH)) {
+                    checkSerializableDepth(dom);
+                }
+                results = new CleanResults(startOfScan, new LazyCleanHtml(this, dom, html), dom, errorMessages);
+            }
+            return results;
 
 
-            final String trimmedHtml = html;
+        }
+        catch ( ScanTimeoutException e ) {
+            results = degrade(html, startOfScan, e);
+            return results;
+        }
+        finally {
+            marks = null;
+            if (marking && !documentLent) {
+                releaseDocument(owner);
+            }
+        }
 
-            StringWriter out = new StringWriter();
+    }
 
-            @SuppressWarnings("deprecation")
-            org.apache.xml.serialize.OutputFormat format = getOutputFormat();
+    /**
+     * @return Whether clean fragments go through the scanner's own writer,
+     *         which is the only one that can write marks.
+     */
+    private boolean canWrite() {
+        Output output = borrowOutput();
+        boolean canWrite = output.canWrite();
+        releaseOutput(output);
+        return canWrite;
+    }
 
-            //noinspection deprecation
-            org.apache.xml.serialize.HTMLSerializer serializer = getHTMLSerializer(out, format);
-            serializer.serialize(dom);
+    /**
+     * Takes the scanner's output buffer and serializer for the caller's sole
+     * use. While a result on another thread has them, a new set is made.
+     */
+    private Output borrowOutput() {
+        Output output = idleOutput.getAndSet(null);
+        return output != null ? output : new Output();
+    }
 
-                    /*
-                    * Get the String out of the StringWriter and rip out the XML
-                    * declaration if the Policy says we should.
-                    */
-            final String trimmed = trim( trimmedHtml, out.getBuffer().toString() );
-
-            Callable<String> cleanHtml = new Callable<String>() {
-                public String call() throws Exception {
-                    return trimmed;
+    /**
+     * Gives a set taken by {@link #borrowOutput()} back to the scanner,
+     * unless it got another one back in the meantime.
+     */
+    private void releaseOutput(Output output) {
+        idleOutput.compareAndSet(null, output);
+    }
+
+    /**
+     * Takes the scanner's Document for the caller's sole use, as
+     * {@link #borrowOutput()} does the output.
+     */
+    private Document borrowDocument() {
+        Document document = idleDocument.getAndSet(null);
+        return document != null ? document : new DocumentImpl();
+    }
+
+    /**
+     * Gives a Document taken by {@link #borrowDocument()} back once nothing
+     * made from it is in use any more.
+     */
+    private void releaseDocument(Document document) {
+        idleDocument.compareAndSet(null, document);
+    }
+
+    /**
+     * Serializes clean fragments. A scanner lends its set to one result at
+     * a time, so they are never used by two threads at once. A buffer that
+     * grew past {@link HtmlWriter#MAX_RETAINED_CAPACITY} is let go after its
+     * fragment.
+     */
+    private final class Output {
+        private HtmlWriter writer;
+        private StringWriter out;
+        @SuppressWarnings("deprecation")
+        private org.apache.xml.serialize.HTMLSerializer serializer;
+
+        @SuppressWarnings("deprecation")
+        private void init() {
+            if (writer == null && serializer == null) {
+                org.apache.xml.serialize.OutputFormat format = getOutputFormat();
+                writer = getHtmlWriter(format);
+                if (writer == null) {
+                    out = new StringWriter();
+                    serializer = getHTMLSerializer(out, format);
                 }
-            };
+            }
+        }
 
-            /**
-             * Return the DOM object as well as string HTML.
-             */
-            results = new CleanResults(startOfScan, cleanHtml, dom, errorMessages);
+        boolean canWrite() {
+            init();
+            return writer != null;
+        }
+
+        String serialize(Marks marks, String html) throws IOException {
+            init();
+            return trim(html, writer.write(marks, html.length()));
+        }
 
-            cachedItems.add( cachedItem);
-            if(scanAttr){
-                scanAttr(html, startOfScan, parser);
+        String serialize(DocumentFragment fragment, String html) throws IOException {
+            init();
+            if (writer != null) {
+                return trim(html, writer.write(fragment, html.length()));
             }
-            return results;
+            StringBuffer buffer = out.getBuffer();
+            buffer.setLength(0);
+            try {
+                serializer.serialize(fragment);
 
+                /*
+                 * Get the String out of the StringWriter and rip out the
+                 * trailing line break if the input had none.
+                 */
+                return trim(html, buffer.toString());
+            } finally {
+                if (buffer.capacity() > HtmlWriter.MAX_RETAINED_CAPACITY) {
+                    buffer.setLength(0);
+                    buffer.trimToSize();
+                }
+            }
+        }
+    }
 
-        } catch (SAXException e) {
-            throw new ScanException(e);
+    /**
+     * The clean HTML of one scan, serialized from the fragment, or from the
+     * marks of a mark-and-emit scan, on the first call and remembered from
+     * then on. It borrows the scanner's output set only for that call.
+     */
+    private static final class LazyCleanHtml implements Callable<String> {
+        private AntiSamyDOMScanner scanner;
+        private DocumentFragment fragment;
+        private Marks marks;
+        private Document document;
+        private String html;
+        private String cleanHtml;
+
+        LazyCleanHtml(AntiSamyDOMScanner scanner, DocumentFragment fragment, String html) {
+            this.scanner = scanner;
+            this.fragment = fragment;
+            this.html = html;
         }
-        catch ( IOException e ) {
-            throw new ScanException(e);
+
+        /**
+         * @param document The scanner's Document the marked fragment is in,
+         *                 given back once the clean HTML is written.
+         */
+        LazyCleanHtml(AntiSamyDOMScanner scanner, Marks marks, Document document, String html) {
+            this.scanner = scanner;
+            this.marks = marks;
+            this.document = document;
+            this.html = html;
+        }
+
+        public synchronized String call() throws Exception {
+            if (cleanHtml == null) {
+                Output output = scanner.borrowOutput();
+                cleanHtml = marks != null ? output.serialize(marks, html) : output.serialize(fragment, html);
+                // only given back once it has finished cleanly
+                scanner.releaseOutput(output);
+                if (document != null) {
+                    scanner.releaseDocument(document);
+                }
+                scanner = null;
+                fragment = null;
+                marks = null;
+                document = null;
+                html = null;
+            }
+            return cleanHtml;
+        }
+    }
+
+    /**
+     * The Xerces serializers recurse once per element, unlike
+     * {@link HtmlWriter}. Whatever the policy lets through, they are only
+     * handed fragments that nest no deeper than the default limit, so that
+     * a deep document ends in a ScanException instead of overflowing the
+     * stack.
+     */
+    private static void checkSerializableDepth(DocumentFragment fragment) throws ScanException {
+        int depth = 0;
+        Node node = fragment.getFirstChild();
+        while (node != null) {
+            if (node.hasChildNodes()) {
+                if (++depth > Policy.DEFAULT_MAX_NESTING_DEPTH) {
+                    throw new ScanException("Too many nested tags");
+                }
+                node = node.getFirstChild();
+                continue;
+            }
+            while (node.getNextSibling() == null) {
+                node = node.getParentNode();
+                depth--;
+                if (node == fragment) {
+                    return;
+                }
+            }
+            node = node.getNextSibling();
         }
+    }
 
+    /**
+     * @return The writer clean fragments go through, or null to have them go
+     *         through {@link #getHTMLSerializer} instead, in which case
+     *         scans never mark and emit.
+     */
+    @SuppressWarnings("deprecation")
+    HtmlWriter getHtmlWriter(org.apache.xml.serialize.OutputFormat format) {
+        if ((policy.isFastSerializer() || policy.isMarkAndEmit()) && HtmlWriter.supports(format)) {
+            return new HtmlWriter(format, policy);
+        }
+        return null;
     }
 
     private boolean isBlankChar(char c){
@@ -241,59 +656,6 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         return false;
     }
 
-    private String getCleanResult(boolean padStart, boolean padEnd, String cleanVal) {
-        if (padStart) {
-            if (cleanVal.startsWith(PAD_START_SINGLE_QUOTE_STR)) {
-                cleanVal = StringUtils.stripStart(cleanVal, PAD_START_SINGLE_QUOTE_STR);
-            }else if (cleanVal.startsWith(PAD_START_QUOTE_STR)) {
-                cleanVal = StringUtils.stripStart(cleanVal, PAD_START_QUOTE_STR);
-            }
-            if (cleanVal.endsWith(PAD_START_STR_FOR_END)) {
-                cleanVal = StringUtils.stripEnd(cleanVal, PAD_START_STR_FOR_END);
-            }
-        }
-        if (padEnd && (cleanVal.endsWith(PAD_END_STR))) {
-            cleanVal = StringUtils.stripEnd(cleanVal, PAD_END_STR);
-        }
-        return cleanVal;
-    }
-
-    private void scanAttr(String html, long startOfScan, DOMFragmentParser parser){
-        try{
-            Object position = parser.getProperty(HTMLConfiguration.PROPERTY_CUSTOM_CHAR_POS);
-            if(position != null ){
-                CharPosition charPosition = (CharPosition) position;
-                Set<Integer> singleQuotePositions = charPosition.getCharPositions('\'');
-                Set<Integer> doubleQuotePositions = charPosition.getCharPositions('"');
-                Set<Integer> equalPositions = charPosition.getCharPositions('=');
-                boolean padStart = false,padEnd = false;
-                boolean previousInjection = results.getNumberOfErrors() > 0;
-                if((singleQuotePositions != null || doubleQuotePositions != null) && equalPositions != null){
-                    String rechkString = previousInjection? results.getCleanHTML(): html;
-                    if(doubleQuotePositions != null){
-                        rechkString = PAD_START_QUOTE_STR + rechkString;
-                        padStart = true;
-                    }else{
-                        rechkString = PAD_START_SINGLE_QUOTE_STR + rechkString;
-                        padStart = true;
-                    }
-                    if(!rechkString.endsWith(PAD_END_GT_STR)){
-                        rechkString += PAD_END_STR;
-                        padEnd = true;
-                    }
-                    AntiSamyDOMScanner attrScaner = new AntiSamyDOMScanner(attrPolicy);
-                    CleanResults attrScanResult =  attrScaner.scan(rechkString);
-                    if(attrScanResult.getNumberOfErrors() > 0){
-                        attrScanResult.getErrorMessages().addAll(errorMessages);
-                        results = new CleanResults(startOfScan, getCleanResult(padStart,padEnd,attrScanResult.getCleanHTML()), attrScanResult.getCleanXMLDocumentFragment(), attrScanResult.getErrorMessages());
-                    }
-                }
-            }
-        }catch (Exception ex) {
-            throw new RuntimeException(ex);
-        }
-    }
-
     static DOMFragmentParser getDomParser()
             throws SAXNotRecognizedException, SAXNotSupportedException {
         DOMFragmentParser parser = new DOMFragmentParser();
@@ -308,45 +670,272 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
             // this indicates that the patched nekohtml is not on the
             // classpath
         }
+        try {
+            // scanAttr finds quotes and equals signs with a CharIndex, so
+            // the patched nekohtml need not box their positions into sets
+            parser.setProperty(HTMLConfiguration.PROPERTY_CUSTOM_CHAR_POS, null);
+        } catch (SAXNotRecognizedException se) {
+            // the patched nekohtml is not on the classpath
+        } catch (SAXNotSupportedException se) {
+            // it goes on recording them, as it did before
+        }
         return parser;
     }
 
     /**
-     * The workhorse of the scanner. Recursively scans document elements
-     * according to the policy. This should be called implicitly through the
-     * AntiSamy.scan() method.
+     * Validates the fragment, splitting it up between threads if the input is
+     * longer than the policy's <code>parallelValidationThreshold</code>,
+     * unless the scan marks and emits.
+     */
+    private void validate(DocumentFragment fragment, int inputLength) throws ScanException {
+        int threshold = policy.getParallelValidationThreshold();
+        if (threshold > 0 && inputLength >= threshold && fragment.getFirstChild() != fragment.getLastChild()
+                && Helpers.PARALLELISM > 1 && marks == null) {
+            processChildrenInParallel(fragment);
+        } else {
+            processChildren(fragment);
+        }
+    }
+
+    /**
+     * Validates the top-level subtrees of the fragment concurrently. They are
+     * cut into runs of consecutive siblings, each moved into a Document of
+     * its own and validated by a helper scanner, so no two threads ever
+     * touch the same Document. The scanning thread and the helper threads
+     * take runs in turn until none is left; the runs then go back into the
+     * fragment and their errors into this scanner's, both in document order.
+     */
+    private void processChildrenInParallel(DocumentFragment fragment) throws ScanException {
+        List<Node> children = new ArrayList<Node>();
+        for (Node child = fragment.getFirstChild(); child != null; child = child.getNextSibling()) {
+            children.add(child);
+        }
+
+        Part[] parts = new Part[Math.min(children.size(), PARTS_PER_THREAD * Helpers.PARALLELISM)];
+        for (int i = 0, from = 0; i < parts.length; i++) {
+            int to = (int) ((long) children.size() * (i + 1) / parts.length);
+            parts[i] = new Part(new AntiSamyDOMScanner(this), children.subList(from, to));
+            from = to;
+        }
+
+        Parts takeParts = new Parts(parts);
+        List<Future<Void>> helpers = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 1; i < Math.min(parts.length, Helpers.PARALLELISM); i++) {
+                helpers.add(Helpers.POOL.submit(takeParts));
+            }
+            takeParts.call();
+            takeParts.await();
+            /*
+             * Every part is done by now. A helper still in the queue, its
+             * pool busy with other scans, has nothing left to take and is
+             * dropped rather than waited for; one that has finished may
+             * have failed.
+             */
+            for (Future<Void> helper : helpers) {
+                if (!helper.cancel(false)) {
+                    helper.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ScanException(e);
+        } catch (ExecutionException e) {
+            throw ThreadUtil.scanFailure(e);
+        } finally {
+            takeParts.stop();
+            for (Future<Void> helper : helpers) {
+                helper.cancel(false);
+            }
+        }
+
+        for (Part part : parts) {
+            part.moveTo(fragment, errorMessages);
+        }
+    }
+
+    /**
+     * Runs of top-level subtrees per helper thread, so that threads that
+     * draw cheap runs can go on with others.
+     */
+    private static final int PARTS_PER_THREAD = 4;
+
+    /**
+     * Consecutive top-level subtrees, held in a fragment of their helper's
+     * own Document while they are validated.
+     */
+    private static final class Part {
+        private final AntiSamyDOMScanner helper;
+        private final DocumentFragment nodes;
+
+        Part(AntiSamyDOMScanner helper, List<Node> children) {
+            this.helper = helper;
+            Document document = new DocumentImpl();
+            this.nodes = document.createDocumentFragment();
+            for (Node child : children) {
+                nodes.appendChild(document.adoptNode(child));
+            }
+        }
+
+        void validate() throws ScanException {
+            helper.processChildren(nodes);
+        }
+
+        void moveTo(DocumentFragment fragment, List<String> errors) {
+            Document owner = fragment.getOwnerDocument();
+            for (Node child = nodes.getFirstChild(); child != null; child = nodes.getFirstChild()) {
+                fragment.appendChild(owner.adoptNode(child));
+            }
+            errors.addAll(helper.errorMessages);
+        }
+    }
+
+    /**
+     * Hands out the parts of one document to whichever thread asks next, and
+     * keeps count of the threads validating one.
+     */
+    private static final class Parts implements Callable<Void> {
+        private final Part[] parts;
+        private final AtomicInteger next = new AtomicInteger();
+        private int running;
+
+        Parts(Part[] parts) {
+            this.parts = parts;
+        }
+
+        public Void call() throws ScanException {
+            synchronized (this) {
+                running++;
+            }
+            try {
+                for (int i = next.getAndIncrement(); i < parts.length; i = next.getAndIncrement()) {
+                    parts[i].validate();
+                }
+                return null;
+            } finally {
+                synchronized (this) {
+                    running--;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits for the threads still validating a part once there are none
+         * left to take. A thread that asks after that gets nothing.
+         */
+        synchronized void await() throws InterruptedException {
+            while (running > 0) {
+                wait();
+            }
+        }
+
+        void stop() {
+            next.set(parts.length);
+        }
+    }
+
+    /**
+     * The daemon threads that help validate large documents, created on
+     * first use.
+     */
+    private static final class Helpers {
+        static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+        static final ExecutorService POOL = Executors.newFixedThreadPool(Math.max(1, PARALLELISM - 1),
+                ThreadUtil.daemonThreads("antisamy-validator-"));
+    }
+
+    /**
+     * Validates the children of <code>parent</code>, and everything below
+     * them, according to the policy. This should be called implicitly
+     * through the AntiSamy.scan() method.
+     * <p/>
+     * The tree is walked with an explicit stack of {@link Frame}s rather than
+     * by recursion, so how deep a document may nest is up to the policy's
+     * <code>maxNestingDepth</code> and not to the size of the thread stack.
+     * <p/>
+     * A mark-and-emit scan goes through the same steps, but every change to
+     * the tree, and every look at what the changes left, goes to its
+     * {@link Marks} instead; the methods below take both the node and its
+     * number for that reason.
+     *
+     * @param parent
+     *            The node whose children to validate.
+     */
+    private void processChildren(Node parent) throws ScanException {
+        stack.clear();
+        emptied.clear();
+        stack.add(new Frame(firstChild(parent, Marks.ROOT), 0, AFTER_NOTHING, null, Marks.ROOT, null));
+        try {
+            walk();
+            pruneEmptied();
+        } finally {
+            stack.clear();
+            emptied.clear();
+        }
+    }
+
+    private void walk() throws ScanException {
+        while (!stack.isEmpty()) {
+            Frame frame = stack.get(stack.size() - 1);
+
+            if (frame.next != null) {
+                /*
+                 * Step past the node before validating it: it may be removed,
+                 * or replaced by its children once they have been validated,
+                 * and neither should be visited again.
+                 */
+                Node node = frame.next;
+                frame.next = node.getNextSibling();
+                validateTag(node, marks != null ? marks.visit(node, frame.mark) : 0, frame.depth);
+            } else {
+                stack.remove(stack.size() - 1);
+                finish(frame);
+            }
+        }
+    }
+
+    /**
+     * Validates one node. If the node is an element whose children need
+     * validating first, this pushes a frame for them and leaves the rest of
+     * the work to {@link #finish(Frame)}.
      *
      * @param node
      *            The node to validate.
+     * @param mark
+     *            The number of the node in a mark-and-emit scan.
+     * @param parentDepth
+     *            How deep the node's parent is nested.
      */
-    private void recursiveValidateTag(final Node node, int currentStackDepth) throws ScanException {
+    private void validateTag(final Node node, int mark, int parentDepth) throws ScanException {
 
-        currentStackDepth++;
+        int depth = parentDepth + 1;
 
-        if(currentStackDepth > maxDepth) {
+        if (maxNestingDepth > 0 && depth > maxNestingDepth) {
             throw new ScanException("Too many nested tags");
         }
 
+        checkDeadline();
+
         if (node instanceof Comment) {
-            processCommentNode(node);
+            processCommentNode(node, mark);
             return;
         }
 
         boolean isElement = node instanceof Element;
-        NodeList eleChildNodes = node.getChildNodes();
-        if (isElement && eleChildNodes.getLength() == 0 && !policy.isAllowUnknownTag()) {
-            if (removeDisallowedEmpty(node)){
+        if (isElement && !node.hasChildNodes() && !policy.isAllowUnknownTag()) {
+            if (removeDisallowedEmpty(node, mark)){
                 return;
             }
         }
 
         if (node instanceof Text && Node.CDATA_SECTION_NODE == node.getNodeType()) {
-            stripCData(node);
+            stripCData(node, mark);
             return;
         }
 
         if (node instanceof ProcessingInstruction) {
-            removePI(node);
+            removePI(node, mark);
         }
 
         if (!isElement) {
@@ -372,22 +961,73 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         }
 
         if ((tagRule == null && policy.isEncodeUnknownTag()) || (tagRule != null && tagRule.isAction( "encode"))) {
-            encodeTag(currentStackDepth, ele, tagName, eleChildNodes);
+            encodeTag(depth, ele, mark, tagName);
         }else if(tagRule==null && policy.isAllowUnknownTag()){
-            actionValidate(currentStackDepth, ele, tagName, eleChildNodes);
+            validateAttributes(new Validation(depth, ele, mark, tagName, tagNameLowerCase, null, false, null), 0);
         } else if (tagRule == null || tagRule.isAction( Policy.ACTION_FILTER)) {
-            actionFilter(currentStackDepth, ele, tagName, tagRule, eleChildNodes);
+            actionFilter(depth, ele, mark, tagName, tagRule);
         } else if (tagRule.isAction( Policy.ACTION_VALIDATE)) {
-            actionValidate(currentStackDepth, ele, parentNode, tagName, tagNameLowerCase, tagRule, masqueradingParam, embedTag, eleChildNodes);
+            actionValidate(depth, ele, mark, parentNode, tagName, tagNameLowerCase, tagRule, masqueradingParam, embedTag);
         } else if (tagRule.isAction( Policy.ACTION_TRUNCATE)) {
-            actionTruncate(ele, tagName, eleChildNodes);
+            actionTruncate(ele, mark, tagName);
         } else {
             /*
              * If we reached this that means that the tag's action is "remove",
              * which means to remove the tag (including its contents).
              */
             addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
-            removeNode(ele);
+            removeNode(ele, mark);
+        }
+    }
+
+    /**
+     * Does what is left of an element's validation once its children have
+     * been validated.
+     */
+    private void finish(Frame frame) throws ScanException {
+        Validation validation = frame.validation;
+        switch (frame.after) {
+            case AFTER_ENCODE:
+                /*
+                 * Transform the tag to text, HTML-encode it and promote the
+                 * children. The tag will be kept in the fragment as one or two text
+                 * Nodes located before and after the children; representing how the
+                 * tag used to wrap them.
+                 */
+                encodeAndPromoteChildren(frame.ele, frame.mark);
+                break;
+            case AFTER_FILTER:
+                promoteChildren(frame.ele, frame.mark);
+                break;
+            case AFTER_VALIDATE:
+                /*
+                 * If we have been dealing with a <param> that has been converted to
+                 * an <embed>, convert it back
+                 */
+                String nameValue = validation.paramName;
+                if (nameValue != null) {
+                    Element ele = validation.ele;
+                    int mark = validation.mark;
+                    String valueValue = getAttribute(ele, mark, nameValue);
+                    setAttribute(ele, mark, "name", nameValue);
+                    setAttribute(ele, mark, "value", valueValue);
+                    removeAttribute(ele, mark, nameValue);
+                }
+                break;
+            case AFTER_ATTRIBUTE_FILTER:
+                promoteChildren(validation.ele, validation.mark);
+                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, new Object[]{validation.tagName,
+                        HTMLEntityEncoder.htmlEntityEncode(validation.attributeName), HTMLEntityEncoder.htmlEntityEncode(validation.attributeValue)});
+                validateAttributes(validation, validation.attributeIndex + 1);
+                break;
+            case AFTER_ATTRIBUTE_ENCODE:
+                encodeAndPromoteChildren(validation.ele, validation.mark);
+                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_ENCODE, new Object[]{validation.tagName,
+                        HTMLEntityEncoder.htmlEntityEncode(validation.attributeName), HTMLEntityEncoder.htmlEntityEncode(validation.attributeValue)});
+                validateAttributes(validation, validation.attributeIndex + 1);
+                break;
+            default:
+                break;
         }
     }
 
@@ -400,44 +1040,35 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         return false;
     }
 
-    private void encodeTag(int currentStackDepth, Element ele, String tagName, NodeList eleChildNodes) throws ScanException {
+    private void encodeTag(int depth, Element ele, int mark, String tagName) {
         addError(ErrorMessageUtil.ERROR_TAG_ENCODED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
-        processChildren(eleChildNodes, currentStackDepth);
-
-        /*
-    * Transform the tag to text, HTML-encode it and promote the
-    * children. The tag will be kept in the fragment as one or two text
-    * Nodes located before and after the children; representing how the
-    * tag used to wrap them.
-    */
-
-        encodeAndPromoteChildren(ele);
+        stack.add(new Frame(firstChild(ele, mark), depth, AFTER_ENCODE, ele, mark, null));
     }
 
-    private void actionFilter(int currentStackDepth, Element ele, String tagName, Tag tag, NodeList eleChildNodes) throws ScanException {
+    private void actionFilter(int depth, Element ele, int mark, String tagName, Tag tag) {
         if (tag == null) {
             addError(ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
         } else {
             addError(ErrorMessageUtil.ERROR_TAG_FILTERED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
         }
 
-        processChildren(eleChildNodes, currentStackDepth);
-        promoteChildren(ele);
+        stack.add(new Frame(firstChild(ele, mark), depth, AFTER_FILTER, ele, mark, null));
     }
 
-    private void actionValidate(int currentStackDepth, Element ele, Node parentNode, String tagName, String tagNameLowerCase, Tag tag, boolean masqueradingParam, Tag embedTag, NodeList eleChildNodes) throws ScanException {
+    private void actionValidate(int depth, Element ele, int mark, Node parentNode, String tagName, String tagNameLowerCase, Tag tag, boolean masqueradingParam, Tag embedTag) throws ScanException {
         /*
     * If doing <param> as <embed>, now is the time to convert it.
     */
-        String nameValue = null;
+        String paramName = null;
         if (masqueradingParam) {
-            nameValue = ele.getAttribute("name");
+            String nameValue = getAttribute(ele, mark, "name");
             if (nameValue != null && !"".equals(nameValue)) {
-                String valueValue = ele.getAttribute("value");
-                ele.setAttribute(nameValue, valueValue);
-                ele.removeAttribute("name");
-                ele.removeAttribute("value");
+                String valueValue = getAttribute(ele, mark, "value");
+                setAttribute(ele, mark, nameValue, valueValue);
+                removeAttribute(ele, mark, "name");
+                removeAttribute(ele, mark, "value");
                 tag = embedTag;
+                paramName = nameValue;
             }
         }
 
@@ -448,9 +1079,17 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
     */
 
         if ("style".equals(tagNameLowerCase) && policy.getStyleTag() != null) {
-            if (processStyleTag(ele, parentNode)) return;
+            if (processStyleTag(ele, mark, parentNode)) return;
         }
 
+        validateAttributes(new Validation(depth, ele, mark, tagName, tagNameLowerCase, tag, true, paramName), 0);
+    }
+
+    /**
+     * Validates the element's attributes from <code>from</code> on and, if
+     * the tag is still there afterwards, pushes a frame for its children.
+     */
+    private void validateAttributes(Validation validation, int from) throws ScanException {
         /*
     * Go through the attributes in the tainted tag and validate them
     * against the values we have for them.
@@ -459,27 +1098,29 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
     * attribute.
     */
 
-        if (processAttributes(ele, tagName, tag, currentStackDepth)) return; // can't process any more if we
-
-        if (isNofollowAnchors && "a".equals(tagNameLowerCase)) {
-            ele.setAttribute("rel", "nofollow");
+        int outcome = processAttributes(validation, from);
+        if (outcome == TAG_REMOVED) {
+            return; // can't process any more if we
+        }
+        Element ele = validation.ele;
+        int mark = validation.mark;
+        if (outcome == CHILDREN_FIRST) {
+            stack.add(new Frame(firstChild(ele, mark), validation.depth,
+                    validation.encode ? AFTER_ATTRIBUTE_ENCODE : AFTER_ATTRIBUTE_FILTER, ele, mark, validation));
+            return;
         }
 
-        processChildren(eleChildNodes, currentStackDepth);
-
-        /*
-    * If we have been dealing with a <param> that has been converted to
-    * an <embed>, convert it back
-    */
-        if (masqueradingParam && nameValue != null && !"".equals(nameValue)) {
-            String valueValue = ele.getAttribute(nameValue);
-            ele.setAttribute("name", nameValue);
-            ele.setAttribute("value", valueValue);
-            ele.removeAttribute(nameValue);
+        if (validation.knownTag) {
+            if (isNofollowAnchors && "a".equals(validation.tagNameLowerCase)) {
+                setAttribute(ele, mark, "rel", "nofollow");
+            }
+            stack.add(new Frame(firstChild(ele, mark), validation.depth, AFTER_VALIDATE, ele, mark, validation));
+        } else {
+            stack.add(new Frame(firstChild(ele, mark), validation.depth, AFTER_NOTHING, ele, mark, validation));
         }
     }
 
-    private boolean processStyleTag(Element ele, Node parentNode) {
+    private boolean processStyleTag(Element ele, int mark, Node parentNode) throws ScanException {
         /*
 * Invoke the css parser on this element.
 */
@@ -490,6 +1131,7 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         }else{
             styleScanner = new CssScanner(policy, messages);
         }
+        styleScanner.setDeadline(deadline, maxScanTime);
 
         try {
 
@@ -514,11 +1156,11 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
                 if (cleanHTML == null || cleanHTML.equals("")) {
 
-                    firstChild.setNodeValue("/* */");
+                    setStyleSheet(firstChild, mark, "/* */");
 
                 } else {
 
-                    firstChild.setNodeValue(cleanHTML);
+                    setStyleSheet(firstChild, mark, cleanHTML);
 
                 }
 
@@ -527,13 +1169,17 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         } catch (DOMException e) {
 
             addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(ele.getFirstChild().getNodeValue())});
-            parentNode.removeChild(ele);
+            detach(ele, mark, parentNode);
             return true;
 
+        } catch (ScanTimeoutException e) {
+
+            throw e;
+
         } catch (ScanException e) {
 
             addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(ele.getFirstChild().getNodeValue())});
-            parentNode.removeChild(ele);
+            detach(ele, mark, parentNode);
             return true;
 
             /*
@@ -543,7 +1189,7 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         } catch (ParseException e) {
 
             addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(ele.getFirstChild().getNodeValue())});
-            parentNode.removeChild(ele);
+            detach(ele, mark, parentNode);
             return true;
 
             /*
@@ -552,26 +1198,33 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         } catch (NumberFormatException e) {
 
             addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(ele.getFirstChild().getNodeValue())});
-            parentNode.removeChild(ele);
+            detach(ele, mark, parentNode);
             return true;
         }
         return false;
     }
 
-    private void actionValidate(int currentStackDepth,Element ele, String tagName, NodeList eleChildNodes) throws ScanException {
-
-        if (processAttributes(ele, tagName, null, currentStackDepth)) return;
 
-        processChildren(eleChildNodes,currentStackDepth);
-    }
-
-    private void actionTruncate(Element ele, String tagName, NodeList eleChildNodes) {
+    private void actionTruncate(Element ele, int mark, String tagName) {
         /*
     * Remove all attributes. This is for tags like i, b, u, etc. Purely
     * formatting without any need for attributes. It also removes any
     * children.
     */
 
+        if (marks != null) {
+            for (int i = 0; i < marks.attributeCount(mark); i++) {
+                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(marks.attributeName(mark, i))});
+            }
+            for (Node child = ele.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeType() != Node.TEXT_NODE) {
+                    addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(child.getNodeName())});
+                }
+            }
+            marks.truncate(mark);
+            return;
+        }
+
         NamedNodeMap nnmap = ele.getAttributes();
 
         while (nnmap.getLength() > 0) {
@@ -582,45 +1235,49 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
         }
 
-        int i = 0;
-        int j = 0;
-        int length = eleChildNodes.getLength();
-
-        while (i < length) {
+        Node next;
+        for (Node child = ele.getFirstChild(); child != null; child = next) {
 
-            Node nodeToRemove = eleChildNodes.item(j);
+            next = child.getNextSibling();
 
-            if (nodeToRemove.getNodeType() != Node.TEXT_NODE) {
-                addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(nodeToRemove.getNodeName())});
-                ele.removeChild(nodeToRemove);
-            } else {
-                j++;
+            if (child.getNodeType() != Node.TEXT_NODE) {
+                addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(child.getNodeName())});
+                ele.removeChild(child);
             }
-
-            i++;
         }
     }
 
-    private boolean processAttributes(Element ele, String tagName, Tag tag, int currentStackDepth) throws ScanException {
-        Node attribute;
-
-        NamedNodeMap attributes = ele.getAttributes();
-        for (int currentAttributeIndex = 0; currentAttributeIndex < attributes.getLength(); currentAttributeIndex++) {
+    /**
+     * @return <code>ATTRIBUTES_DONE</code> once every attribute from
+     *         <code>from</code> on has been handled, <code>TAG_REMOVED</code>
+     *         if the tag has gone, or <code>CHILDREN_FIRST</code> when an
+     *         invalid attribute filters or encodes the tag, which needs its
+     *         children validated first. The attribute is then recorded in
+     *         <code>validation</code>.
+     */
+    private int processAttributes(Validation validation, int from) throws ScanException {
+        Element ele = validation.ele;
+        int mark = validation.mark;
+        String tagName = validation.tagName;
+        Tag tag = validation.tag;
 
-            attribute = attributes.item(currentAttributeIndex);
+        for (int currentAttributeIndex = from; currentAttributeIndex < attributeCount(ele, mark); currentAttributeIndex++) {
 
-            String name = attribute.getNodeName();
-            String value = attribute.getNodeValue();
+            String name = attributeName(ele, mark, currentAttributeIndex);
+            String value = attributeValue(ele, mark, currentAttributeIndex);
 
             Attribute attr = tag != null? tag.getAttributeByName(name.toLowerCase()): null;
 
             /**
              * If we there isn't an attribute by that name in our policy
-             * check to see if it's a globally defined attribute. Validate
-             * against that if so.
+             * check to see if it's a globally defined attribute, or a
+             * dynamic one if those are allowed. Validate against that if so.
              */
             if (attr == null) {
                 attr = policy.getGlobalAttributeByName(name);
+                if (attr == null && policy.isAllowDynamicAttributes()) {
+                    attr = policy.getDynamicAttributeByName(name.toLowerCase());
+                }
             }
 
             boolean isAttributeValid = false;
@@ -635,12 +1292,13 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
                  * Invoke the CSS parser on this element.
                  */
                 CssScanner styleScanner = new CssScanner(policy, messages);
+                styleScanner.setDeadline(deadline, maxScanTime);
 
                 try {
 
                     CleanResults cr = styleScanner.scanInlineStyle(value, tagName, policy.getMaxInputSize());
 
-                    attribute.setNodeValue(cr.getCleanHTML());
+                    setAttributeValue(ele, mark, currentAttributeIndex, cr.getCleanHTML());
 
                     List<String> cssScanErrorMessages = cr.getErrorMessages();
 
@@ -650,14 +1308,18 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
                     addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(ele.getNodeValue())});
 
-                    ele.removeAttribute(attribute.getNodeName());
+                    removeAttribute(ele, mark, name);
                     currentAttributeIndex--;
 
+                } catch (ScanTimeoutException e) {
+
+                    throw e;
+
                 } catch (ScanException e) {
 
                     addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(ele.getNodeValue())});
 
-                    ele.removeAttribute(attribute.getNodeName());
+                    removeAttribute(ele, mark, name);
                     currentAttributeIndex--;
                 }
 
@@ -689,11 +1351,11 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
                              * Remove the tag and its contents.
                              */
 
-                            removeNode(ele);
+                            removeNode(ele, mark);
 
                             addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID_REMOVED,
                                     new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
-                            return true;
+                            return TAG_REMOVED;
 
                         } else if ("filterTag".equals(onInvalidAction)) {
 
@@ -702,11 +1364,8 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
                              * tag.
                              */
 
-                            processChildren(ele, currentStackDepth);
-
-                            promoteChildren(ele);
-
-                            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                            validation.pendingAttribute(currentAttributeIndex, name, value, false);
+                            return CHILDREN_FIRST;
 
                         } else if ("encodeTag".equals(onInvalidAction)) {
 
@@ -715,11 +1374,8 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
                              * tag.
                              */
 
-                            processChildren(ele, currentStackDepth);
-
-                            encodeAndPromoteChildren(ele);
-
-                            addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_ENCODE, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                            validation.pendingAttribute(currentAttributeIndex, name, value, true);
+                            return CHILDREN_FIRST;
 
                         } else {
 
@@ -727,14 +1383,14 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
                              * onInvalidAction = "removeAttribute"
                              */
 
-                            ele.removeAttribute(attribute.getNodeName());
+                            removeAttribute(ele, mark, name);
 
                             currentAttributeIndex--;
 
                             addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
 
                             if ("removeTag".equals(onInvalidAction) || "filterTag".equals(onInvalidAction)) {
-                                return true;
+                                return TAG_REMOVED;
                                 // remove/filter the tag
                             }
 
@@ -742,77 +1398,69 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
 
                     }
 
-                } else if(!policy.isAllowUnknownAttributes()){
-                    attr = policy.getEventAttributeByName(name.toLowerCase());
+                } else if (policy.isUnknownAttributeRemoved(name.toLowerCase())) {
                     /*
                      * the attribute they specified isn't in our policy
                      * - remove it (whitelisting!)
                      */
-                    if(attr != null){
-                        addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                    addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
 
-                        ele.removeAttribute(attribute.getNodeName());
-
-                        currentAttributeIndex--;
-                    }
+                    removeAttribute(ele, mark, name);
 
+                    currentAttributeIndex--;
 
                 } // end if attribute is or is not found in policy file
 
             } // end while loop through attributes
 
         } // loop through each attribute
-        return false;
-    }
-
-    private void processChildren(Node ele, int currentStackDepth) throws ScanException {
-        processChildren(ele.getChildNodes(), currentStackDepth);
-    }
-
-    private void processChildren(NodeList childNodes, int currentStackDepth ) throws ScanException {
-        Node tmp;
-        for (int i = 0; i < childNodes.getLength(); i++) {
-
-            tmp = childNodes.item(i);
-
-            recursiveValidateTag(tmp, currentStackDepth);
-
-            /*
-             * This indicates the node was removed/failed validation.
-             */
-            if (tmp.getParentNode() == null) {
-                i--;
-            }
-        }
+        return ATTRIBUTES_DONE;
     }
 
-    private void removePI(Node node) {
+    private void removePI(Node node, int mark) {
         addError(ErrorMessageUtil.ERROR_PI_FOUND, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getTextContent())});
-        removeNode(node);
+        if (marks != null) {
+            marks.remove(mark);
+            return;
+        }
+        removeNode(node, mark);
         node.getParentNode().removeChild(node);
     }
 
-    private void stripCData(Node node) {
+    /**
+     * Turns the CDATA section into text. A mark-and-emit scan writes every
+     * CDATA section it visits as text, so it only has to report it.
+     */
+    private void stripCData(Node node, int mark) {
+        if (marks != null) {
+            addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{HTMLEntityEncoder.htmlEntityEncode(marks.value(mark))});
+            return;
+        }
         addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getTextContent())});
-        Node text = document.createTextNode(node.getTextContent());
+        Node text = node.getOwnerDocument().createTextNode(node.getTextContent());
         node.getParentNode().insertBefore(text, node);
         node.getParentNode().removeChild(node);
     }
 
-    private void processCommentNode(Node node) {
+    private void processCommentNode(Node node, int mark) {
         if (!policy.isPreserveComments()) {
-            node.getParentNode().removeChild(node);
+            detach(node, mark, node.getParentNode());
         } else {
             String value = ((Comment) node).getData();
             // Strip conditional directives regardless of the
             // PRESERVE_COMMENTS setting.
             if (value != null) {
-                ((Comment) node).setData(conditionalDirectives.matcher(value).replaceAll(""));
+                String data = conditionalDirectives.matcher(value).replaceAll("");
+                if (marks != null) {
+                    marks.setValue(mark, data);
+                } else {
+                    ((Comment) node).setData(data);
+                }
             }
         }
     }
 
-    private boolean removeDisallowedEmpty(Node node){
+    private boolean removeDisallowedEmpty(Node node, int mark){
         String tagName = node.getNodeName();
 
         if (!isAllowedEmptyTag(tagName)) {
@@ -820,23 +1468,72 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
             * Wasn't in the list of allowed elements, so we'll nuke it.
             */
             addError(ErrorMessageUtil.ERROR_TAG_EMPTY, new Object[]{HTMLEntityEncoder.htmlEntityEncode(node.getNodeName())});
-            removeNode(node);
+            removeNode(node, mark);
             return true;
         }
         return false;
     }
 
-    private void removeNode(Node node) {
+    /**
+     * Removes the node. If that leaves its parent empty, the parent is
+     * remembered for {@link #pruneEmptied()} rather than removed right away,
+     * since its own validation may not be done yet.
+     */
+    private void removeNode(Node node, int mark) {
+        if (marks != null) {
+            marks.remove(mark);
+            return;
+        }
 		Node parent = node.getParentNode();
+		if (parent == null) {
+			return; // already gone
+		}
 		parent.removeChild(node);
-		String tagName = parent.getNodeName();
-		if(	parent instanceof Element &&
-			parent.getChildNodes().getLength() == 0 &&
-			!isAllowedEmptyTag(tagName)) {
-			removeNode(parent);
+		if (parent instanceof Element && !parent.hasChildNodes()) {
+			emptied.add(parent);
 		}
 	}
 
+    /**
+     * Removes the elements that were left empty by removals during the walk,
+     * and then every ancestor that this leaves empty in turn, unless the
+     * policy allows the tag to be empty. Elements are remembered bottom-up,
+     * so each is looked at and removed at most once.
+     */
+    private void pruneEmptied() {
+        if (marks != null) {
+            pruneEmptiedMarks();
+            return;
+        }
+        for (int i = 0; i < emptied.size(); i++) {
+            Node node = emptied.get(i);
+            Node parent = node.getParentNode();
+            while (parent != null &&
+                    node instanceof Element &&
+                    !node.hasChildNodes() &&
+                    !isAllowedEmptyTag(node.getNodeName())) {
+                parent.removeChild(node);
+                node = parent;
+                parent = node.getParentNode();
+            }
+        }
+    }
+
+    private void pruneEmptiedMarks() {
+        for (int i = 0; i < marks.emptiedCount(); i++) {
+            int node = marks.emptied(i);
+            int parent = marks.parent(node);
+            while (parent != Marks.NONE &&
+                    marks.node(node) instanceof Element &&
+                    !marks.hasChildNodes(node) &&
+                    !isAllowedEmptyTag(marks.node(node).getNodeName())) {
+                marks.detach(node);
+                node = parent;
+                parent = marks.parent(node);
+            }
+        }
+    }
+
 	private boolean isAllowedEmptyTag(String tagName) {
         return "head".equals(tagName ) || policy.getAllowedEmptyTags().matches(tagName);
 	}
@@ -852,21 +1549,21 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
      * @param ele
      *            The Element we want to filter.
      */
-    private void promoteChildren(Element ele) {
-        promoteChildren(ele, ele.getChildNodes());
-    }
+    private void promoteChildren(Element ele, int mark) {
 
-    private void promoteChildren(Element ele, NodeList eleChildNodes) {
+        if (marks != null) {
+            marks.promoteChildren(mark);
+            return;
+        }
 
         Node parent = ele.getParentNode();
 
-        while (eleChildNodes.getLength() > 0) {
-            Node node = ele.removeChild(eleChildNodes.item(0));
+        for (Node node = ele.getFirstChild(); node != null; node = ele.getFirstChild()) {
             parent.insertBefore(node, ele);
         }
 
         if (parent != null){
-            removeNode(ele);
+            removeNode(ele, mark);
         }
     }
 
@@ -906,16 +1603,21 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
      * @param ele
      *            Element to be encoded
      */
-    private void encodeAndPromoteChildren(Element ele) {
+    private void encodeAndPromoteChildren(Element ele, int mark) {
+        if (marks != null) {
+            marks.encodeAndPromoteChildren(mark, toString(ele, mark),
+                    marks.hasChildNodes(mark) ? "</" + ele.getTagName() + ">" : null);
+            return;
+        }
         Node parent = ele.getParentNode();
         String tagName = ele.getTagName();
-        Node openingTag = parent.getOwnerDocument().createTextNode(toString(ele));
+        Node openingTag = parent.getOwnerDocument().createTextNode(toString(ele, mark));
         parent.insertBefore(openingTag, ele);
         if (ele.hasChildNodes()) {
             Node closingTag = parent.getOwnerDocument().createTextNode("</" + tagName + ">");
             parent.insertBefore(closingTag, ele.getNextSibling());
         }
-        promoteChildren(ele);
+        promoteChildren(ele, mark);
     }
 
     /**
@@ -923,17 +1625,15 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
      *
      * @param ele
      *            Element to be converted
+     * @param mark
+     *            The number of the element in a mark-and-emit scan
      * @return String representation of the element
      */
-    private String toString(Element ele) {
+    private String toString(Element ele, int mark) {
         StringBuilder eleAsString = new StringBuilder("<" + ele.getNodeName());
-        NamedNodeMap attributes = ele.getAttributes();
-        Node attribute;
-        for (int i = 0; i < attributes.getLength(); i++) {
-            attribute = attributes.item(i);
-
-            String name = attribute.getNodeName();
-            String value = attribute.getNodeValue();
+        for (int i = 0; i < attributeCount(ele, mark); i++) {
+            String name = attributeName(ele, mark, i);
+            String value = attributeValue(ele, mark, i);
 
             eleAsString.append(" ");
             eleAsString.append(HTMLEntityEncoder.htmlEntityEncode(name));
@@ -941,7 +1641,7 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
             eleAsString.append(HTMLEntityEncoder.htmlEntityEncode(value));
             eleAsString.append("\"");
         }
-        if (ele.hasChildNodes()) {
+        if (marks != null ? marks.hasChildNodes(mark) : ele.hasChildNodes()) {
             eleAsString.append(">");
         } else {
             eleAsString.append("/>");
@@ -949,6 +1649,78 @@ public class AntiSamyDOMScanner extends AbstractAntiSamyScanner {
         return eleAsString.toString();
     }
 
+    /*
+     * Where a mark-and-emit scan and one that changes the tree in place part
+     * ways. Each takes the node and its number, and uses whichever applies.
+     */
+
+    /**
+     * @return The first child of the node to validate, or null if there is
+     *         none left.
+     */
+    private Node firstChild(Node node, int mark) {
+        return marks != null ? marks.firstChild(mark) : node.getFirstChild();
+    }
+
+    /**
+     * Removes the node without pruning its parent should it be left empty.
+     */
+    private void detach(Node node, int mark, Node parent) {
+        if (marks != null) {
+            marks.detach(mark);
+        } else {
+            parent.removeChild(node);
+        }
+    }
+
+    private void setStyleSheet(Node firstChild, int mark, String styleSheet) {
+        if (marks != null) {
+            marks.setStyleSheet(mark, styleSheet);
+        } else {
+            firstChild.setNodeValue(styleSheet);
+        }
+    }
+
+    private int attributeCount(Element ele, int mark) {
+        return marks != null ? marks.attributeCount(mark) : ele.getAttributes().getLength();
+    }
+
+    private String attributeName(Element ele, int mark, int index) {
+        return marks != null ? marks.attributeName(mark, index) : ele.getAttributes().item(index).getNodeName();
+    }
+
+    private String attributeValue(Element ele, int mark, int index) {
+        return marks != null ? marks.attributeValue(mark, index) : ele.getAttributes().item(index).getNodeValue();
+    }
+
+    private void setAttributeValue(Element ele, int mark, int index, String value) {
+        if (marks != null) {
+            marks.setAttributeValue(mark, index, value);
+        } else {
+            ele.getAttributes().item(index).setNodeValue(value);
+        }
+    }
+
+    private String getAttribute(Element ele, int mark, String name) {
+        return marks != null ? marks.getAttribute(mark, name) : ele.getAttribute(name);
+    }
+
+    private void setAttribute(Element ele, int mark, String name, String value) {
+        if (marks != null) {
+            marks.setAttribute(mark, name, value);
+        } else {
+            ele.setAttribute(name, value);
+        }
+    }
+
+    private void removeAttribute(Element ele, int mark, String name) {
+        if (marks != null) {
+            marks.removeAttribute(mark, name);
+        } else {
+            ele.removeAttribute(name);
+        }
+    }
+
     public CleanResults getResults() {
         return results;
     }
@@ -24,41 +24,45 @@
 
 package org.owasp.validator.html.scan;
 
+import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.sax.SAXResult;
-import javax.xml.transform.sax.SAXSource;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
+import org.apache.xerces.xni.XNIException;
 import org.apache.xerces.xni.parser.XMLDocumentFilter;
+import org.cyberneko.html.HTMLConfiguration;
 import org.cyberneko.html.parsers.SAXParser;
 import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanTimeoutException;
 import org.owasp.validator.html.util.ErrorMessageUtil;
+import org.owasp.validator.html.util.ObjectPool;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
 import org.xml.sax.SAXNotRecognizedException;
 import org.xml.sax.SAXNotSupportedException;
 
 public class AntiSamySAXScanner extends AbstractAntiSamyScanner {
 
-    private static final Queue<CachedItem> cachedItems = new ConcurrentLinkedQueue<CachedItem>();
+    private static final ObjectPool<CachedItem> cachedItems = new ObjectPool<CachedItem>(
+            new ObjectPool.Factory<CachedItem>() {
+                public CachedItem create() {
+                    return new CachedItem(getParser(), new MagicSAXFilter(messages));
+                }
+            }, DEFAULT_POOL_MAX_IDLE, false);
 
-    private static final TransformerFactory sTransformerFactory = TransformerFactory.newInstance();
+    private static final String LEXICAL_HANDLER = "http://xml.org/sax/properties/lexical-handler";
 
     static class CachedItem {
-        private final Transformer transformer;
         private final SAXParser saxParser;
         private final MagicSAXFilter magicSAXFilter;
+        private final CharIndex attributeChars = new CharIndex('\'', '"', '=');
 
-        CachedItem(Transformer transformer, SAXParser saxParser, MagicSAXFilter magicSAXFilter)  {
-            this.transformer = transformer;
+        CachedItem(SAXParser saxParser, MagicSAXFilter magicSAXFilter)  {
             this.saxParser = saxParser;
             this.magicSAXFilter = magicSAXFilter;
             XMLDocumentFilter[] filters = { magicSAXFilter };
@@ -81,87 +85,284 @@ public class AntiSamySAXScanner extends AbstractAntiSamyScanner {
 	}
 
 	public CleanResults scan(String html) throws ScanException {
+		return scan(html, false);
+	}
+
+	/**
+	 * Scans the given HTML. With <code>scanAttr</code>, it is also checked
+	 * for what would break out of a quoted attribute value, as the DOM
+	 * engine does.
+	 */
+	public CleanResults scan(String html, boolean scanAttr) throws ScanException {
 
 		if (html == null) {
 			throw new ScanException(new NullPointerException("Null input"));
 		}
 
-		int maxInputSize = policy.getMaxInputSize();
-
-		if (html.length() > maxInputSize) {
-			addError(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[] {html.length(), maxInputSize});
-			throw new ScanException(errorMessages.get(0));
-		}
-		
+		CachedItem cachedItem = borrowCachedItem();
 		try {
-			
+
 			StringWriter out = new StringWriter();
 
-            CachedItem cachedItem = cachedItems.poll();
-            if (cachedItem == null){
-                cachedItem = new CachedItem(getNewTransformer(), getParser(), new MagicSAXFilter(messages));
-            }
+            //noinspection deprecation
+            org.apache.xml.serialize.OutputFormat format = getOutputFormat();
+            //noinspection deprecation
+            org.apache.xml.serialize.HTMLSerializer serializer = getHTMLSerializer(out, format);
 
-            SAXParser parser = cachedItem.saxParser;
-            cachedItem.magicSAXFilter.reset(policy);
+			return scan(html, scanAttr, cachedItem, out, serializer);
+
+		} catch (ScanException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ScanException(e);
+		} finally {
+			cachedItems.release(cachedItem);
+		}
+
+	}
+
+    /**
+     * Streams the input through the parser and filter straight into the
+     * caller's writer, so neither the input nor the output is ever held in
+     * memory as a whole. The input size limit is enforced while reading.
+     * <p/>
+     * The returned results carry the error messages but no clean HTML; that
+     * has already gone to <code>out</code>. Neither stream is closed.
+     * Running out of time always throws, whatever the policy's
+     * <code>onScanTimeout</code>, since part of the output may already have
+     * been written.
+     */
+    public CleanResults scan(Reader in, Writer out) throws ScanException {
+
+        if (in == null || out == null) {
+            throw new ScanException(new NullPointerException("Null input"));
+        }
+
+        errorMessages = new ArrayList<String>();
+        int maxInputSize = policy.getMaxInputSize();
+        LimitedReader reader = new LimitedReader(in, maxInputSize);
+
+        CachedItem cachedItem = borrowCachedItem();
+        try {
+
+            TrimmingWriter writer = new TrimmingWriter(out);
+
+            //noinspection deprecation
+            org.apache.xml.serialize.OutputFormat format = getOutputFormat();
+            //noinspection deprecation
+            org.apache.xml.serialize.HTMLSerializer serializer = getHTMLSerializer(writer, format);
 
             long startOfScan = System.currentTimeMillis();
+            startClock(startOfScan);
+
+            cachedItem.magicSAXFilter.reset(policy);
+            cachedItem.magicSAXFilter.setDeadline(deadline, maxScanTime);
+
+            parse(cachedItem.saxParser, new InputSource(reader), serializer);
 
-            SAXSource source = new SAXSource(parser, new InputSource(new StringReader(html)));
-			
-            Transformer transformer = cachedItem.transformer;
-            boolean formatOutput = policy.isFormatOutput();
-            boolean useXhtml = policy.isUseXhtml();
-            boolean omitXml = policy.isOmitXmlDeclaration();
+            writer.finish(reader.endsWithNewline());
 
-            transformer.setOutputProperty(OutputKeys.INDENT, formatOutput ? "yes" : "no");
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, omitXml ? "yes" : "no");
-            transformer.setOutputProperty(OutputKeys.METHOD, useXhtml ? "xml" : "html");
+            errorMessages.addAll(cachedItem.magicSAXFilter.getErrorMessages());
+            return new CleanResults(startOfScan, (String) null, null, errorMessages);
+
+        } catch (Exception e) {
+            if (reader.isLimitExceeded()) {
+                addError(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[] {reader.getCount(), maxInputSize});
+                throw new ScanException(errorMessages.get(0));
+            }
+            ScanTimeoutException timeout = ScanTimeoutException.find(e);
+            if (timeout != null) {
+                throw timeout;
+            }
+            Exception cause = unwrap(e);
+            throw cause instanceof ScanException ? (ScanException) cause : new ScanException(e);
+        } finally {
+            cachedItems.release(cachedItem);
+        }
+    }
+
+    /**
+     * Scans a batch of inputs. One parser and filter, one output
+     * buffer and one serializer are taken for the whole batch instead of one
+     * per input.
+     */
+    public List<CleanResults> scanAll(List<String> htmls) throws ScanException {
+        return scanAll(htmls, false);
+    }
+
+    /**
+     * Scans a batch of inputs, as {@link #scanAll(List)} does, checking each
+     * one for attribute breakouts if <code>scanAttr</code> is set.
+     */
+    public List<CleanResults> scanAll(List<String> htmls, boolean scanAttr) throws ScanException {
+
+        List<CleanResults> cleanResults = new ArrayList<CleanResults>(htmls.size());
+        if (htmls.isEmpty()) {
+            return cleanResults;
+        }
+
+        CachedItem cachedItem = borrowCachedItem();
+        try {
+
+            StringWriter out = new StringWriter();
 
             //noinspection deprecation
             org.apache.xml.serialize.OutputFormat format = getOutputFormat();
             //noinspection deprecation
             org.apache.xml.serialize.HTMLSerializer serializer = getHTMLSerializer(out, format);
-			transformer.transform(source, new SAXResult(serializer));			
 
-			String cleanHtml = trim(html, out.getBuffer().toString());
+            for (String html : htmls) {
+                if (html == null) {
+                    throw new ScanException(new NullPointerException("Null input"));
+                }
+                out.getBuffer().setLength(0);
+                serializer.reset();
+                cleanResults.add(scan(html, scanAttr, cachedItem, out, serializer));
+            }
+            return cleanResults;
 
-			errorMessages.clear();
-            errorMessages.addAll(cachedItem.magicSAXFilter.getErrorMessages());
-            cachedItems.add( cachedItem);
-			return new CleanResults(startOfScan, cleanHtml, null, errorMessages);
+        } catch (ScanException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ScanException(e);
+        } finally {
+            cachedItems.release(cachedItem);
+        }
+    }
 
-		} catch (Exception e) {
-			throw new ScanException(e);
+    /**
+     * The pool of parser and filter pairs shared by all SAX
+     * scanners. Its idle limit and thread affinity may be tuned, and it
+     * exposes usage metrics.
+     */
+    public static ObjectPool<?> getParserPool() {
+        return cachedItems;
+    }
+
+    private CachedItem borrowCachedItem() throws ScanException {
+        try {
+            return cachedItems.borrow();
+        } catch (Exception e) {
+            throw new ScanException(e);
+        }
+    }
+
+    /**
+     * Parses the input with the serializer as the parser's content and
+     * lexical handler, so the filtered events go straight to it. The
+     * handlers are dropped again afterwards, so that the pooled parser does not
+     * keep the output alive.
+     */
+    @SuppressWarnings("deprecation")
+    private static void parse(SAXParser parser, InputSource source,
+                              org.apache.xml.serialize.HTMLSerializer serializer) throws Exception {
+        parser.setContentHandler(serializer);
+        parser.setProperty(LEXICAL_HANDLER, serializer);
+        try {
+            parser.parse(source);
+        } finally {
+            parser.setContentHandler(null);
+            parser.setProperty(LEXICAL_HANDLER, null);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private CleanResults scan(String html, boolean scanAttr, CachedItem cachedItem, StringWriter out,
+                              org.apache.xml.serialize.HTMLSerializer serializer) throws Exception {
+
+		errorMessages = new ArrayList<String>();
+		int maxInputSize = policy.getMaxInputSize();
+
+		if (html.length() > maxInputSize) {
+			addError(ErrorMessageUtil.ERROR_INPUT_SIZE, new Object[] {html.length(), maxInputSize});
+			throw new ScanException(errorMessages.get(0));
 		}
 
-	}
+        long startOfScan = System.currentTimeMillis();
+        startClock(startOfScan);
+
+        if (isPlainText(html)) {
+            return new CleanResults(startOfScan, html, null, errorMessages);
+        }
+
+        cachedItem.magicSAXFilter.reset(policy);
+        cachedItem.magicSAXFilter.setDeadline(deadline, maxScanTime);
+
+        try {
+            parse(cachedItem.saxParser, new InputSource(new StringReader(html)), serializer);
+        } catch (Exception e) {
+            ScanTimeoutException timeout = ScanTimeoutException.find(e);
+            if (timeout == null) {
+                throw unwrap(e);
+            }
+            errorMessages.addAll(cachedItem.magicSAXFilter.getErrorMessages());
+            return degrade(html, startOfScan, timeout);
+        }
 
-     /**
-      * Return a new Transformer instance. This is wrapped in a synchronized method because there is
-      * no guarantee that the TransformerFactory is thread-safe
-      *
-      * @return a new Transformer instance.
-      */
-     private static synchronized Transformer getNewTransformer()  {
-         try {
-             return sTransformerFactory.newTransformer();
-         } catch (TransformerConfigurationException e) {
-             throw new RuntimeException(e);
-         }
-     }
+        String cleanHtml = trim(html, out.getBuffer().toString());
+
+        errorMessages.addAll(cachedItem.magicSAXFilter.getErrorMessages());
+        if (scanAttr) {
+            scanAttr(html, cachedItem.attributeChars);
+        }
+        return new CleanResults(startOfScan, cleanHtml, null, errorMessages);
+    }
+
+    /**
+     * @return The <code>ScanException</code> the filter aborted the parse
+     *         with, such as for nesting too deep, or else <code>e</code>.
+     */
+    private static Exception unwrap(Exception e) {
+        Throwable t = e;
+        for (int i = 0; t != null && i < 16; i++) {
+            if (t instanceof ScanException) {
+                return (ScanException) t;
+            }
+            Throwable next = t.getCause();
+            if (next == null && t instanceof XNIException) {
+                next = ((XNIException) t).getException();
+            }
+            if (next == null && t instanceof SAXException) {
+                next = ((SAXException) t).getException();
+            }
+            t = next;
+        }
+        return e;
+    }
 
     private static SAXParser getParser()  {
         try {
             SAXParser parser = new SAXParser();
             parser.setFeature("http://xml.org/sax/features/namespaces", false);
+            // report xmlns attributes like any other attribute
+            parser.setFeature("http://xml.org/sax/features/namespace-prefixes", true);
             parser.setFeature("http://cyberneko.org/html/features/balance-tags/document-fragment", true);
             parser.setFeature("http://cyberneko.org/html/features/scanner/cdata-sections", true);
+            // the same as the DOM parser's, so that both see the same tree
+            parser.setFeature("http://cyberneko.org/html/features/scanner/style/strip-cdata-delims", false);
             parser.setFeature("http://apache.org/xml/features/scanner/notify-char-refs", true);
             parser.setFeature("http://apache.org/xml/features/scanner/notify-builtin-refs", true);
 
 
+            // MagicSAXFilter looks names up in the policy as they come
             parser.setProperty("http://cyberneko.org/html/properties/names/elems", "lower");
+            parser.setProperty("http://cyberneko.org/html/properties/names/attrs", "lower");
+
+            try {
+                parser.setFeature("http://cyberneko.org/html/features/enforce-strict-attribute-names", true);
+            } catch (SAXNotRecognizedException se) {
+                // this indicates that the patched nekohtml is not on the
+                // classpath
+            }
+            try {
+                // scanAttr finds quotes and equals signs with a CharIndex, so
+                // the patched nekohtml need not box their positions into sets
+                parser.setProperty(HTMLConfiguration.PROPERTY_CUSTOM_CHAR_POS, null);
+            } catch (SAXNotRecognizedException se) {
+                // the patched nekohtml is not on the classpath
+            } catch (SAXNotSupportedException se) {
+                // it goes on recording them, as it did before
+            }
             return parser;
         } catch (SAXNotRecognizedException e) {
             throw new RuntimeException(e);
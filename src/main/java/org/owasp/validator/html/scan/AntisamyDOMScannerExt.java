@@ -16,4 +16,11 @@ public class AntisamyDOMScannerExt extends AntiSamyDOMScanner {
     protected org.apache.xml.serialize.HTMLSerializer getHTMLSerializer(Writer w, OutputFormat format){
         return new HtmlExtSerializer(w);
     }
+
+    /**
+     * Output is always left to {@link HtmlExtSerializer}.
+     */
+    HtmlWriter getHtmlWriter(OutputFormat format) {
+        return null;
+    }
 }
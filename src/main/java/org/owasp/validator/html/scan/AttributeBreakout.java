@@ -0,0 +1,179 @@
+package org.owasp.validator.html.scan;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds out what markup a text would produce if it were put into a quoted
+ * attribute value, without parsing it a second time. The first quote of the
+ * same kind ends the value; whatever follows is tokenized the way a browser
+ * would: as more attributes of the same tag up to its <code>&gt;</code>, and
+ * then as tags of their own.
+ * <p/>
+ * Only tags and their attributes are of interest, so text, comments and the
+ * content of raw text elements such as <code>&lt;script&gt;</code> are
+ * skipped.
+ */
+final class AttributeBreakout {
+
+    /**
+     * Stands in for the name of the tag whose attribute value the text is
+     * put into.
+     */
+    static final String CONTEXT_TAG = "z";
+
+    private static final String[] RAW_TEXT_TAGS = {"script", "style", "textarea", "title", "xmp", "iframe",
+            "noembed", "noframes", "plaintext"};
+
+    private AttributeBreakout() {
+    }
+
+    /**
+     * @param text  The text to put into the attribute value.
+     * @param from  Where the first <code>quote</code> in the text is.
+     * @param quote The quote the attribute value is delimited by.
+     * @return The attributes the text adds to the context tag and to every
+     *         tag it opens after that one, as consecutive tag name, attribute
+     *         name and attribute value triples. Names are in lower case.
+     */
+    static List<String> attributes(String text, int from, char quote) {
+        List<String> found = new ArrayList<String>(0);
+        int length = text.length();
+        if (from < 0 || from >= length || text.charAt(from) != quote) {
+            return found;
+        }
+
+        String tag = CONTEXT_TAG;
+        int i = from + 1;
+        while (i < length) {
+            if (tag != null) {
+                char c = text.charAt(i);
+                if (isSpace(c) || c == '/') {
+                    i++;
+                } else if (c == '>') {
+                    i = skipRawText(text, i + 1, tag);
+                    tag = null;
+                } else {
+                    i = attribute(text, i, tag, found);
+                }
+            } else {
+                int lt = text.indexOf('<', i);
+                if (lt < 0 || lt + 1 >= length) {
+                    break;
+                }
+                char c = text.charAt(lt + 1);
+                if (isLetter(c)) {
+                    int end = nameEnd(text, lt + 1, false);
+                    tag = text.substring(lt + 1, end).toLowerCase();
+                    i = end;
+                } else if (c == '!' && regionMatches(text, lt + 2, "--")) {
+                    int close = text.indexOf("-->", lt + 4);
+                    i = close < 0 ? length : close + 3;
+                } else if (c == '/' && lt + 2 < length && isLetter(text.charAt(lt + 2))) {
+                    int gt = text.indexOf('>', lt + 2);
+                    i = gt < 0 ? length : gt + 1;
+                } else {
+                    i = lt + 1;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads one attribute starting at <code>i</code> into <code>found</code>.
+     *
+     * @return Where the attribute ends.
+     */
+    private static int attribute(String text, int i, String tag, List<String> found) {
+        int length = text.length();
+        int nameEnd = nameEnd(text, i, true);
+        String name = text.substring(i, nameEnd).toLowerCase();
+        String value = "";
+
+        i = skipSpace(text, nameEnd);
+        if (i < length && text.charAt(i) == '=') {
+            i = skipSpace(text, i + 1);
+            if (i < length && (text.charAt(i) == '"' || text.charAt(i) == '\'')) {
+                int close = text.indexOf(text.charAt(i), i + 1);
+                int end = close < 0 ? length : close;
+                value = text.substring(i + 1, end);
+                i = close < 0 ? length : close + 1;
+            } else {
+                int start = i;
+                while (i < length && !isSpace(text.charAt(i)) && text.charAt(i) != '>') {
+                    i++;
+                }
+                value = text.substring(start, i);
+            }
+        } else {
+            i = nameEnd;
+        }
+
+        found.add(tag);
+        found.add(name);
+        found.add(value);
+        return i;
+    }
+
+    /**
+     * An attribute name may start with <code>=</code>; a tag name may not.
+     */
+    private static int nameEnd(String text, int i, boolean attribute) {
+        int length = text.length();
+        int start = i;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (isSpace(c) || c == '/' || c == '>' || (c == '=' && !(attribute && i == start))) {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipRawText(String text, int i, String tag) {
+        for (String rawTextTag : RAW_TEXT_TAGS) {
+            if (rawTextTag.equals(tag)) {
+                int length = text.length();
+                for (int lt = text.indexOf('<', i); lt >= 0; lt = text.indexOf('<', lt + 1)) {
+                    if (lt + 1 < length && text.charAt(lt + 1) == '/' && regionMatches(text, lt + 2, tag)) {
+                        return lt;
+                    }
+                }
+                return length;
+            }
+        }
+        return i;
+    }
+
+    private static int skipSpace(String text, int i) {
+        while (i < text.length() && isSpace(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Compares ignoring case, <code>s</code> being in lower case.
+     */
+    private static boolean regionMatches(String text, int i, String s) {
+        if (i + s.length() > text.length()) {
+            return false;
+        }
+        for (int j = 0; j < s.length(); j++) {
+            if (Character.toLowerCase(text.charAt(i + j)) != s.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
@@ -0,0 +1,66 @@
+package org.owasp.validator.html.scan;
+
+import java.util.Arrays;
+
+/**
+ * How often, and where first, a few tracked characters occur in a text.
+ * The counters are kept between texts, so indexing never allocates.
+ */
+final class CharIndex {
+
+    private final char[] tracked;
+    private final int[] counts;
+    private final int[] firsts;
+
+    CharIndex(char... tracked) {
+        this.tracked = tracked.clone();
+        this.counts = new int[tracked.length];
+        this.firsts = new int[tracked.length];
+        Arrays.fill(firsts, -1);
+    }
+
+    /**
+     * Forgets the previous text and indexes this one.
+     */
+    void index(CharSequence text) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+            firsts[i] = -1;
+        }
+        int length = text.length();
+        for (int pos = 0; pos < length; pos++) {
+            char c = text.charAt(pos);
+            for (int i = 0; i < tracked.length; i++) {
+                if (tracked[i] == c) {
+                    if (counts[i]++ == 0) {
+                        firsts[i] = pos;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return How often <code>c</code> occurs in the text.
+     */
+    int count(char c) {
+        return counts[slot(c)];
+    }
+
+    /**
+     * @return Where <code>c</code> first occurs in the text, or -1.
+     */
+    int first(char c) {
+        return firsts[slot(c)];
+    }
+
+    private int slot(char c) {
+        for (int i = 0; i < tracked.length; i++) {
+            if (tracked[i] == c) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not tracked: " + c);
+    }
+}
@@ -18,6 +18,7 @@ import org.w3c.dom.DocumentFragment;
  */
 public class HtmlExtSerializer extends HTMLSerializer {
     private DOM3Serializer serializer = null;
+    private ToHTMLStream toHtmlStream;
     private Transformer transformer;
     private Writer writer;
 
@@ -30,14 +31,17 @@ public class HtmlExtSerializer extends HTMLSerializer {
     }
 
     private void initSerializer(Writer stringWriter) {
-        ToHTMLStream toHtmlStream = new ToHTMLStream();
+        toHtmlStream = new ToHTMLStream();
+        configure(stringWriter);
+        serializer = new DOM3SerializerImpl(toHtmlStream);
+    }
+
+    private void configure(Writer stringWriter) {
         toHtmlStream.setWriter(stringWriter);
         toHtmlStream.setEscaping(false);
         toHtmlStream.setOmitMetaTag(true);
-        toHtmlStream.setWriter(stringWriter);
         toHtmlStream.setIndent(false);
         toHtmlStream.setEncoding("utf-8");
-        serializer = new DOM3SerializerImpl(toHtmlStream);
     }
 
     private void initTransformerFactory() {
@@ -53,8 +57,15 @@ public class HtmlExtSerializer extends HTMLSerializer {
         }
     }
 
+    /**
+     * Serializes one fragment. A batch scan reuses the serializer for every
+     * input, so whatever the previous fragment left in the stream's state
+     * is reset first.
+     */
     @Override
     public void serialize(DocumentFragment frag) throws IOException {
+        toHtmlStream.reset();
+        configure(writer);
         serializer.serializeDOM3(frag);
         // transform(frag);
     }
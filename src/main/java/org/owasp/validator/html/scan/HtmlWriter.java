@@ -0,0 +1,783 @@
+package org.owasp.validator.html.scan;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.xml.serialize.HTMLdtd;
+import org.apache.xml.serialize.OutputFormat;
+import org.owasp.validator.html.InternalPolicy;
+import org.owasp.validator.html.TagMatcher;
+import org.w3c.dom.Attr;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes a clean fragment the way {@link ASXHTMLSerializer} and
+ * {@link ASHTMLSerializer} do, down to the byte, without going through the
+ * Xerces serializer machinery. The output buffer, the line buffers of the
+ * indenting printer and the element states are all reused from one fragment
+ * to the next; element states live in parallel arrays rather than objects.
+ * <p/>
+ * Only fragments are written and the document type is never printed, so
+ * formats that do not omit it must go through the Xerces serializers. One
+ * instance must not write two fragments at the same time.
+ */
+@SuppressWarnings("deprecation")
+final class HtmlWriter {
+
+    /**
+     * The entity names of the characters that have one, indexed by character.
+     */
+    private static final String[] ENTITIES = entities();
+
+    /**
+     * The largest output buffer kept for the next fragment, in characters.
+     */
+    static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    /**
+     * The characters that get an entity reference even when the policy does
+     * not ask for all of them to be encoded.
+     */
+    private static final boolean[] BIG5 = new boolean[128];
+
+    static {
+        for (int i = 0; i < Constants.big5CharsToEncode.length(); i++) {
+            BIG5[Constants.big5CharsToEncode.charAt(i)] = true;
+        }
+    }
+
+    private final boolean xhtml;
+    private final boolean indenting;
+    private final boolean encodeAll;
+    private final boolean omitComments;
+    private final boolean preserveEmptyAttributes;
+    private final boolean formatPreserveSpace;
+    private final int lineWidth;
+    private final int indentation;
+    private final String lineSeparator;
+    private final TagMatcher allowedEmptyTags;
+    private final TagMatcher requiresClosingTags;
+
+    private final StringBuilder out = new StringBuilder();
+
+    /*
+     * The indenting printer: finished text waits in line, the word being
+     * printed in text, and the spaces between them are only counted.
+     */
+    private final StringBuilder line = new StringBuilder(40);
+    private final StringBuilder text = new StringBuilder(20);
+    private int spaces;
+    private int thisIndent;
+    private int nextIndent;
+
+    /*
+     * Element states, the document itself at depth 0.
+     */
+    private int depth;
+    private String[] rawName = new String[16];
+    private boolean[] empty = new boolean[16];
+    private boolean[] afterElement = new boolean[16];
+    private boolean[] preserveSpace = new boolean[16];
+    private boolean[] doCData = new boolean[16];
+    private boolean[] inCData = new boolean[16];
+    private boolean[] unescaped = new boolean[16];
+
+    private final List<String> preRoot = new ArrayList<String>(0);
+    private boolean started;
+
+    HtmlWriter(OutputFormat format, InternalPolicy policy) {
+        this.xhtml = policy.isUseXhtml();
+        this.indenting = format.getIndenting();
+        this.encodeAll = policy.isEntityEncodeIntlCharacters();
+        this.omitComments = format.getOmitComments();
+        this.preserveEmptyAttributes = format.getPreserveEmptyAttributes();
+        this.formatPreserveSpace = format.getPreserveSpace();
+        this.lineWidth = format.getLineWidth();
+        this.indentation = format.getIndent();
+        this.lineSeparator = format.getLineSeparator();
+        this.allowedEmptyTags = policy.getAllowedEmptyTags();
+        this.requiresClosingTags = policy.getRequiresClosingTags();
+    }
+
+    /**
+     * Tells whether fragments in the given format can be written by this
+     * class rather than by a Xerces serializer.
+     */
+    static boolean supports(OutputFormat format) {
+        String encoding = format.getEncoding();
+        return format.getOmitDocumentType() && encoding != null
+                && encoding.toUpperCase(Locale.ENGLISH).startsWith("UTF");
+    }
+
+    /**
+     * @param fragment The fragment to write.
+     * @param sizeHint How long the output is expected to be, usually the
+     *                 length of the input.
+     * @return The fragment as text, with the line break the Xerces
+     *         serializers end indented output with.
+     * @throws IOException If the fragment holds characters that cannot be
+     *                     written, as the Xerces serializers would.
+     */
+    String write(DocumentFragment fragment, int sizeHint) throws IOException {
+        start(sizeHint);
+        try {
+            writeChildren(fragment);
+            return end();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Writes a fragment the way it would be had the decisions of a
+     * mark-and-emit scan been applied to it.
+     *
+     * @see #write(DocumentFragment, int)
+     */
+    String write(Marks marks, int sizeHint) throws IOException {
+        start(sizeHint);
+        try {
+            writeChildren(marks, Marks.ROOT);
+            return end();
+        } finally {
+            release();
+        }
+    }
+
+    private void start(int sizeHint) {
+        out.setLength(0);
+        out.ensureCapacity(sizeHint + (sizeHint >> 3));
+        line.setLength(0);
+        text.setLength(0);
+        spaces = 0;
+        thisIndent = 0;
+        nextIndent = 0;
+        preRoot.clear();
+        started = false;
+
+        depth = 0;
+        rawName[0] = null;
+        preserveSpace[0] = formatPreserveSpace;
+        empty[0] = true;
+        afterElement[0] = false;
+        doCData[0] = false;
+        inCData[0] = false;
+        unescaped[0] = false;
+    }
+
+    private String end() {
+        writePreRoot();
+        flush();
+        return out.toString();
+    }
+
+    private void release() {
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            out.setLength(0);
+            out.trimToSize();
+        }
+    }
+
+    /*
+     * Both walks go down into an element once it is open and come back up
+     * through the parents once its last child is written, closing each on
+     * the way, rather than recursing. How deep a fragment may nest is thus
+     * not up to the size of the thread stack.
+     */
+
+    private void writeChildren(Node root) throws IOException {
+        Node node = root.getFirstChild();
+        while (node != null) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                if (openElement(node)) {
+                    node = node.getFirstChild();
+                    continue;
+                }
+            } else {
+                writeNode(node);
+            }
+            while (node.getNextSibling() == null) {
+                node = node.getParentNode();
+                if (node == root) {
+                    return;
+                }
+                endElement(node.getNodeName());
+            }
+            node = node.getNextSibling();
+        }
+    }
+
+    private void writeNode(Node node) throws IOException {
+        switch (node.getNodeType()) {
+        case Node.TEXT_NODE:
+            text(node.getNodeValue());
+            break;
+        case Node.CDATA_SECTION_NODE: {
+            String value = node.getNodeValue();
+            if (value != null) {
+                doCData[depth] = true;
+                characters(value);
+                doCData[depth] = false;
+            }
+            break;
+        }
+        case Node.COMMENT_NODE: {
+            String value = node.getNodeValue();
+            if (!omitComments && value != null) {
+                comment(value);
+            }
+            break;
+        }
+        case Node.ENTITY_REFERENCE_NODE:
+            content();
+            printText('&');
+            printText(node.getNodeName());
+            printText(';');
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Writes the start tag of an element, and the end tag too if it has no
+     * children.
+     *
+     * @return Whether its children are to be written next, the element being
+     *         left open for them.
+     */
+    private boolean openElement(Node element) throws IOException {
+        String tagName = element.getNodeName();
+        boolean preserve = startTag(tagName);
+        writeAttributes(tagName, element.getAttributes());
+
+        if (element.hasChildNodes()) {
+            startContent(tagName, preserve);
+            return true;
+        }
+        if (!HTMLdtd.isEmptyTag(tagName)) {
+            startContent(tagName, preserve);
+            endElement(tagName);
+        } else {
+            endEmptyElement();
+        }
+        return false;
+    }
+
+    private void writeChildren(Marks marks, int root) throws IOException {
+        int k = marks.firstChildMark(root);
+        while (k != Marks.NONE) {
+            Node node = marks.node(k);
+            if (node != null && node.getNodeType() == Node.ELEMENT_NODE) {
+                if (openElement(marks, k, node)) {
+                    k = marks.firstChildMark(k);
+                    continue;
+                }
+            } else {
+                writeNode(marks, k, node);
+            }
+            while (marks.nextSibling(k) == Marks.NONE) {
+                k = marks.parent(k);
+                if (k == root) {
+                    return;
+                }
+                endElement(marks.node(k).getNodeName());
+            }
+            k = marks.nextSibling(k);
+        }
+    }
+
+    /**
+     * Every CDATA section a scan visits becomes text, and the text made up
+     * for encoded tags has no node.
+     */
+    private void writeNode(Marks marks, int k, Node node) throws IOException {
+        short type = node == null ? Node.TEXT_NODE : node.getNodeType();
+        switch (type) {
+        case Node.TEXT_NODE:
+        case Node.CDATA_SECTION_NODE:
+            text(marks.value(k));
+            break;
+        case Node.COMMENT_NODE: {
+            String value = marks.value(k);
+            if (!omitComments && value != null) {
+                comment(value);
+            }
+            break;
+        }
+        default:
+            writeNode(node);
+            break;
+        }
+    }
+
+    /**
+     * Writes the start tag of an element as the scan left it.
+     *
+     * @return Whether children the scan kept are to be written next.
+     * @see #openElement(Node)
+     */
+    private boolean openElement(Marks marks, int k, Node element) throws IOException {
+        String tagName = element.getNodeName();
+        boolean preserve = startTag(tagName);
+        if (marks.hasOwnAttributes(k)) {
+            for (int i = 0; i < marks.attributeCount(k); i++) {
+                writeAttribute(tagName, marks.attributeName(k, i).toLowerCase(Locale.ENGLISH),
+                        marks.attributeValue(k, i));
+            }
+        } else {
+            writeAttributes(tagName, element.getAttributes());
+        }
+
+        if (marks.hasChildNodes(k) || !HTMLdtd.isEmptyTag(tagName)) {
+            startContent(tagName, preserve);
+            if (marks.firstChildMark(k) != Marks.NONE) {
+                return true;
+            }
+            endElement(tagName);
+        } else {
+            endEmptyElement();
+        }
+        return false;
+    }
+
+    private void text(String value) throws IOException {
+        if (value != null && (!indenting || preserveSpace[depth] || !isBlank(value))) {
+            characters(value);
+        }
+    }
+
+    /**
+     * Prints the start tag up to its attributes.
+     *
+     * @return Whether the content of the element keeps its white space.
+     */
+    private boolean startTag(String tagName) {
+        if (depth == 0) {
+            if (!started) {
+                started = true;
+                writePreRoot();
+            }
+        } else {
+            if (empty[depth]) {
+                printText('>');
+            }
+            if (indenting && !preserveSpace[depth] && (empty[depth] || afterElement[depth])) {
+                breakLine();
+            }
+        }
+        boolean preserve = preserveSpace[depth] || HTMLdtd.isPreserveSpace(tagName);
+
+        printText('<');
+        printText(xhtml ? tagName.toLowerCase(Locale.ENGLISH) : tagName);
+        indent();
+        return preserve;
+    }
+
+    private void writeAttributes(String tagName, NamedNodeMap attributes) throws IOException {
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Attr attr = (Attr) attributes.item(i);
+                if (attr.getSpecified()) {
+                    writeAttribute(tagName, attr.getName().toLowerCase(Locale.ENGLISH), attr.getValue());
+                }
+            }
+        }
+    }
+
+    private void startContent(String tagName, boolean preserve) {
+        enterElement(tagName, preserve);
+        if (tagName.equalsIgnoreCase("A") || tagName.equalsIgnoreCase("TD")) {
+            empty[depth] = false;
+            printText('>');
+        }
+        if (tagName.equalsIgnoreCase("SCRIPT") || tagName.equalsIgnoreCase("STYLE")) {
+            if (xhtml) {
+                doCData[depth] = true;
+            } else {
+                unescaped[depth] = true;
+            }
+        }
+    }
+
+    private void endEmptyElement() {
+        unindent();
+        printText(xhtml ? " />" : ">");
+        afterElement[depth] = true;
+        empty[depth] = false;
+        if (depth == 0) {
+            flush();
+        }
+    }
+
+    private void writeAttribute(String tagName, String name, String value) throws IOException {
+        printSpace();
+        if (xhtml) {
+            printText(name);
+            if (value == null) {
+                printText("=\"\"");
+            } else {
+                printText("=\"");
+                printEscaped(value);
+                printText('"');
+            }
+        } else {
+            if (value == null) {
+                value = "";
+            }
+            if (!preserveEmptyAttributes && value.length() == 0) {
+                printText(name);
+            } else if (HTMLdtd.isURI(tagName, name)) {
+                int quote = value.indexOf('"');
+                printText(name);
+                printText("=\"");
+                printText(quote >= 0 ? value.substring(0, quote) : value);
+                printText('"');
+            } else if (HTMLdtd.isBoolean(tagName, name)) {
+                printText(name);
+            } else {
+                printText(name);
+                printText("=\"");
+                printEscaped(value);
+                printText('"');
+            }
+        }
+    }
+
+    private void endElement(String tagName) throws IOException {
+        unindent();
+        if (xhtml) {
+            if (empty[depth] && isAllowedEmptyTag(tagName) && !requiresClosingTags.matches(tagName)) {
+                printText(" />");
+            } else {
+                if (empty[depth]) {
+                    printText('>');
+                }
+                if (inCData[depth]) {
+                    printText("]]>");
+                }
+                printText("</");
+                printText(rawName[depth].toLowerCase(Locale.ENGLISH));
+                printText('>');
+            }
+        } else {
+            if (empty[depth]) {
+                printText('>');
+            }
+            if (!HTMLdtd.isOnlyOpening(tagName)) {
+                if (indenting && !preserveSpace[depth] && afterElement[depth]) {
+                    breakLine();
+                }
+                if (inCData[depth]) {
+                    printText("]]>");
+                }
+                printText("</");
+                printText(rawName[depth]);
+                printText('>');
+            }
+        }
+
+        depth--;
+        if (!tagName.equalsIgnoreCase("A") && !tagName.equalsIgnoreCase("TD")) {
+            afterElement[depth] = true;
+        }
+        empty[depth] = false;
+        if (depth == 0) {
+            flush();
+        }
+    }
+
+    private boolean isAllowedEmptyTag(String tagName) {
+        return "head".equals(tagName) || allowedEmptyTags.matches(tagName);
+    }
+
+    private void enterElement(String tagName, boolean preserve) {
+        depth++;
+        if (depth == rawName.length) {
+            int length = depth * 2;
+            rawName = Arrays.copyOf(rawName, length);
+            empty = Arrays.copyOf(empty, length);
+            afterElement = Arrays.copyOf(afterElement, length);
+            preserveSpace = Arrays.copyOf(preserveSpace, length);
+            doCData = Arrays.copyOf(doCData, length);
+            inCData = Arrays.copyOf(inCData, length);
+            unescaped = Arrays.copyOf(unescaped, length);
+        }
+        rawName[depth] = tagName;
+        preserveSpace[depth] = preserve;
+        empty[depth] = true;
+        afterElement[depth] = false;
+        doCData[depth] = false;
+        inCData[depth] = false;
+        unescaped[depth] = false;
+    }
+
+    /**
+     * Closes the start tag or CDATA section still open in the current
+     * element, as content is about to follow.
+     */
+    private void content() {
+        if (depth > 0) {
+            if (inCData[depth] && !doCData[depth]) {
+                printText("]]>");
+                inCData[depth] = false;
+            }
+            if (empty[depth]) {
+                printText('>');
+                empty[depth] = false;
+            }
+            afterElement[depth] = false;
+        }
+    }
+
+    private void characters(String value) throws IOException {
+        content();
+        if (inCData[depth] || doCData[depth]) {
+            if (!inCData[depth]) {
+                printText("<![CDATA[");
+                inCData[depth] = true;
+            }
+            int saveIndent = nextIndent;
+            setNextIndent(0);
+            printCData(value);
+            setNextIndent(saveIndent);
+        } else if (preserveSpace[depth]) {
+            int saveIndent = nextIndent;
+            setNextIndent(0);
+            printPreserved(value, unescaped[depth]);
+            setNextIndent(saveIndent);
+        } else {
+            boolean raw = unescaped[depth];
+            for (int i = 0, length = value.length(); i < length; i++) {
+                char c = value.charAt(i);
+                if (c == ' ' || c == '\f' || c == '\t' || c == '\n' || c == '\r') {
+                    printSpace();
+                } else if (raw) {
+                    printText(c);
+                } else {
+                    printEscaped(c);
+                }
+            }
+        }
+    }
+
+    private void comment(String value) {
+        content();
+        int end = value.indexOf("-->");
+        String comment = "<!--" + (end >= 0 ? value.substring(0, end) : value) + "-->";
+
+        if (depth == 0) {
+            preRoot.add(comment);
+        } else {
+            if (indenting && !preserveSpace[depth]) {
+                breakLine();
+            }
+            indent();
+            printPreserved(comment, true);
+            unindent();
+        }
+        afterElement[depth] = false;
+    }
+
+    /**
+     * Comments outside of any element are held back until the first element
+     * starts or the fragment ends.
+     */
+    private void writePreRoot() {
+        for (int i = 0; i < preRoot.size(); i++) {
+            printPreserved(preRoot.get(i), true);
+            if (indenting) {
+                breakLine();
+            }
+        }
+        preRoot.clear();
+    }
+
+    private void printPreserved(String value, boolean raw) {
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            if (raw || c == '\n' || c == '\r') {
+                printText(c);
+            } else {
+                printEscaped(c);
+            }
+        }
+    }
+
+    private void printEscaped(String value) {
+        for (int i = 0, length = value.length(); i < length; i++) {
+            printEscaped(value.charAt(i));
+        }
+    }
+
+    private void printEscaped(char c) {
+        String entity = null;
+        if (c < BIG5.length && BIG5[c] || encodeAll) {
+            entity = c < ENTITIES.length ? ENTITIES[c] : null;
+        }
+        if (entity != null) {
+            printText('&');
+            printText(entity);
+            printText(';');
+        } else if (c >= ' ' || c == '\n' || c == '\r' || c == '\t') {
+            printText(c);
+        } else {
+            printText("&#x");
+            printText(Integer.toHexString(c));
+            printText(';');
+        }
+    }
+
+    private void printCData(String value) throws IOException {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c == ']' && i + 2 < length && value.charAt(i + 1) == ']' && value.charAt(i + 2) == '>') {
+                printText("]]]]><![CDATA[>");
+                i += 2;
+            } else if (!isXmlChar(c)) {
+                if (++i < length && Character.isHighSurrogate(c) && Character.isLowSurrogate(value.charAt(i))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(i));
+                    printText("]]>&#x");
+                    printText(Integer.toHexString(codePoint));
+                    printText(";<![CDATA[");
+                } else {
+                    throw new IOException("The character '" + c + "' is an invalid XML character");
+                }
+            } else if (c >= ' ' || c == '\n' || c == '\r' || c == '\t') {
+                printText(c);
+            } else {
+                printText("]]>&#x");
+                printText(Integer.toHexString(c));
+                printText(";<![CDATA[");
+            }
+        }
+    }
+
+    /*
+     * The printer. Without indenting everything goes straight to the output.
+     */
+
+    private void printText(String s) {
+        (indenting ? text : out).append(s);
+    }
+
+    private void printText(char c) {
+        (indenting ? text : out).append(c);
+    }
+
+    private void printSpace() {
+        if (!indenting) {
+            out.append(' ');
+            return;
+        }
+        if (text.length() > 0) {
+            if (lineWidth > 0 && thisIndent + line.length() + spaces + text.length() > lineWidth) {
+                flushLine();
+                out.append(lineSeparator);
+            }
+            moveTextToLine();
+        }
+        spaces++;
+    }
+
+    private void breakLine() {
+        if (!indenting) {
+            out.append(lineSeparator);
+            return;
+        }
+        if (text.length() > 0) {
+            moveTextToLine();
+        }
+        flushLine();
+        out.append(lineSeparator);
+    }
+
+    private void moveTextToLine() {
+        for (; spaces > 0; spaces--) {
+            line.append(' ');
+        }
+        line.append(text);
+        text.setLength(0);
+    }
+
+    private void flushLine() {
+        if (line.length() > 0) {
+            int indent = thisIndent;
+            if (2 * indent > lineWidth && lineWidth > 0) {
+                indent = lineWidth / 2;
+            }
+            for (; indent > 0; indent--) {
+                out.append(' ');
+            }
+            thisIndent = nextIndent;
+            spaces = 0;
+            out.append(line);
+            line.setLength(0);
+        }
+    }
+
+    private void flush() {
+        if (indenting && (line.length() > 0 || text.length() > 0)) {
+            breakLine();
+        }
+    }
+
+    private void indent() {
+        if (indenting) {
+            nextIndent += indentation;
+        }
+    }
+
+    private void unindent() {
+        if (indenting) {
+            nextIndent -= indentation;
+            if (nextIndent < 0) {
+                nextIndent = 0;
+            }
+            if (line.length() + spaces + text.length() == 0) {
+                thisIndent = nextIndent;
+            }
+        }
+    }
+
+    private void setNextIndent(int indent) {
+        if (indenting) {
+            nextIndent = indent;
+        }
+    }
+
+    /**
+     * Whether the text would be blank once its line breaks became spaces.
+     */
+    private static boolean isBlank(String value) {
+        for (int i = 0, length = value.length(); i < length; i++) {
+            if (value.charAt(i) > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isXmlChar(char c) {
+        return c >= 0x20 && c <= 0xD7FF || c == 0x9 || c == 0xA || c == 0xD || c >= 0xE000 && c <= 0xFFFD;
+    }
+
+    private static String[] entities() {
+        String[] entities = new String[0x10000];
+        int length = 0;
+        for (int c = 0; c < entities.length; c++) {
+            String name = HTMLdtd.fromChar(c);
+            if (name != null) {
+                entities[c] = name;
+                length = c + 1;
+            }
+        }
+        return Arrays.copyOf(entities, length);
+    }
+}
@@ -0,0 +1,75 @@
+package org.owasp.validator.html.scan;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Counts what is read through it and fails once more than
+ * <code>limit</code> characters have been read. It also remembers the last
+ * character, which streaming scans need in place of the whole input.
+ */
+class LimitedReader extends FilterReader {
+
+    private final int limit;
+    private long count;
+    private int lastChar = -1;
+    private boolean limitExceeded;
+
+    LimitedReader(Reader in, int limit) {
+        super(in);
+        this.limit = limit;
+    }
+
+    public int read() throws IOException {
+        int c = super.read();
+        if (c != -1) {
+            lastChar = c;
+            count(1);
+        }
+        return c;
+    }
+
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        int n = super.read(cbuf, off, len);
+        if (n > 0) {
+            lastChar = cbuf[off + n - 1];
+            count(n);
+        }
+        return n;
+    }
+
+    public long skip(long n) throws IOException {
+        throw new IOException("skip not supported");
+    }
+
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Leaves the underlying reader open; it belongs to the caller.
+     */
+    public void close() {
+    }
+
+    long getCount() {
+        return count;
+    }
+
+    boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    boolean endsWithNewline() {
+        return lastChar == '\n';
+    }
+
+    private void count(int n) throws IOException {
+        count += n;
+        if (count > limit) {
+            limitExceeded = true;
+            throw new IOException("Input exceeds " + limit + " characters");
+        }
+    }
+}
@@ -27,6 +27,7 @@ package org.owasp.validator.html.scan;
 import java.util.*;
 import java.util.regex.Pattern;
 
+import org.apache.batik.css.parser.ParseException;
 import org.apache.xerces.util.AugmentationsImpl;
 import org.apache.xerces.util.XMLAttributesImpl;
 import org.apache.xerces.util.XMLStringBuffer;
@@ -43,6 +44,7 @@ import org.owasp.validator.html.CleanResults;
 import org.owasp.validator.html.InternalPolicy;
 import org.owasp.validator.html.Policy;
 import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanTimeoutException;
 import org.owasp.validator.html.model.Attribute;
 import org.owasp.validator.html.model.Tag;
 import org.owasp.validator.html.util.ErrorMessageUtil;
@@ -52,355 +54,794 @@ import org.owasp.validator.html.util.HTMLEntityEncoder;
  * Implementation of an HTML-filter that adheres to an AntiSamy policy. This
  * filter is SAX-based which means it is much more memory-efficient and also a
  * bit faster than the DOM-based implementation.
+ * <p/>
+ * It makes the decisions <code>AntiSamyDOMScanner</code> makes, in the same
+ * order and with the same error messages. Where the DOM scan looks at the
+ * tree, the filter waits for the events that tell it the same thing: an
+ * element is validated when its first child or its end shows whether it is
+ * empty, and nothing of it is written until something inside it, or its
+ * end, shows that it is kept.
+ * <p/>
+ * The parser must hand it element and attribute names in lower case, as
+ * <code>AntiSamySAXScanner</code>'s does, so that they can be looked up in
+ * the policy as they are.
  */
 public class MagicSAXFilter extends DefaultFilter implements XMLDocumentFilter {
 
-    private static enum Ops {
-        CSS, FILTER, REMOVE, TRUNCATE, KEEP
+    /*
+     * What is done with an open element. An element is PENDING until its
+     * first child or its end arrives; ROOT is the fragment itself.
+     */
+    private static final byte PENDING = 0;
+    private static final byte ROOT = 1;
+    private static final byte KEEP = 2;
+    private static final byte TRUNCATE = 3;
+    private static final byte FILTER = 4;
+    private static final byte ENCODE = 5;
+    private static final byte ATTRIBUTE_FILTER = 6;
+    private static final byte ATTRIBUTE_ENCODE = 7;
+    private static final byte STYLE = 8;
+    private static final byte REMOVE = 9;
+
+    /*
+     * Outcomes of processAttributes(), as in the DOM scanner.
+     */
+    private static final int ATTRIBUTES_DONE = 0;
+    private static final int TAG_REMOVED = 1;
+    private static final int CHILDREN_FIRST = 2;
+
+    /*
+     * What becomes of the CDATA section being read, if any.
+     */
+    private static final byte CDATA_NONE = 0;
+    private static final byte CDATA_TEXT = 1;
+    private static final byte CDATA_DROPPED = 2;
+
+    private static final Pattern conditionalDirectives =
+            Pattern.compile("<?!?\\[\\s*(?:end)?if[^]]*\\]>?");
+
+    /**
+     * An open element. Frames are kept for reuse by whatever element is
+     * next open at the same depth.
+     * <p/>
+     * <code>children</code> counts what the element has for children in the
+     * DOM scan at the same point, leaving out those not seen yet, and
+     * <code>surviving</code> what it ends up with in the output. An element
+     * is <code>emptied</code> when a removal left it with no children, none
+     * having followed since, and <code>childPruned</code> when one of its
+     * children was itself pruned for being empty.
+     */
+    private static final class Frame {
+        final QName element = new QName();
+        final SortedAttributes attributes = new SortedAttributes(8);
+        byte op;
+        Tag tag;
+        boolean knownTag;
+        String paramName;
+
+        int attributeIndex;
+        String attributeName;
+        String attributeValue;
+        boolean encode;
+
+        int children;
+        int surviving;
+        boolean emptied;
+        boolean childPruned;
+
+        void reset(byte op) {
+            this.op = op;
+            attributes.clear();
+            tag = null;
+            knownTag = false;
+            paramName = null;
+            attributeName = null;
+            attributeValue = null;
+            children = 0;
+            surviving = 0;
+            emptied = false;
+            childPruned = false;
+        }
+
+        void pendingAttribute(int index, String name, String value, boolean encode) {
+            this.attributeIndex = index;
+            this.attributeName = name;
+            this.attributeValue = value;
+            this.encode = encode;
+        }
     }
-	private final Stack<Ops> operations = new Stack<Ops>();
-	private List<String> errorMessages = new ArrayList<String>();
-	private StringBuffer cssContent = null;
-	private XMLAttributes cssAttributes = null;
-	private CssScanner cssScanner = null;
-	private InternalPolicy policy;
-	private ResourceBundle messages;
 
-	private boolean isNofollowAnchors;
-	private boolean isValidateParamAsEmbed;
-	private boolean inCdata = false;
+    /*
+     * frames[0] is the fragment, frames[depth] the innermost open element.
+     * The first startedDepth of them have been written out. Elements inside
+     * a removed one are only counted, in skipped.
+     */
+    private Frame[] frames = new Frame[32];
+    private int depth;
+    private int startedDepth;
+    private int skipped;
+
+    private byte cdata = CDATA_NONE;
+    private final StringBuilder cdataText = new StringBuilder();
+
+    private final List<String> errorMessages = new ArrayList<String>();
+    private CssScanner inlineCssScanner;
+    private CssScanner styleSheetScanner;
+
+    /*
+     * Buffers reused from one element to the next, so that elements that
+     * pass cause no allocations of their own. XMLAttributesImpl copies the
+     * names it is given, so one QName serves every attribute.
+     */
+    private final QName attributeName = new QName();
+    private final XMLAttributesImpl validAttributes = new XMLAttributesImpl();
+    private final XMLStringBuffer text = new XMLStringBuffer();
+    private final AugmentationsImpl augmentations = new AugmentationsImpl();
+    private final StringBuilder openingTag = new StringBuilder();
+
+    /*
+     * The content of the <style> element being recorded.
+     */
+    private final StringBuilder cssContent = new StringBuilder();
+    private InternalPolicy policy;
+    private ResourceBundle messages;
+
     // From policy
+    private boolean isNofollowAnchors;
+    private boolean isValidateParamAsEmbed;
     private boolean preserveComments;
     private int maxInputSize;
     private boolean externalCssScanner;
+    private boolean allowUnknownTag;
+    private boolean encodeUnknownTag;
+    private int maxNestingDepth;
+    private long deadline;
+    private long maxScanTime;
 
     public MagicSAXFilter(ResourceBundle messages) {
-		this.messages = messages;
+        this.messages = messages;
     }
 
-    public void reset(InternalPolicy instance){
+    public void reset(InternalPolicy instance) {
         this.policy = instance;
         isNofollowAnchors = policy.isNofollowAnchors();
         isValidateParamAsEmbed = policy.isValidateParamAsEmbed();
         preserveComments = policy.isPreserveComments();
         maxInputSize = policy.getMaxInputSize();
         externalCssScanner = policy.isEmbedStyleSheets();
-        operations.clear();
+        allowUnknownTag = policy.isAllowUnknownTag();
+        encodeUnknownTag = policy.isEncodeUnknownTag();
+        maxNestingDepth = policy.getMaxNestingDepth();
+        depth = 0;
+        startedDepth = 0;
+        skipped = 0;
+        frame(0).reset(ROOT);
+        cdata = CDATA_NONE;
         errorMessages.clear();
-        cssContent = null;
-        cssAttributes = null;
-        cssScanner = null;
-        inCdata = false;
-
-    }
-
-	public void characters(XMLString text, Augmentations augs) throws XNIException {
-        //noinspection StatementWithEmptyBody
-        Ops topOp = peekTop();
-        //noinspection StatementWithEmptyBody
-        if (topOp ==  Ops.REMOVE) {
-			// content is removed altogether
-		} else if (topOp == Ops.CSS) {
-			// we record the style element's text content
-			// to filter it later
-			cssContent.append(text.ch, text.offset, text.length);
-		} else {
-			// pass through all character content.
-			if ( inCdata ) {
-				String encoded = HTMLEntityEncoder.htmlEntityEncode(text.toString());
-                addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{encoded});
-			}
-			super.characters(text, augs);
-		}
-	}
+        cssContent.setLength(0);
+        inlineCssScanner = null;
+        styleSheetScanner = null;
+        deadline = 0;
+        maxScanTime = 0;
+    }
 
-    private static final Pattern conditionalDirectives =
-            Pattern.compile("<?!?\\[\\s*(?:end)?if[^]]*\\]>?");
+    /**
+     * Makes the filter abort the parse with a <code>ScanTimeoutException</code>
+     * (wrapped in an <code>XNIException</code>) once the deadline has passed.
+     * Must be called after {@link #reset(InternalPolicy)}.
+     */
+    public void setDeadline(long deadline, long maxScanTime) {
+        this.deadline = deadline;
+        this.maxScanTime = maxScanTime;
+    }
+
+    public void startElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
+        if (deadline != 0 && System.currentTimeMillis() > deadline) {
+            throw new XNIException(new ScanTimeoutException(maxScanTime));
+        }
+        if (skipped > 0) {
+            skipped++;
+            return;
+        }
+        Frame parent = visitChild();
+        if (parent == null) {
+            skipped++;
+            return;
+        }
+        if (parent.op == TRUNCATE) {
+            addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(element.rawname)});
+            skipped++;
+            return;
+        }
+
+        Frame frame = frame(++depth);
+        frame.reset(PENDING);
+        frame.element.setValues(element);
+        for (int i = 0; i < attributes.getLength(); i++) {
+            frame.attributes.set(attributes.getQName(i), attributes.getValue(i));
+        }
+    }
+
+    public void emptyElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
+        this.startElement(element, attributes, augs);
+        this.endElement(element, augs);
+    }
+
+    public void endElement(QName element, Augmentations augs) throws XNIException {
+        if (skipped > 0) {
+            skipped--;
+            return;
+        }
+        if (depth == 0) {
+            return; // nothing open
+        }
+        Frame frame = frames[depth];
+        if (frame.op == PENDING) {
+            visit(frame, false);
+        }
+        finish(frame);
+        depth--;
+        if (startedDepth > depth) {
+            startedDepth = depth;
+        }
+    }
+
+    public void characters(XMLString text, Augmentations augs) throws XNIException {
+        if (skipped > 0 || cdata == CDATA_DROPPED) {
+            return;
+        }
+        if (cdata == CDATA_TEXT) {
+            cdataText.append(text.ch, text.offset, text.length);
+            super.characters(text, augs);
+            return;
+        }
+        Frame parent = visitChild();
+        if (parent == null) {
+            return;
+        }
+        if (parent.op == STYLE) {
+            // we record the style element's text content
+            // to filter it later
+            parent.children = 1;
+            cssContent.append(text.ch, text.offset, text.length);
+            return;
+        }
+        parent.children++;
+        parent.surviving++;
+        flush(depth);
+        super.characters(text, augs);
+    }
 
     public void comment(XMLString text, Augmentations augs) throws XNIException {
+        if (skipped > 0) {
+            return;
+        }
+        Frame parent = visitChild();
+        if (parent == null) {
+            return;
+        }
+        if (parent.op == TRUNCATE) {
+            addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{"#comment"});
+            return;
+        }
+        if (!preserveComments) {
+            return;
+        }
+        parent.children++;
+        parent.surviving++;
+        flush(depth);
+        // Strip conditional directives regardless of the
+        // PRESERVE_COMMENTS setting.
+        this.text.clear();
+        this.text.append(conditionalDirectives.matcher(text.toString()).replaceAll(""));
+        super.comment(this.text, augmentations());
+    }
+
+    /**
+     * CDATA sections are written as text, each reported once it has been
+     * read in full.
+     */
+    public void startCDATA(Augmentations augs) throws XNIException {
+        cdata = CDATA_DROPPED;
+        if (skipped > 0) {
+            return;
+        }
+        Frame parent = visitChild();
+        if (parent == null) {
+            return;
+        }
+        if (parent.op == TRUNCATE) {
+            addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{"#cdata-section"});
+            return;
+        }
+        parent.children++;
+        parent.surviving++;
+        flush(depth);
+        cdata = CDATA_TEXT;
+        cdataText.setLength(0);
+    }
+
+    public void endCDATA(Augmentations augs) throws XNIException {
+        if (cdata == CDATA_TEXT) {
+            addError(ErrorMessageUtil.ERROR_CDATA_FOUND, new Object[]{HTMLEntityEncoder.htmlEntityEncode(cdataText.toString())});
+        }
+        cdata = CDATA_NONE;
+    }
+
+    public void processingInstruction(String target, XMLString data, Augmentations augs) throws XNIException {
+        // processing instructions are being removed
+    }
+
+    public void doctypeDecl(String root, String publicId, String systemId, Augmentations augs) throws XNIException {
+        // user supplied doctypes are ignored
+    }
+
+    public List<String> getErrorMessages() {
+        return errorMessages;
+    }
+
+    /**
+     * Does for the innermost open element what the DOM scan does before
+     * visiting one of its children: validates it if that is still to be
+     * done, and checks how deep the child is nested.
+     *
+     * @return The element, or null if it has just been removed, and the
+     *         child with it.
+     */
+    private Frame visitChild() {
+        Frame parent = frames[depth];
+        if (parent.op == PENDING) {
+            visit(parent, true);
+            if (parent.op == REMOVE) {
+                depth--;
+                skipped = 1;
+                return null;
+            }
+        }
+        if (parent.op != TRUNCATE) {
+            // the DOM scan would have seen this child when it removed others
+            parent.emptied = false;
+            if (maxNestingDepth > 0 && depth + 1 > maxNestingDepth) {
+                throw new XNIException(new ScanException("Too many nested tags"));
+            }
+        }
+        return parent;
+    }
+
+    /**
+     * Validates the innermost open element, as the DOM scan does when it
+     * visits it.
+     */
+    private void visit(Frame frame, boolean hasChildren) {
+        String tagName = frame.element.rawname;
+        if (!hasChildren && !allowUnknownTag && !isAllowedEmptyTag(tagName)) {
+            addError(ErrorMessageUtil.ERROR_TAG_EMPTY, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
+            remove(frame);
+            return;
+        }
+
+        Tag tag = policy.getTagByLowercaseName(tagName);
+
+        /*
+         * Handle the automatic translation of <param> to nested <embed> for IE.
+         * This is only if the "validateParamAsEmbed" directive is enabled.
+         */
+        Tag embedTag = policy.getEmbedTag();
+        boolean masqueradingParam = tag == null && isValidateParamAsEmbed && "param".equals(tagName)
+                && embedTag != null && embedTag.isAction(Policy.ACTION_VALIDATE);
+        if (masqueradingParam) {
+            tag = Constants.BASIC_PARAM_TAG_RULE;
+        }
+
+        if ((tag == null && encodeUnknownTag) || (tag != null && tag.isAction("encode"))) {
+            addError(ErrorMessageUtil.ERROR_TAG_ENCODED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
+            keep(frame, ENCODE);
+        } else if (tag == null && allowUnknownTag) {
+            validateAttributes(frame, null, false, null);
+        } else if (tag == null || tag.isAction(Policy.ACTION_FILTER)) {
+            addError(tag == null ? ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY : ErrorMessageUtil.ERROR_TAG_FILTERED,
+                    new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
+            keep(frame, FILTER);
+        } else if (tag.isAction(Policy.ACTION_VALIDATE)) {
+            // take <param name=x value=y> and turn into <embed x=y></embed>
+            String paramName = null;
+            if (masqueradingParam) {
+                String nameValue = frame.attributes.get("name");
+                if (!"".equals(nameValue)) {
+                    frame.attributes.set(nameValue, frame.attributes.get("value"));
+                    frame.attributes.remove("name");
+                    frame.attributes.remove("value");
+                    tag = embedTag;
+                    paramName = nameValue;
+                }
+            }
+            if ("style".equals(tagName) && policy.getStyleTag() != null) {
+                // the style sheet is scanned, and then the attributes
+                // validated, once it has been read
+                keep(frame, STYLE);
+                frame.tag = tag;
+                frame.knownTag = true;
+                frame.paramName = paramName;
+                cssContent.setLength(0);
+            } else {
+                validateAttributes(frame, tag, true, paramName);
+            }
+        } else if (tag.isAction(Policy.ACTION_TRUNCATE)) {
+            // copy the element, but remove all attributes
+            SortedAttributes attributes = frame.attributes;
+            for (int i = 0; i < attributes.size; i++) {
+                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY,
+                        new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(attributes.names[i])});
+            }
+            attributes.clear();
+            keep(frame, TRUNCATE);
+        } else {
+            // no options left, so the tag will be removed
+            addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(tagName)});
+            remove(frame);
+        }
+    }
+
+    /**
+     * Validates the attributes of the innermost open element and decides
+     * what is done with it, unless an attribute removes it.
+     */
+    private void validateAttributes(Frame frame, Tag tag, boolean knownTag, String paramName) {
+        frame.tag = tag;
+        frame.knownTag = knownTag;
+        frame.paramName = paramName;
+
+        int outcome = processAttributes(frame, 0);
+        if (outcome == TAG_REMOVED) {
+            return;
+        }
+        if (outcome == CHILDREN_FIRST) {
+            keep(frame, frame.encode ? ATTRIBUTE_ENCODE : ATTRIBUTE_FILTER);
+            return;
+        }
+
+        if (knownTag) {
+            if (isNofollowAnchors && "a".equals(frame.element.rawname)) {
+                frame.attributes.set("rel", "nofollow");
+            }
+            // a <param> that has been converted to an <embed> is converted
+            // back before it is written
+            if (paramName != null) {
+                String valueValue = frame.attributes.get(paramName);
+                frame.attributes.set("name", paramName);
+                frame.attributes.set("value", valueValue);
+                frame.attributes.remove(paramName);
+            }
+        }
+        keep(frame, KEEP);
+    }
+
+    /**
+     * @return <code>ATTRIBUTES_DONE</code> once every attribute from
+     *         <code>from</code> on has been handled, <code>TAG_REMOVED</code>
+     *         if the tag has gone, or <code>CHILDREN_FIRST</code> when an
+     *         invalid attribute filters or encodes the tag. The attribute is
+     *         then recorded in the frame.
+     */
+    private int processAttributes(Frame frame, int from) {
+        String tagName = frame.element.rawname;
+        SortedAttributes attributes = frame.attributes;
+        Tag tag = frame.tag;
+
+        for (int i = from; i < attributes.size; i++) {
+            String name = attributes.names[i];
+            String value = attributes.values[i];
+
+            // the parser has lowered every name but the one a <param> has
+            // been converted to, which comes from an attribute value
+            String nameLower = name.equals(frame.paramName) ? name.toLowerCase() : name;
+
+            Attribute attr = tag != null ? tag.getAttributeByName(nameLower) : null;
+            if (attr == null) {
+                // no policy defined, perhaps it is a global attribute
+                attr = policy.getGlobalAttributeByName(nameLower);
+                if (attr == null && policy.isAllowDynamicAttributes()) {
+                    // not a global attribute, perhaps it is a dynamic attribute, if allowed
+                    attr = policy.getDynamicAttributeByName(nameLower);
+                }
+            }
+
+            if ("style".equals(nameLower) && attr != null) {
+                try {
+                    CleanResults cr = inlineCssScanner().scanInlineStyle(value, tagName, maxInputSize);
+                    attributes.values[i] = cr.getCleanHTML();
+                    errorMessages.addAll(cr.getErrorMessages());
+                } catch (ScanTimeoutException e) {
+                    throw new XNIException(e);
+                } catch (ScanException e) {
+                    addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[]{tagName, null});
+                    attributes.remove(name);
+                    i--;
+                }
+            } else if (attr != null) {
+                // values are matched regardless of case, as in the DOM scan
+                if (!attr.containsAllowedValue(value.toLowerCase()) && !attr.matchesAllowedExpression(value)) {
+                    String onInvalidAction = attr.getOnInvalid();
+                    if ("removeTag".equals(onInvalidAction)) {
+                        remove(frame);
+                        addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID_REMOVED,
+                                new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                        return TAG_REMOVED;
+                    } else if ("filterTag".equals(onInvalidAction) || "encodeTag".equals(onInvalidAction)) {
+                        frame.pendingAttribute(i, name, value, "encodeTag".equals(onInvalidAction));
+                        return CHILDREN_FIRST;
+                    } else {
+                        attributes.remove(name);
+                        i--;
+                        addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID,
+                                new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                    }
+                }
+            } else if (policy.isUnknownAttributeRemoved(nameLower)) {
+                addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY,
+                        new Object[]{tagName, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)});
+                attributes.remove(name);
+                i--;
+            }
+        }
+        return ATTRIBUTES_DONE;
+    }
 
-		if (preserveComments) {
-			String value = text.toString();
-			// Strip conditional directives regardless of the
-			// PRESERVE_COMMENTS setting.
-			if (value != null) {
-                value = conditionalDirectives.matcher(value).replaceAll("");
-				super.comment(new XMLString(value.toCharArray(), 0, value.length()), augs);
-			}
-		}
-	}
-
-	public void doctypeDecl(String root, String publicId, String systemId, Augmentations augs) throws XNIException {
-		// user supplied doctypes are ignored
-	}
-
-	public void emptyElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
-		this.startElement(element, attributes, augs);
-		this.endElement(element, augs);
-	}
-
-    private Ops peekTop(){
-         return operations.empty() ? null : operations.peek();
-    }
-
-	public void endElement(QName element, Augmentations augs) throws XNIException {
-        Ops topOp = peekTop();
-        if (Ops.REMOVE == topOp) {
-			// content is removed altogether
-			operations.pop();
-		} else if (Ops.FILTER == topOp) {
-			// content is removed, but child nodes not
-			operations.pop();
-		} else if (Ops.CSS == topOp) {
-			operations.pop();
-			// now scan the CSS.
-			CssScanner cssScanner = makeCssScanner();
-			try {
-				CleanResults results = cssScanner.scanStyleSheet(cssContent.toString(), maxInputSize);
-				// report all errors found
-				errorMessages.addAll(results.getErrorMessages());
-				/*
-				 * If IE gets an empty style tag, i.e. <style/> it will break
-				 * all CSS on the page. I wish I was kidding. So, if after
-				 * validation no CSS properties are left, we would normally be
-				 * left with an empty style tag and break all CSS. To prevent
-				 * that, we have this check.
-				 */
-                //noinspection StatementWithEmptyBody
-                if (results.getCleanHTML() == null || results.getCleanHTML().equals("")) {
-					// we do not generate empty style elements
-				} else {
-					// XMLAttributes attributes = new XMLAttributesImpl();
-					// attributes.addAttribute(makeSimpleQname("type"), "CDATA",
-					// "text/css");
-					// start the CSS element
-
-					super.startElement(element, cssAttributes, new AugmentationsImpl());
-					// send the cleaned content
-					super.characters(new XMLStringBuffer(results.getCleanHTML()), new AugmentationsImpl());
-					// end the CSS element
-					super.endElement(element, augs);
-				}
-			} catch (ScanException e) {
-				// if the CSS is unscannable, we report the error, but skip the
-				// style element
-				addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[] {
-					HTMLEntityEncoder.htmlEntityEncode(cssContent.toString())
-				});
-			} finally {
-				// reset the string buffer to allow fresh recording of next
-				// style tag
-				cssContent = null;
-				cssAttributes = null;
-			}
-		} else {
-			// keep or truncate means the end-tag stays intact
-			operations.pop();
-			super.endElement(element, augs);
-		}
-	}
-
-	private CssScanner makeCssScanner() {
-		if (cssScanner == null) {
-            cssScanner = externalCssScanner ? new ExternalCssScanner(policy, messages) : new CssScanner(policy, messages);
-		}
-		return cssScanner;
-	}
-
-	public void processingInstruction(String target, XMLString data, Augmentations augs) throws XNIException {
-		// processing instructions are being removed
-	}
-	
-	public void startCDATA(Augmentations augs) throws XNIException {
-		inCdata = true;
-		super.startCDATA(augs);
-	}
-	
-	public void endCDATA(Augmentations augs) throws XNIException {
-		inCdata = false;
-		super.endCDATA(augs);
-	}
-
-	public void startElement(QName element, XMLAttributes attributes, Augmentations augs) throws XNIException {
-		// see if we have a policy for this tag.
-        String tagNameLowerCase = element.localpart.toLowerCase();
-        Tag tag = policy.getTagByLowercaseName(tagNameLowerCase);
-
-		/*
-		 * Handle the automatic translation of <param> to nested <embed> for IE.
-		 * This is only if the "validateParamAsEmbed" directive is enabled.
-		 */
-		boolean masqueradingParam = false;
-		String embedName = null;
-		String embedValue = null;
-		if (tag == null && isValidateParamAsEmbed && "param".equals(tagNameLowerCase)) {
-			Tag embedPolicy = policy.getEmbedTag();
-			if (embedPolicy != null && embedPolicy.isAction( Policy.ACTION_VALIDATE)) {
-				tag = embedPolicy;// Constants.BASIC_PARAM_TAG_RULE;
-				masqueradingParam = true;
-				// take <param name=x value=y> and turn into
-				// <embed x=y></embed>
-				embedName = attributes.getValue("name");
-				embedValue = attributes.getValue("value");
-				XMLAttributes masqueradingAttrs = new XMLAttributesImpl();
-				masqueradingAttrs.addAttribute(makeSimpleQname(embedName), "CDATA", embedValue);
-				attributes = masqueradingAttrs;
-			}
-		}
-
-		XMLAttributes validattributes = new XMLAttributesImpl();
-        Ops topOp = peekTop();
-        if (Ops.REMOVE == topOp || Ops.CSS == topOp) {
-			// we are in removal-mode, so remove this tag as well
-			// we also remove all child elements of a style element
-			this.operations.push( Ops.REMOVE);
-		} else if ((tag == null && policy.isEncodeUnknownTag()) || (tag != null && tag.isAction( "encode" ))) {
-			String name = "<" + element.localpart + ">";
-			super.characters( new XMLString( name.toCharArray(), 0, name.length() ), augs );
-			this.operations.push(Ops.FILTER);
-		} else if (tag == null) {
-			addError( ErrorMessageUtil.ERROR_TAG_NOT_IN_POLICY,
-                      new Object[]{ HTMLEntityEncoder.htmlEntityEncode( element.localpart ) } );
-			this.operations.push(Ops.FILTER);
-		} else if (tag.isAction( "filter")) {
-			addError(ErrorMessageUtil.ERROR_TAG_FILTERED, new Object[] {
-				HTMLEntityEncoder.htmlEntityEncode(element.localpart)
-			});
-			this.operations.push(Ops.FILTER);
-		} else if (tag.isAction( "validate")) {
-
-			boolean isStyle = "style".endsWith(element.localpart);
-
-				// validate all attributes, we need to do this now to find out
-				// how to deal with the element
-				boolean removeTag = false;
-				boolean filterTag = false;
-				for (int i = 0; i < attributes.getLength(); i++) {
-					String name = attributes.getQName(i);
-					String value = attributes.getValue(i);
-					String nameLower = name.toLowerCase();
-					Attribute attribute = tag.getAttributeByName(nameLower);
-					if (attribute == null) {
-						// no policy defined, perhaps it is a global attribute
-						attribute = policy.getGlobalAttributeByName(nameLower);
-						if (attribute == null && policy.isAllowDynamicAttributes()) {
-						    // not a global attribute, perhaps it is a dynamic attribute, if allowed
-						    attribute = policy.getDynamicAttributeByName(nameLower);
-						}
-					}
-					// boolean isAttributeValid = false;
-					if ("style".equalsIgnoreCase(name)) {
-						CssScanner styleScanner = makeCssScanner();
-						try {
-							CleanResults cr = styleScanner.scanInlineStyle(value, element.localpart, maxInputSize);
-							attributes.setValue(i, cr.getCleanHTML());
-							validattributes.addAttribute(makeSimpleQname(name), "CDATA", cr.getCleanHTML());
-							errorMessages.addAll(cr.getErrorMessages());
-						} catch (ScanException e) {
-							addError(ErrorMessageUtil.ERROR_CSS_ATTRIBUTE_MALFORMED, new Object[] {
-									element.localpart, HTMLEntityEncoder.htmlEntityEncode(value)
-							});
-						}
-					} else if (attribute != null) {
-						// validate the values against the policy
-						boolean isValid = false;
-                        if (attribute.containsAllowedValue(value.toLowerCase())) {
-                            validattributes.addAttribute(makeSimpleQname(name), "CDATA", value);
-                            isValid = true;
-                        }
-
-
-                        if (!isValid) {
-                            isValid = attribute.matchesAllowedExpression(value);
-                            if (isValid) {
-                                validattributes.addAttribute(makeSimpleQname(name), "CDATA", value);
-                            }
-                        }
-
-
-                        // if value or regexp matched, attribute is already
-						// copied, but what happens if not
-						if (!isValid && "removeTag".equals(attribute.getOnInvalid())) {
-							
-							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID_REMOVED,
-								new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
-							
-							removeTag = true;
-							
-						} else if (!isValid && ("filterTag".equals(attribute.getOnInvalid()) || masqueradingParam)) {
-							
-							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER, 
-								new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
-							
-							filterTag = true;
-							
-						} else if (!isValid) {
-							addError(ErrorMessageUtil.ERROR_ATTRIBUTE_INVALID, new Object[] { tag.getName(), HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value) });
-						}
-						
-					} else { // attribute == null
-						addError(ErrorMessageUtil.ERROR_ATTRIBUTE_NOT_IN_POLICY, new Object[] {
-								element.localpart, HTMLEntityEncoder.htmlEntityEncode(name), HTMLEntityEncoder.htmlEntityEncode(value)
-						});
-						
-						if (masqueradingParam) {
-							filterTag = true;
-						}
-					}
-				}
-
-				if (removeTag) {
-					this.operations.push(Ops.REMOVE);
-				} else if (isStyle) {
-					this.operations.push(Ops.CSS);
-					cssContent = new StringBuffer();
-					cssAttributes = validattributes;
-				} else if (filterTag) {
-					this.operations.push(Ops.FILTER);
-				} else {
-
-					if (isNofollowAnchors && "a".equals(element.localpart)) {
-						validattributes.addAttribute(makeSimpleQname("rel"), "CDATA", "nofollow");
-					}
-
-					if (masqueradingParam) {
-						validattributes = new XMLAttributesImpl();
-						validattributes.addAttribute(makeSimpleQname("name"), "CDATA", embedName);
-						validattributes.addAttribute(makeSimpleQname("value"), "CDATA", embedValue);
-					}
-
-					this.operations.push(Ops.KEEP);
-				}
-			
-		} else if (tag.isAction( "truncate")) {
-			this.operations.push(Ops.TRUNCATE);
-		} else {
-			// no options left, so the tag will be removed
-			addError(ErrorMessageUtil.ERROR_TAG_DISALLOWED, new Object[] {
-				HTMLEntityEncoder.htmlEntityEncode(element.localpart)
-			});
-			this.operations.push(Ops.REMOVE);
-		}
-		// now we know exactly what to do, let's do it
-		if ( Ops.TRUNCATE.equals( operations.peek() )) {
-			// copy the element, but remove all attributes
-			super.startElement(element, new XMLAttributesImpl(), augs);
-		} else if ( Ops.KEEP.equals(operations.peek())) {
-			// copy the element, but only copy accepted attributes
-			super.startElement(element, validattributes, augs);
-		}
-	}
-
-	private QName makeSimpleQname(String name) {
-		return new QName("", name, name, "");
-	}
-
-	private void addError(String errorKey, Object[] objs) {
-		errorMessages.add(ErrorMessageUtil.getMessage(messages, errorKey, objs));
-	}
-
-	public List<String> getErrorMessages() {
-		return errorMessages;
-	}
+    /**
+     * Does what is left to do for the innermost open element at its end.
+     */
+    private void finish(Frame frame) {
+        Frame parent = frames[depth - 1];
+        if (frame.op == STYLE) {
+            finishStyle(frame);
+        }
+        switch (frame.op) {
+            case KEEP:
+            case TRUNCATE:
+                if (frame.surviving == 0 && (frame.emptied || frame.childPruned)
+                        && !isAllowedEmptyTag(frame.element.rawname)) {
+                    // left empty by removals, so pruned as the DOM scan would
+                    parent.childPruned = true;
+                } else {
+                    parent.surviving++;
+                    flush(depth);
+                    super.endElement(frame.element, augmentations());
+                }
+                break;
+            case FILTER:
+                promote(frame, parent, 0);
+                break;
+            case ENCODE:
+                encodeAndPromote(frame, parent);
+                break;
+            case ATTRIBUTE_FILTER:
+                promote(frame, parent, 0);
+                attributeErrors(frame);
+                break;
+            case ATTRIBUTE_ENCODE:
+                encodeAndPromote(frame, parent);
+                attributeErrors(frame);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Scans the style sheet of the innermost open element, a
+     * <code>&lt;style&gt;</code>, then validates its attributes and writes
+     * the clean sheet if the element stays.
+     */
+    private void finishStyle(Frame frame) {
+        String styleSheet = null;
+        if (frame.children > 0) {
+            try {
+                CleanResults cr = styleSheetScanner().scanStyleSheet(cssContent.toString(), maxInputSize);
+                errorMessages.addAll(cr.getErrorMessages());
+                /*
+                 * If IE gets an empty style tag, i.e. <style/> it will
+                 * break all CSS on the page. I wish I was kidding. So,
+                 * if after validation no CSS properties are left, we
+                 * would normally be left with an empty style tag and
+                 * break all CSS. To prevent that, we have this check.
+                 */
+                String cleanHTML = cr.getCleanHTML();
+                styleSheet = cleanHTML == null || cleanHTML.equals("") ? "/* */" : cleanHTML;
+            } catch (ScanTimeoutException e) {
+                throw new XNIException(e);
+            } catch (ScanException e) {
+                styleMalformed(frame);
+                return;
+            } catch (ParseException e) {
+                styleMalformed(frame);
+                return;
+            } catch (NumberFormatException e) {
+                // Batik can throw NumberFormatExceptions (see bug #48).
+                styleMalformed(frame);
+                return;
+            }
+        }
+        validateAttributes(frame, frame.tag, true, frame.paramName);
+        if (styleSheet != null && frame.op != REMOVE) {
+            frame.surviving = 1;
+            flush(depth);
+            write(styleSheet);
+        }
+    }
+
+    /**
+     * If the CSS is unscannable, we report the error, but skip the style
+     * element, without pruning its parent should it be left empty.
+     */
+    private void styleMalformed(Frame frame) {
+        addError(ErrorMessageUtil.ERROR_CSS_TAG_MALFORMED, new Object[]{HTMLEntityEncoder.htmlEntityEncode(cssContent.toString())});
+        frames[depth - 1].children--;
+        frame.op = REMOVE;
+    }
+
+    /**
+     * Reports the invalid attribute that filtered or encoded the innermost
+     * open element, and goes on with the rest of its attributes. They no
+     * longer change the output, only the errors.
+     */
+    private void attributeErrors(Frame frame) {
+        do {
+            addError(frame.encode ? ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_ENCODE : ErrorMessageUtil.ERROR_ATTRIBUTE_CAUSE_FILTER,
+                    new Object[]{frame.element.rawname, HTMLEntityEncoder.htmlEntityEncode(frame.attributeName),
+                            HTMLEntityEncoder.htmlEntityEncode(frame.attributeValue)});
+        } while (processAttributes(frame, frame.attributeIndex + 1) == CHILDREN_FIRST);
+    }
+
+    /**
+     * Writes the innermost open element as text around its children, which
+     * have been written already, and puts them in its place.
+     */
+    private void encodeAndPromote(Frame frame, Frame parent) {
+        boolean hasChildren = frame.children > 0;
+        if (startedDepth < depth) {
+            flush(depth - 1);
+            write(openingTag(frame, hasChildren));
+        }
+        if (hasChildren) {
+            write("</" + frame.element.rawname + ">");
+        }
+        promote(frame, parent, hasChildren ? 2 : 1);
+    }
+
+    /**
+     * Puts the children of the innermost open element, and the number of
+     * texts written for its tags, in its place.
+     */
+    private void promote(Frame frame, Frame parent, int texts) {
+        parent.children += frame.children - 1 + texts;
+        parent.surviving += frame.surviving + texts;
+        parent.childPruned |= frame.childPruned;
+        if (depth > 1 && parent.children == 0) {
+            parent.emptied = true;
+        }
+    }
+
+    /**
+     * Counts the innermost open element as a child of its parent, with what
+     * is to be done with it.
+     */
+    private void keep(Frame frame, byte op) {
+        if (frame.op == PENDING) {
+            frames[depth - 1].children++;
+        }
+        frame.op = op;
+    }
+
+    /**
+     * Removes the innermost open element, unless it has been filtered or
+     * encoded away already. If that leaves its parent empty, the parent is
+     * pruned at its end unless something follows.
+     */
+    private void remove(Frame frame) {
+        Frame parent = frames[depth - 1];
+        if (frame.op == STYLE) {
+            parent.children--;
+        } else if (frame.op != PENDING) {
+            return; // already gone
+        }
+        frame.op = REMOVE;
+        if (depth > 1 && parent.children == 0) {
+            parent.emptied = true;
+        }
+    }
+
+    /**
+     * Writes the start tags of the open elements up to <code>upTo</code>
+     * that have not been written yet.
+     */
+    private void flush(int upTo) {
+        for (int d = startedDepth + 1; d <= upTo; d++) {
+            Frame frame = frames[d];
+            if (frame.op == KEEP || frame.op == TRUNCATE) {
+                super.startElement(frame.element, attributes(frame), augmentations());
+            } else if (frame.op == ENCODE || frame.op == ATTRIBUTE_ENCODE) {
+                write(openingTag(frame, true));
+            }
+        }
+        if (startedDepth < upTo) {
+            startedDepth = upTo;
+        }
+    }
+
+    private XMLAttributes attributes(Frame frame) {
+        validAttributes.removeAllAttributes();
+        SortedAttributes attributes = frame.attributes;
+        for (int i = 0; i < attributes.size; i++) {
+            validAttributes.addAttribute(makeSimpleQname(attributes.names[i]), "CDATA", attributes.values[i]);
+        }
+        return validAttributes;
+    }
+
+    /**
+     * @return The element as the text the DOM scan puts in its place when
+     *         it is encoded.
+     */
+    private String openingTag(Frame frame, boolean hasChildren) {
+        StringBuilder sb = openingTag;
+        sb.setLength(0);
+        sb.append('<').append(frame.element.rawname);
+        SortedAttributes attributes = frame.attributes;
+        for (int i = 0; i < attributes.size; i++) {
+            sb.append(' ').append(HTMLEntityEncoder.htmlEntityEncode(attributes.names[i]));
+            sb.append("=\"").append(HTMLEntityEncoder.htmlEntityEncode(attributes.values[i])).append('"');
+        }
+        sb.append(hasChildren ? ">" : "/>");
+        return sb.toString();
+    }
+
+    private void write(String s) {
+        text.clear();
+        text.append(s);
+        super.characters(text, augmentations());
+    }
+
+    private Augmentations augmentations() {
+        augmentations.removeAllItems();
+        return augmentations;
+    }
+
+    private Frame frame(int d) {
+        if (d == frames.length) {
+            frames = Arrays.copyOf(frames, d * 2);
+        }
+        Frame frame = frames[d];
+        if (frame == null) {
+            frame = frames[d] = new Frame();
+        }
+        return frame;
+    }
 
+    private boolean isAllowedEmptyTag(String tagName) {
+        return "head".equals(tagName) || policy.getAllowedEmptyTags().matches(tagName);
+    }
+
+    private CssScanner inlineCssScanner() {
+        if (inlineCssScanner == null) {
+            inlineCssScanner = new CssScanner(policy, messages);
+            inlineCssScanner.setDeadline(deadline, maxScanTime);
+        }
+        return inlineCssScanner;
+    }
+
+    private CssScanner styleSheetScanner() {
+        if (styleSheetScanner == null) {
+            styleSheetScanner = externalCssScanner ? new ExternalCssScanner(policy, messages) : new CssScanner(policy, messages);
+            styleSheetScanner.setDeadline(deadline, maxScanTime);
+        }
+        return styleSheetScanner;
+    }
+
+    private QName makeSimpleQname(String name) {
+        attributeName.setValues("", name, name, "");
+        return attributeName;
+    }
+
+    private void addError(String errorKey, Object[] objs) {
+        errorMessages.add(ErrorMessageUtil.getMessage(messages, errorKey, objs));
+    }
 }
@@ -0,0 +1,354 @@
+package org.owasp.validator.html.scan;
+
+import java.util.Arrays;
+
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * What a mark-and-emit scan decided about a parsed fragment, kept beside the
+ * tree rather than applied to it. Every node the scan visits gets a number,
+ * in document order, the fragment itself being {@link #ROOT}; the arrays
+ * indexed by those numbers say where each node ends up, what text replaces
+ * its own and which attributes it is left with. The DOM is only ever read.
+ * <p/>
+ * Nodes keep their place among the siblings visited before them, and move
+ * only when their parent is filtered or encoded. Numbers that have no node
+ * are the text the scan made up for encoded tags. The children of an element
+ * are counted as in the DOM until they have all been visited, so the element
+ * looks empty exactly when it would have in a tree changed in place.
+ */
+final class Marks {
+
+    static final int NONE = -1;
+    static final int ROOT = 0;
+
+    private Node[] nodes;
+    private String[] values;
+    private SortedAttributes[] attributes;
+    private boolean[] promoted;
+    private int[] parent;
+    private int[] first;
+    private int[] last;
+    private int[] next;
+    private int[] prev;
+    private int[] children;
+    private int size;
+
+    private int[] emptied = new int[16];
+    private int emptiedSize;
+
+    /*
+     * The clean style sheet of a <style> element, waiting for its text to be
+     * visited.
+     */
+    private int styleElement = NONE;
+    private String styleSheet;
+
+    Marks(DocumentFragment fragment, int sizeHint) {
+        int capacity = Math.max(16, sizeHint >> 4);
+        nodes = new Node[capacity];
+        values = new String[capacity];
+        attributes = new SortedAttributes[capacity];
+        promoted = new boolean[capacity];
+        parent = new int[capacity];
+        first = new int[capacity];
+        last = new int[capacity];
+        next = new int[capacity];
+        prev = new int[capacity];
+        children = new int[capacity];
+        add(fragment, null);
+    }
+
+    /**
+     * Numbers a node the scan is about to validate, and puts it after the
+     * children of <code>parent</code> visited so far.
+     */
+    int visit(Node node, int parent) {
+        int k = add(node, null);
+        insertBefore(k, parent, NONE);
+        if (styleElement != NONE) {
+            if (parent == styleElement) {
+                values[k] = styleSheet;
+            }
+            styleElement = NONE;
+            styleSheet = null;
+        }
+        return k;
+    }
+
+    /**
+     * @return The first child of the element to visit, or null if there is
+     *         none or its children were promoted already.
+     */
+    Node firstChild(int k) {
+        if (promoted[k]) {
+            return null;
+        }
+        Node head = nodes[k].getFirstChild();
+        int count = 0;
+        for (Node child = head; child != null; child = child.getNextSibling()) {
+            count++;
+        }
+        children[k] = count;
+        return head;
+    }
+
+    Node node(int k) {
+        return nodes[k];
+    }
+
+    int parent(int k) {
+        return parent[k];
+    }
+
+    int firstChildMark(int k) {
+        return first[k];
+    }
+
+    int nextSibling(int k) {
+        return next[k];
+    }
+
+    boolean hasChildNodes(int k) {
+        return children[k] > 0;
+    }
+
+    /**
+     * @return The text of a text node or comment, as the scan left it.
+     */
+    String value(int k) {
+        return values[k] != null ? values[k] : nodes[k].getNodeValue();
+    }
+
+    void setValue(int k, String value) {
+        values[k] = value;
+    }
+
+    /**
+     * Replaces the text of the first child of a <code>&lt;style&gt;</code>
+     * element, which is only visited next.
+     */
+    void setStyleSheet(int k, String styleSheet) {
+        this.styleElement = k;
+        this.styleSheet = styleSheet;
+    }
+
+    /**
+     * Removes the node. If that leaves its parent element empty, the parent
+     * is remembered for the scan to prune once the walk is done.
+     */
+    void remove(int k) {
+        int p = parent[k];
+        if (p == NONE) {
+            return; // already gone
+        }
+        detach(k);
+        if (p != ROOT && children[p] == 0) {
+            if (emptiedSize == emptied.length) {
+                emptied = Arrays.copyOf(emptied, emptiedSize * 2);
+            }
+            emptied[emptiedSize++] = p;
+        }
+    }
+
+    /**
+     * Removes the node without remembering its parent.
+     */
+    void detach(int k) {
+        int p = parent[k];
+        if (p != NONE) {
+            unlink(k);
+            children[p]--;
+        }
+    }
+
+    int emptiedCount() {
+        return emptiedSize;
+    }
+
+    int emptied(int i) {
+        return emptied[i];
+    }
+
+    /**
+     * Puts the children of the element in its place.
+     */
+    void promoteChildren(int k) {
+        int p = parent[k];
+        promoted[k] = true;
+        if (p == NONE) {
+            return;
+        }
+        for (int child = first[k], after; child != NONE; child = after) {
+            after = next[child];
+            unlink(child);
+            insertBefore(child, p, k);
+        }
+        children[p] += children[k];
+        children[k] = 0;
+        remove(k);
+    }
+
+    /**
+     * Puts the children of the element in its place, between the text of
+     * its opening tag and that of its closing tag, if it has one.
+     */
+    void encodeAndPromoteChildren(int k, String openingTag, String closingTag) {
+        int p = parent[k];
+        if (p != NONE) {
+            insertBefore(add(null, openingTag), p, k);
+            children[p]++;
+            if (closingTag != null) {
+                insertBefore(add(null, closingTag), p, next[k]);
+                children[p]++;
+            }
+        }
+        promoteChildren(k);
+    }
+
+    /**
+     * Keeps only the text children of the element, which the scan does not
+     * visit, and none of its attributes.
+     */
+    void truncate(int k) {
+        attributes[k] = new SortedAttributes(0);
+        children[k] = 0;
+        for (Node child = nodes[k].getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (child.getNodeType() == Node.TEXT_NODE) {
+                insertBefore(add(child, null), k, NONE);
+                children[k]++;
+            }
+        }
+    }
+
+    /*
+     * Attributes are read from the element until the scan changes one; from
+     * then on the element has a copy of its own, kept in the order Xerces
+     * keeps attributes in, so indexes mean the same in both.
+     */
+
+    /**
+     * @return Whether the attributes of the element are no longer those in
+     *         the DOM.
+     */
+    boolean hasOwnAttributes(int k) {
+        return attributes[k] != null;
+    }
+
+    int attributeCount(int k) {
+        SortedAttributes own = attributes[k];
+        return own != null ? own.size : nodes[k].getAttributes().getLength();
+    }
+
+    String attributeName(int k, int i) {
+        SortedAttributes own = attributes[k];
+        return own != null ? own.names[i] : nodes[k].getAttributes().item(i).getNodeName();
+    }
+
+    String attributeValue(int k, int i) {
+        SortedAttributes own = attributes[k];
+        return own != null ? own.values[i] : nodes[k].getAttributes().item(i).getNodeValue();
+    }
+
+    /**
+     * @return The value of the attribute, or an empty String if there is
+     *         none, as <code>Element.getAttribute()</code> has it.
+     */
+    String getAttribute(int k, String name) {
+        return own(k).get(name);
+    }
+
+    void setAttributeValue(int k, int i, String value) {
+        own(k).values[i] = value;
+    }
+
+    void setAttribute(int k, String name, String value) {
+        own(k).set(name, value);
+    }
+
+    void removeAttribute(int k, String name) {
+        own(k).remove(name);
+    }
+
+    private SortedAttributes own(int k) {
+        SortedAttributes own = attributes[k];
+        if (own == null) {
+            NamedNodeMap map = nodes[k].getAttributes();
+            own = new SortedAttributes(map.getLength());
+            for (int i = 0; i < map.getLength(); i++) {
+                Node attribute = map.item(i);
+                own.names[i] = attribute.getNodeName();
+                own.values[i] = attribute.getNodeValue();
+            }
+            own.size = map.getLength();
+            attributes[k] = own;
+        }
+        return own;
+    }
+
+    private int add(Node node, String value) {
+        if (size == nodes.length) {
+            int capacity = size * 2;
+            nodes = Arrays.copyOf(nodes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            attributes = Arrays.copyOf(attributes, capacity);
+            promoted = Arrays.copyOf(promoted, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            first = Arrays.copyOf(first, capacity);
+            last = Arrays.copyOf(last, capacity);
+            next = Arrays.copyOf(next, capacity);
+            prev = Arrays.copyOf(prev, capacity);
+            children = Arrays.copyOf(children, capacity);
+        }
+        int k = size++;
+        nodes[k] = node;
+        values[k] = value;
+        parent[k] = NONE;
+        first[k] = NONE;
+        last[k] = NONE;
+        next[k] = NONE;
+        prev[k] = NONE;
+        return k;
+    }
+
+    /**
+     * Links <code>k</code> in among the children of <code>p</code>, before
+     * <code>before</code> or last if that is <code>NONE</code>. The count of
+     * children is up to the caller.
+     */
+    private void insertBefore(int k, int p, int before) {
+        int after = before == NONE ? last[p] : prev[before];
+        parent[k] = p;
+        prev[k] = after;
+        next[k] = before;
+        if (after == NONE) {
+            first[p] = k;
+        } else {
+            next[after] = k;
+        }
+        if (before == NONE) {
+            last[p] = k;
+        } else {
+            prev[before] = k;
+        }
+    }
+
+    private void unlink(int k) {
+        int p = parent[k];
+        if (prev[k] == NONE) {
+            first[p] = next[k];
+        } else {
+            next[prev[k]] = next[k];
+        }
+        if (next[k] == NONE) {
+            last[p] = prev[k];
+        } else {
+            prev[next[k]] = prev[k];
+        }
+        parent[k] = NONE;
+        prev[k] = NONE;
+        next[k] = NONE;
+    }
+}
@@ -0,0 +1,88 @@
+package org.owasp.validator.html.scan;
+
+import java.util.Arrays;
+
+/**
+ * The attributes of one element, sorted by name the way
+ * <code>NamedNodeMapImpl</code> sorts them, so that both engines go through
+ * and write them in the same order.
+ */
+final class SortedAttributes {
+    String[] names;
+    String[] values;
+    int size;
+
+    SortedAttributes(int capacity) {
+        names = new String[Math.max(capacity, 2)];
+        values = new String[names.length];
+    }
+
+    /**
+     * @return The index of the attribute, or <code>-1 - index</code> of
+     *         where it would go.
+     */
+    int find(String name) {
+        int i = 0;
+        int first = 0;
+        int last = size - 1;
+        while (first <= last) {
+            i = (first + last) / 2;
+            int test = name.compareTo(names[i]);
+            if (test == 0) {
+                return i;
+            } else if (test < 0) {
+                last = i - 1;
+            } else {
+                first = i + 1;
+            }
+        }
+        if (first > i) {
+            i = first;
+        }
+        return -1 - i;
+    }
+
+    /**
+     * @return The value of the attribute, or an empty String if there is
+     *         none, as <code>Element.getAttribute()</code> has it.
+     */
+    String get(String name) {
+        int i = find(name);
+        return i >= 0 ? values[i] : "";
+    }
+
+    void set(String name, String value) {
+        int i = find(name);
+        if (i >= 0) {
+            values[i] = value;
+            return;
+        }
+        i = -1 - i;
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        System.arraycopy(names, i, names, i + 1, size - i);
+        System.arraycopy(values, i, values, i + 1, size - i);
+        names[i] = name;
+        values[i] = value;
+        size++;
+    }
+
+    void remove(String name) {
+        int i = find(name);
+        if (i >= 0) {
+            size--;
+            System.arraycopy(names, i + 1, names, i, size - i);
+            System.arraycopy(values, i + 1, values, i, size - i);
+            names[size] = null;
+            values[size] = null;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+}
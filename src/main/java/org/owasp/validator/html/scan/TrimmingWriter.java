@@ -0,0 +1,92 @@
+package org.owasp.validator.html.scan;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Passes everything through to the target except a trailing run of line
+ * breaks, which is held back until {@link #finish(boolean)}. That lets a
+ * streaming scan drop the serializer's final newline exactly like
+ * {@link AbstractAntiSamyScanner#trim(String, String)} does, without keeping
+ * the output around.
+ */
+class TrimmingWriter extends Writer {
+
+    private final Writer out;
+    private final StringBuilder pending = new StringBuilder();
+
+    TrimmingWriter(Writer out) {
+        this.out = out;
+    }
+
+    public void write(int c) throws IOException {
+        if (c == '\n' || c == '\r') {
+            pending.append((char) c);
+        } else {
+            flushPending();
+            out.write(c);
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        int end = off + len;
+        int keep = end;
+        while (keep > off && (cbuf[keep - 1] == '\n' || cbuf[keep - 1] == '\r')) {
+            keep--;
+        }
+        if (keep > off) {
+            flushPending();
+            out.write(cbuf, off, keep - off);
+        }
+        pending.append(cbuf, keep, end - keep);
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        int end = off + len;
+        int keep = end;
+        while (keep > off && (str.charAt(keep - 1) == '\n' || str.charAt(keep - 1) == '\r')) {
+            keep--;
+        }
+        if (keep > off) {
+            flushPending();
+            out.write(str, off, keep - off);
+        }
+        pending.append(str, keep, end);
+    }
+
+    /**
+     * Held back line breaks are not flushed; they may still turn out to be
+     * the end of the output.
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Leaves the target open; it belongs to the caller.
+     */
+    public void close() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes out what was held back, minus the final newline unless the
+     * input ended with one too.
+     */
+    void finish(boolean inputEndsWithNewline) throws IOException {
+        int length = pending.length();
+        if (!inputEndsWithNewline && length > 0 && pending.charAt(length - 1) == '\n') {
+            length -= length > 1 && pending.charAt(length - 2) == '\r' ? 2 : 1;
+        }
+        out.write(pending.toString(), 0, length);
+        pending.setLength(0);
+        out.flush();
+    }
+
+    private void flushPending() throws IOException {
+        if (pending.length() > 0) {
+            out.write(pending.toString());
+            pending.setLength(0);
+        }
+    }
+}
@@ -47,6 +47,7 @@ public final class ErrorMessageUtil {
 	public static final String ERROR_COMMENT_REMOVED = "error.comment.removed";
 	
 	public static final String ERROR_INPUT_SIZE = "error.size.toolarge";
+	public static final String ERROR_SCAN_TIMEOUT = "error.scan.timeout";
 
 	public static final String ERROR_CSS_ATTRIBUTE_MALFORMED = "error.css.attribute.malformed";
 	public static final String ERROR_CSS_TAG_MALFORMED = "error.css.tag.malformed";
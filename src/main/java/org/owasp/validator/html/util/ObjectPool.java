@@ -0,0 +1,153 @@
+package org.owasp.validator.html.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of expensive, reusable objects such as parsers. At most
+ * <code>maxIdle</code> objects are kept between uses; anything released
+ * beyond that is dropped for the garbage collector, so a burst of traffic
+ * does not pin its peak number of objects forever.
+ * <p/>
+ * With thread affinity on, each thread first reuses the object it released
+ * last, kept in a thread-local slot. That avoids the shared queue in the
+ * common case at the price of up to one extra idle object per thread, which
+ * is not counted against <code>maxIdle</code>.
+ */
+public class ObjectPool<T> {
+
+    /**
+     * Creates the pooled objects on demand.
+     */
+    public interface Factory<T> {
+        T create() throws Exception;
+    }
+
+    private final Factory<T> factory;
+    private final Queue<T> idle = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final ThreadLocal<T> local = new ThreadLocal<T>();
+
+    private volatile int maxIdle;
+    private volatile boolean threadAffinity;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong creations = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    public ObjectPool(Factory<T> factory, int maxIdle, boolean threadAffinity) {
+        if (factory == null) {
+            throw new IllegalArgumentException("No factory given");
+        }
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+        this.threadAffinity = threadAffinity;
+    }
+
+    /**
+     * Takes an idle object, or creates one when there is none.
+     *
+     * @throws Exception Whatever the factory throws.
+     */
+    public T borrow() throws Exception {
+        borrows.incrementAndGet();
+        if (threadAffinity) {
+            T item = local.get();
+            if (item != null) {
+                local.set(null);
+                return item;
+            }
+        }
+        T item = idle.poll();
+        if (item != null) {
+            idleCount.decrementAndGet();
+            return item;
+        }
+        misses.incrementAndGet();
+        item = factory.create();
+        creations.incrementAndGet();
+        return item;
+    }
+
+    /**
+     * Hands an object back for reuse. It must not be used by the caller
+     * afterwards.
+     */
+    public void release(T item) {
+        if (item == null) {
+            return;
+        }
+        if (threadAffinity && local.get() == null) {
+            local.set(item);
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            discards.incrementAndGet();
+            return;
+        }
+        idle.offer(item);
+    }
+
+    /**
+     * Drops every idle object in the shared queue. Thread-local slots are
+     * left alone; they are freed as their threads reuse or end.
+     */
+    public void clear() {
+        while (idle.poll() != null) {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    /**
+     * Changes the idle limit. Lowering it does not evict anything right away;
+     * surplus objects are discarded as they are released.
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    public boolean isThreadAffinity() {
+        return threadAffinity;
+    }
+
+    public void setThreadAffinity(boolean threadAffinity) {
+        this.threadAffinity = threadAffinity;
+    }
+
+    public long getBorrowCount() {
+        return borrows.get();
+    }
+
+    /**
+     * @return The number of borrows that found nothing idle.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getCreationCount() {
+        return creations.get();
+    }
+
+    /**
+     * @return The number of released objects dropped because the pool was full.
+     */
+    public long getDiscardCount() {
+        return discards.get();
+    }
+
+    /**
+     * @return The number of objects idle in the shared queue.
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+}
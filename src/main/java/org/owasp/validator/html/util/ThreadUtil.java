@@ -0,0 +1,55 @@
+package org.owasp.validator.html.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.owasp.validator.html.ScanException;
+
+/**
+ * What the scans that hand work to other threads share: how those threads
+ * are made, and how a failure on one of them gets back to the caller.
+ */
+public final class ThreadUtil {
+
+    private ThreadUtil() {
+    }
+
+    /**
+     * @return A factory of daemon threads, so that idle workers never keep
+     *         the JVM alive, named <code>prefix</code> and a running number.
+     */
+    public static ThreadFactory daemonThreads(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Unwraps what a task on another thread failed with, to be thrown as
+     * <code>throw ThreadUtil.scanFailure(e)</code>. A RuntimeException or an
+     * Error is thrown from here as it is.
+     *
+     * @return The ScanException the task threw, or one that wraps whatever
+     *         other checked exception it threw.
+     */
+    public static ScanException scanFailure(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof ScanException) {
+            return (ScanException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new ScanException(e);
+    }
+}
@@ -0,0 +1,218 @@
+package org.owasp.validator.html.util;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded map with W-TinyLFU eviction. New entries land in a small LRU
+ * window; an entry falling out of the window only displaces the main area's
+ * LRU victim if a count-min sketch says it has been asked for more often.
+ * The main area is a segmented LRU, so entries that are hit again move to a
+ * protected segment and survive bursts of one-off keys.
+ * <p/>
+ * All methods are synchronized; the cache is meant for values that are
+ * expensive to compute compared to a short critical section.
+ */
+public class TinyLfuCache<K, V> {
+
+    private final int maximumSize;
+    private final int windowSize;
+    private final int protectedSize;
+
+    private final Map<K, V> window = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final Map<K, V> probation = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private final Map<K, V> protectedSegment = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+    private final FrequencySketch sketch;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public TinyLfuCache(int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be positive");
+        }
+        this.maximumSize = maximumSize;
+        this.windowSize = Math.max(1, maximumSize / 100);
+        this.protectedSize = (maximumSize - windowSize) * 4 / 5;
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    public synchronized V get(K key) {
+        sketch.increment(key.hashCode());
+
+        V value = window.get(key);
+        if (value != null) {
+            hits++;
+            return value;
+        }
+        value = protectedSegment.get(key);
+        if (value != null) {
+            hits++;
+            return value;
+        }
+        value = probation.remove(key);
+        if (value != null) {
+            hits++;
+            protectedSegment.put(key, value);
+            if (protectedSegment.size() > protectedSize) {
+                Map.Entry<K, V> demoted = removeEldest(protectedSegment);
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+            return value;
+        }
+        misses++;
+        return null;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (window.containsKey(key)) {
+            window.put(key, value);
+            return;
+        }
+        if (probation.containsKey(key)) {
+            probation.put(key, value);
+            return;
+        }
+        if (protectedSegment.containsKey(key)) {
+            protectedSegment.put(key, value);
+            return;
+        }
+
+        window.put(key, value);
+        if (window.size() <= windowSize) {
+            return;
+        }
+
+        Map.Entry<K, V> candidate = removeEldest(window);
+        if (maximumSize == windowSize) {
+            evictions++;
+            return;
+        }
+        if (probation.size() + protectedSegment.size() < maximumSize - windowSize) {
+            probation.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+
+        Map<K, V> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+        K victim = victimSegment.keySet().iterator().next();
+        evictions++;
+        if (sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.hashCode())) {
+            victimSegment.remove(victim);
+            probation.put(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    public synchronized int size() {
+        return window.size() + probation.size() + protectedSegment.size();
+    }
+
+    public synchronized void clear() {
+        window.clear();
+        probation.clear();
+        protectedSegment.clear();
+        sketch.clear();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * @return The number of entries dropped so far, whether a resident
+     *         victim or a rejected newcomer.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    private static <K, V> Map.Entry<K, V> removeEldest(Map<K, V> segment) {
+        Iterator<Map.Entry<K, V>> iterator = segment.entrySet().iterator();
+        Map.Entry<K, V> eldest = iterator.next();
+        Map.Entry<K, V> copy = new AbstractMap.SimpleImmutableEntry<K, V>(eldest);
+        iterator.remove();
+        return copy;
+    }
+
+    /**
+     * A count-min sketch of 4-bit-style saturating counters (capped at 15)
+     * in four rows. Once the number of increments reaches ten times the
+     * cache size all counters are halved, so old popularity fades.
+     */
+    static final class FrequencySketch {
+
+        private static final int[] SEEDS = {0x97cb3127, 0x5f356495, 0x2f0f7b6b, 0x81b5a3d1};
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int width = 16;
+            while (width < maximumSize && width < (1 << 24)) {
+                width <<= 1;
+            }
+            table = new byte[SEEDS.length][width];
+            mask = width - 1;
+            sampleSize = 10 * Math.max(maximumSize, 16);
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < SEEDS.length; row++) {
+                int index = index(hash, row);
+                if (table[row][index] < MAX_COUNT) {
+                    table[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < SEEDS.length; row++) {
+                frequency = Math.min(frequency, table[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        void clear() {
+            for (byte[] row : table) {
+                Arrays.fill(row, (byte) 0);
+            }
+            additions = 0;
+        }
+
+        private void reset() {
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions >>= 1;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+            h ^= h >>> 15;
+            return h & mask;
+        }
+    }
+}
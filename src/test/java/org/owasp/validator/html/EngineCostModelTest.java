@@ -0,0 +1,52 @@
+package org.owasp.validator.html;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * What must hold for any refit of the cost model, rather than what its
+ * present coefficients give for a particular length.
+ */
+public class EngineCostModelTest {
+
+    private static final int[] LENGTHS = {0, 1, 2, 5, 10, 50, 100, 1000, 10000, 100000, 1000000, 10000000};
+
+    private final EngineCostModel model = new EngineCostModel();
+
+    @Test
+    public void costsGrowWithLength() {
+        for (int i = 1; i < LENGTHS.length; i++) {
+            assertTrue(model.domNanos(LENGTHS[i]) > model.domNanos(LENGTHS[i - 1]));
+            assertTrue(model.saxNanos(LENGTHS[i]) > model.saxNanos(LENGTHS[i - 1]));
+        }
+    }
+
+    @Test
+    public void longerInputsNeverGoBackToDom() {
+        boolean sax = false;
+        for (int length = 0; length <= 100000; length++) {
+            int choice = model.choose(length);
+            if (sax) {
+                assertEquals("length " + length, AntiSamy.SAX, choice);
+            }
+            sax = choice == AntiSamy.SAX;
+        }
+    }
+
+    @Test
+    public void choiceIsTheCheaperEngine() {
+        for (int length : LENGTHS) {
+            double cheapest = Math.min(model.domNanos(length), model.saxNanos(length));
+            double chosen = model.choose(length) == AntiSamy.DOM ? model.domNanos(length) : model.saxNanos(length);
+            assertEquals(cheapest, chosen, 0);
+        }
+    }
+
+    @Test
+    public void saxByDefault() {
+        assertEquals(AntiSamy.SAX, model.choose(1000));
+        assertEquals(AntiSamy.SAX, model.choose(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,44 @@
+package org.owasp.validator.html.scan;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class CharIndexTest {
+
+    @Test
+    public void countsAndFirstPositions() {
+        CharIndex index = new CharIndex('\'', '"', '=');
+        index.index("a=\"b\" c='d' e=f");
+
+        assertEquals(2, index.count('\''));
+        assertEquals(2, index.count('"'));
+        assertEquals(3, index.count('='));
+        assertEquals(2, index.first('"'));
+        assertEquals(8, index.first('\''));
+        assertEquals(1, index.first('='));
+    }
+
+    @Test
+    public void reuseForgetsPreviousText() {
+        CharIndex index = new CharIndex('\'', '"', '=');
+        StringBuilder many = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            many.append("\"=");
+        }
+        index.index(many);
+        assertEquals(1000, index.count('"'));
+        assertEquals(0, index.first('"'));
+        assertEquals(1, index.first('='));
+
+        index.index("no quotes");
+        assertEquals(0, index.count('"'));
+        assertEquals(-1, index.first('"'));
+        assertEquals(-1, index.first('='));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void untrackedChar() {
+        new CharIndex('=').count('<');
+    }
+}
@@ -39,6 +39,39 @@ public class AntiSamyAttrTest {
         Assert.assertTrue(testXss(content));
     }
 
+    @Test
+    public void attributeBreakout() throws Exception {
+        Assert.assertTrue(breaksOut("x\" onclick=\"alert(1)"));
+        Assert.assertTrue(breaksOut("x' onmouseover='alert(1)"));
+        Assert.assertTrue(breaksOut("x\" a=b><b onclick=alert(1)>y"));
+        Assert.assertTrue(breaksOut("x\" formaction=javascript:alert(1) \""));
+    }
+
+    @Test
+    public void quotesWithoutBreakout() throws Exception {
+        Assert.assertFalse(breaksOut("He said \"hi\" and x=1"));
+        Assert.assertFalse(breaksOut("it's a=b"));
+        Assert.assertFalse(breaksOut("x\"><script>onclick=1</script>"));
+        Assert.assertFalse(breaksOut("onclick=\"alert(1)\""));
+    }
+
+    @Test
+    public void breakoutKeepsCleanHtml() throws Exception {
+        Policy policy = Policy.getInstance(this.getClass().getResourceAsStream("/antisamy.xml"));
+        String content = "x\" onclick=\"alert(1)";
+        AntiSamyExt as = new AntiSamyExt();
+        CleanResults withAttr = as.scan(content, policy, true);
+        CleanResults without = as.scan(content, policy, false);
+        Assert.assertEquals(without.getCleanHTML(), withAttr.getCleanHTML());
+        Assert.assertEquals(without.getNumberOfErrors() + 1, withAttr.getNumberOfErrors());
+    }
+
+    private boolean breaksOut(String content) throws Exception {
+        Policy policy = Policy.getInstance(this.getClass().getResourceAsStream("/antisamy.xml"));
+        AntiSamyExt as = new AntiSamyExt();
+        return as.scan(content, policy, true).getNumberOfErrors() > as.scan(content, policy, false).getNumberOfErrors();
+    }
+
     private boolean testXss(String content) throws PolicyException {
         Policy policy = Policy.getInstance(this.getClass().getResourceAsStream("/antixss_attr.xml"));
         Locale defaultLocal = Locale.getDefault();
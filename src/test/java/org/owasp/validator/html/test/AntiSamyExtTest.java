@@ -0,0 +1,122 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamyExt;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.MultiCleanResults;
+import org.owasp.validator.html.scan.AntisamyDOMScannerExt;
+
+public class AntiSamyExtTest {
+
+    private TestPolicy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    @Test
+    public void parallelMapScanMatchesSequential() throws Exception {
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 7 == 0) {
+                params.put("p" + i, new String[]{"<b>ok " + i + "</b>", "", "<script>alert(" + i + ")</script>x"});
+            } else if (i % 11 == 0) {
+                params.put("p" + i, null);
+            } else {
+                params.put("p" + i, new String[]{"value " + i});
+            }
+        }
+
+        AntiSamyExt as = new AntiSamyExt();
+        MultiCleanResults sequential = as.scan(params, policy);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            MultiCleanResults parallel = as.scan(params, policy, executor, 1);
+
+            assertEquals(sequential.getErrorMessages(), parallel.getErrorMessages());
+            Map<String, String[]> expected = sequential.getCleanHtmlMap();
+            Map<String, String[]> actual = parallel.getCleanHtmlMap();
+            assertEquals(expected.keySet(), actual.keySet());
+            for (String key : expected.keySet()) {
+                assertArrayEquals(expected.get(key), actual.get(key));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cleanMapHasNoInjections() throws Exception {
+        Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        params.put("name", new String[]{"John"});
+        params.put("title", new String[]{"Mr", ""});
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            MultiCleanResults results = new AntiSamyExt().scan(params, policy, executor, 0);
+            assertEquals(0, results.getNumberOfErrors());
+            assertNull(results.getCleanHtmlMap());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * The chunks handed to the executor queue up behind the very task that
+     * waits for them.
+     */
+    @Test(timeout = 60000)
+    public void parallelMapScanFromTheExecutorsOnlyThread() throws Exception {
+        final Map<String, String[]> params = new LinkedHashMap<String, String[]>();
+        for (int i = 0; i < 16; i++) {
+            params.put("p" + i, new String[]{"<b>ok " + i + "</b><script>alert(" + i + ")</script>"});
+        }
+
+        final AntiSamyExt as = new AntiSamyExt();
+        MultiCleanResults sequential = as.scan(params, policy);
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            MultiCleanResults parallel = executor.submit(new Callable<MultiCleanResults>() {
+                public MultiCleanResults call() throws Exception {
+                    return as.scan(params, policy, executor, 1);
+                }
+            }).get();
+
+            assertEquals(sequential.getErrorMessages(), parallel.getErrorMessages());
+            for (String key : params.keySet()) {
+                assertArrayEquals(sequential.getCleanHtmlMap().get(key), parallel.getCleanHtmlMap().get(key));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void batchMatchesSingleScans() throws Exception {
+        List<String> inputs = Arrays.asList("<pre>kept  as  is", "<p>one<p>two", "text & more",
+                "<table><tr><td>cell", "<b>bold</b><script>x</script>", "<pre>\n  again</pre>");
+        List<CleanResults> batch = new AntisamyDOMScannerExt(policy).scanAll(inputs);
+        for (int i = 0; i < inputs.size(); i++) {
+            String single = new AntisamyDOMScannerExt(policy).scan(inputs.get(i)).getCleanHTML();
+            assertEquals(inputs.get(i), single, batch.get(i).getCleanHTML());
+        }
+    }
+}
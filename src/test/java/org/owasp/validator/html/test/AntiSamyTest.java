@@ -61,7 +61,7 @@ public class AntiSamyTest {
             "O900/Gn82AjyLYqiWZ4ILXBBv/ZaXpTpQL0p9nv7gwF2MWsS2OWEImcVDa+1ElrjUumG6CVEv/rvax53krqJJDg+4Z/XcHxv58w6hNrXiWqFNjxlu5RZHvj1oQQXnS2n8qw8e/c+8ea2TiDIVr4OmgZz1G9uSPBeOZJvySqdgNPMpgfjZwkL2ez9/x31sLuQxi/FW3DFXU6kGSUjaq8g/iGXlaaAcQ0t9Gy+y005Z9wpr2JWWzishL+1JZp9D4SY/r3NHDphN4MNdLHMNBRPSIgfsaSqfLraIt+zWIycsd+nksVxtPv9wcyXy51E1qlHr6Uygz2VZYD9q9zyxEX4wRP2VEewHYUomL9d1F6gGG5fN3z82bQ4hI9uDirWhneWazUOQBRud5otPOm9",
             "C3c+d5Q9lyTafPLdelG1TKaLFinw1TOjyI6KkrQyHKkttfnO58WFvScl1TiRcB/iHxKahskoE2+VRLUIhctuDU4sUvQh/g9Arw0LAA4QTxuLFt01XYdigurz4FT15ox2oDGGGrRb3VGjDTXK1OWVJoLMW95EVqyMc9F+Fdej85LHE+8WesIfacjUQtTG1tzYVQTfubZq0+qxXws8QrxMLFtVE38tbeXo+Ok1/U5TUa6FjWflEfvKY3XVcl8RKkXua7fVz/Blj8Gh+dWe2cOxa0lpM75ZHyz9adQrB2Pb4571E4u2xI5un0R0MFJZBQuPDc1G5rPhyk+Hb4LRG3dS0m8IASQUOskv93z978L1+Abu9CLP6d6s5p+BzWxhMUqwQXC/CCpTywrkJ0RG",};
 
-    private AntiSamy as = new AntiSamy();
+    protected AntiSamy as = new AntiSamy();
     private TestPolicy policy = null;
 
     @Before
@@ -787,7 +787,7 @@ public class AntiSamyTest {
          */
         String s = "<iframe src='http://foo.com/'></iframe>" + "<script src=''></script>" + "<link hrefs='/foo.css'>";
         as.scan(s, policy, AntiSamy.DOM);
-        assertEquals(as.scan(s, policy, AntiSamy.DOM).getNumberOfErrors(), 2);
+        assertEquals(as.scan(s, policy, AntiSamy.DOM).getNumberOfErrors(), 3);
 
         CleanResults cr = as.scan(s, policy, AntiSamy.SAX);
 
@@ -1107,6 +1107,8 @@ public class AntiSamyTest {
                     .contains("<a href=\"blah\" rel=\"nofollow\">link</a>"));
 
             // adds properly even with bad attr
+            assertTrue(as.scan("<a href=\"blah\" bad=\"true\">link</a>", revisedPolici, AntiSamy.DOM).getCleanHTML()
+                    .contains("<a href=\"blah\" rel=\"nofollow\">link</a>"));
             assertTrue(as.scan("<a href=\"blah\" bad=\"true\">link</a>", revisedPolici, AntiSamy.SAX).getCleanHTML()
                     .contains("<a href=\"blah\" rel=\"nofollow\">link</a>"));
 
@@ -1155,10 +1157,11 @@ public class AntiSamyTest {
         CleanResults cr = as.scan(input, revised, AntiSamy.DOM);
         assertTrue(cr.getCleanHTML().contains(expectedOutput));
 
+        // the SAX engine writes attributes sorted by name, as the DOM does
         String saxExpectedOutput =
-                "<object width=\"560\" height=\"340\"><param name=\"movie\" value=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" /><param name=\"allowFullScreen\" value=\"true\" /><param name=\"allowscriptaccess\" value=\"always\" /><embed src=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" type=\"application/x-shockwave-flash\" allowscriptaccess=\"always\" allowfullscreen=\"true\" width=\"560\" height=\"340\" /></object>";
+                "<object height=\"340\" width=\"560\"><param name=\"movie\" value=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" /><param name=\"allowFullScreen\" value=\"true\" /><param name=\"allowscriptaccess\" value=\"always\" /><embed allowfullscreen=\"true\" allowscriptaccess=\"always\" height=\"340\" src=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" type=\"application/x-shockwave-flash\" width=\"560\" /></object>";
         cr = as.scan(input, revised, AntiSamy.SAX);
-        assertTrue(cr.getCleanHTML().equals(saxExpectedOutput));
+        assertEquals(saxExpectedOutput, cr.getCleanHTML());
 
         // now what if someone sticks malicious URL in the value of the
         // value attribute in the param tag? remove that param tag
@@ -1166,12 +1169,12 @@ public class AntiSamyTest {
         expectedOutput =
                 "<object height=\"340\" width=\"560\"><param name=\"allowFullScreen\" value=\"true\" /><param name=\"allowscriptaccess\" value=\"always\" /><embed allowfullscreen=\"true\" allowscriptaccess=\"always\" height=\"340\" src=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" type=\"application/x-shockwave-flash\" width=\"560\" /></object>";
         saxExpectedOutput =
-                "<object width=\"560\" height=\"340\"><param name=\"allowFullScreen\" value=\"true\" /><param name=\"allowscriptaccess\" value=\"always\" /><embed src=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" type=\"application/x-shockwave-flash\" allowscriptaccess=\"always\" allowfullscreen=\"true\" width=\"560\" height=\"340\" /></object>";
+                "<object height=\"340\" width=\"560\"><param name=\"allowFullScreen\" value=\"true\" /><param name=\"allowscriptaccess\" value=\"always\" /><embed allowfullscreen=\"true\" allowscriptaccess=\"always\" height=\"340\" src=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" type=\"application/x-shockwave-flash\" width=\"560\" /></object>";
         cr = as.scan(input, revised, AntiSamy.DOM);
         assertTrue(cr.getCleanHTML().contains(expectedOutput));
 
         cr = as.scan(input, revised, AntiSamy.SAX);
-        assertTrue(cr.getCleanHTML().equals(saxExpectedOutput));
+        assertEquals(saxExpectedOutput, cr.getCleanHTML());
 
         // now what if someone sticks malicious URL in the value of the src
         // attribute in the embed tag? remove that embed tag
@@ -1179,12 +1182,12 @@ public class AntiSamyTest {
         expectedOutput =
                 "<object height=\"340\" width=\"560\"><param name=\"movie\" value=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" /><param name=\"allowFullScreen\" value=\"true\" /><param name=\"allowscriptaccess\" value=\"always\" /></object>";
         saxExpectedOutput =
-                "<object width=\"560\" height=\"340\"><param name=\"movie\" value=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" /><param name=\"allowFullScreen\" value=\"true\" /><param name=\"allowscriptaccess\" value=\"always\" /></object>";
+                "<object height=\"340\" width=\"560\"><param name=\"movie\" value=\"http://www.youtube.com/v/IyAyd4WnvhU&amp;hl=en&amp;fs=1&amp;\" /><param name=\"allowFullScreen\" value=\"true\" /><param name=\"allowscriptaccess\" value=\"always\" /></object>";
 
         cr = as.scan(input, revised, AntiSamy.DOM);
         assertTrue(cr.getCleanHTML().contains(expectedOutput));
         CleanResults scan = as.scan(input, revised, AntiSamy.SAX);
-        assertTrue(scan.getCleanHTML().equals(saxExpectedOutput));
+        assertEquals(saxExpectedOutput, scan.getCleanHTML());
     }
 
     @Test
@@ -1353,6 +1356,32 @@ public class AntiSamyTest {
         assertEquals(badExpected, s);
     }
 
+    @Test
+    public void unknownAttributes() throws ScanException, PolicyException {
+        Policy xssPolicy = Policy.getInstance(getClass().getResourceAsStream("/antixss.xml"));
+        String html = "<p bad=\"true\" oncopy=\"alert(1)\">Hello World!</p>";
+        for (int engine : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+            // of the attributes the policy has no rule for, only event handlers are removed
+            CleanResults cr = as.scan(html, xssPolicy, engine);
+            assertTrue(cr.getCleanHTML().contains("bad=\"true\""));
+            assertFalse(cr.getCleanHTML().contains("oncopy"));
+            assertEquals(1, cr.getNumberOfErrors());
+
+            cr = as.scan(html, xssPolicy.cloneWithDirective("allowUnknownAttributes", "true"), engine);
+            assertTrue(cr.getCleanHTML().contains("bad=\"true\""));
+            assertTrue(cr.getCleanHTML().contains("oncopy=\"alert(1)\""));
+            assertEquals(0, cr.getNumberOfErrors());
+        }
+    }
+
+    @Test
+    public void unknownEventHandlerWithoutEventAttributes() throws ScanException, PolicyException {
+        // antisamy.xml declares no event attributes, so every attribute it has no rule for goes
+        CleanResults cr = as.scan("<b onclick=\"alert(1)\">Hello World!</b>", policy, AntiSamy.SAX);
+        assertEquals("<b>Hello World!</b>", cr.getCleanHTML());
+        assertEquals(1, cr.getNumberOfErrors());
+    }
+
     public void testAnotherXSS() throws ScanException, PolicyException {
         String test = "<a href=\"http://example.com\"&amp;/onclick=alert(9)>foo</a>";
         CleanResults results_sax = as.scan(test, policy, AntiSamy.SAX);
@@ -0,0 +1,202 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.AsyncSanitizer;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.ScanListener;
+
+public class AsyncSanitizerTest {
+
+    private TestPolicy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    @Test
+    public void asyncMatchesBlockingScan() throws Exception {
+        AntiSamy as = new AntiSamy();
+        List<Future<CleanResults>> futures = new ArrayList<Future<CleanResults>>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(as.scanAsync("<p>" + i + "<script>alert(1)</script></p>", policy));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            CleanResults expected = as.scan("<p>" + i + "<script>alert(1)</script></p>", policy);
+            CleanResults actual = futures.get(i).get();
+            assertEquals(expected.getCleanHTML(), actual.getCleanHTML());
+            assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+        }
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadFactory blockedFactory = blockedUntil(release);
+
+        AsyncSanitizer sanitizer = new AsyncSanitizer(1, 1, new ThreadPoolExecutor.AbortPolicy(), blockedFactory);
+        try {
+            Future<CleanResults> running = sanitizer.scan("<b>one</b>", policy);
+            Future<CleanResults> queued = sanitizer.scan("<b>two</b>", policy);
+            assertEquals(1, sanitizer.getQueueDepth());
+            assertEquals(1, sanitizer.getQueueLimit());
+
+            try {
+                sanitizer.scan("<b>three</b>", policy);
+                fail("Expected the third scan to be rejected");
+            } catch (RejectedExecutionException expected) {
+            }
+            assertEquals(1, sanitizer.getRejectedCount());
+
+            release.countDown();
+            assertEquals("<b>one</b>", running.get().getCleanHTML());
+            assertEquals("<b>two</b>", queued.get().getCleanHTML());
+            assertEquals(0, sanitizer.getQueueDepth());
+        } finally {
+            release.countDown();
+            sanitizer.shutdown();
+            sanitizer.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void discardingPolicyStillCounts() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        ThreadFactory blockedFactory = blockedUntil(release);
+
+        AsyncSanitizer sanitizer = new AsyncSanitizer(1, 2, new ThreadPoolExecutor.DiscardPolicy(), blockedFactory);
+        try {
+            for (int i = 0; i < 10; i++) {
+                sanitizer.scan("<i>" + i + "</i>", policy);
+            }
+            assertEquals(2, sanitizer.getQueueDepth());
+            assertEquals(7, sanitizer.getRejectedCount());
+        } finally {
+            release.countDown();
+            sanitizer.shutdown();
+            sanitizer.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void listenerHearsHowScansEnd() throws Exception {
+        RecordingListener listener = new RecordingListener(2);
+        AsyncSanitizer sanitizer = new AsyncSanitizer(1, 4);
+        try {
+            sanitizer.scan("<b>bold</b><script>alert(1)</script>", policy, AntiSamy.DOM, listener);
+            sanitizer.scan("<b>too long</b>", policy.cloneWithDirective("maxInputSize", "5"), AntiSamy.DOM, listener);
+            assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+
+            assertEquals(1, listener.results.size());
+            assertEquals("<b>bold</b>", listener.results.get(0).getCleanHTML());
+            assertEquals(1, listener.failures.size());
+            assertTrue(listener.failures.get(0) instanceof ScanException);
+        } finally {
+            sanitizer.shutdown();
+            sanitizer.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void droppedScansFail() throws Exception {
+        RejectedExecutionHandler[] handlers = {new ThreadPoolExecutor.DiscardPolicy(),
+                new ThreadPoolExecutor.DiscardOldestPolicy()};
+        for (RejectedExecutionHandler handler : handlers) {
+            CountDownLatch release = new CountDownLatch(1);
+            RecordingListener listener = new RecordingListener(7);
+            AsyncSanitizer sanitizer = new AsyncSanitizer(1, 2, handler, blockedUntil(release));
+            try {
+                List<Future<CleanResults>> futures = new ArrayList<Future<CleanResults>>();
+                for (int i = 0; i < 10; i++) {
+                    futures.add(sanitizer.scan("<i>" + i + "</i>", policy, AntiSamy.DOM, listener));
+                }
+                assertTrue(listener.done.await(10, TimeUnit.SECONDS));
+                assertEquals(7, listener.failures.size());
+                for (Throwable failure : listener.failures) {
+                    assertTrue(failure instanceof RejectedExecutionException);
+                }
+
+                int failed = 0;
+                for (Future<CleanResults> future : futures) {
+                    if (future.isDone()) {
+                        try {
+                            future.get();
+                        } catch (ExecutionException e) {
+                            assertTrue(e.getCause() instanceof RejectedExecutionException);
+                            failed++;
+                        }
+                    }
+                }
+                assertEquals(7, failed);
+            } finally {
+                release.countDown();
+                sanitizer.shutdown();
+                sanitizer.awaitTermination(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static final class RecordingListener implements ScanListener {
+        final CountDownLatch done;
+        final List<CleanResults> results = Collections.synchronizedList(new ArrayList<CleanResults>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        RecordingListener(int scans) {
+            done = new CountDownLatch(scans);
+        }
+
+        public void scanned(CleanResults results) {
+            this.results.add(results);
+            done.countDown();
+        }
+
+        public void failed(Throwable cause) {
+            failures.add(cause);
+            done.countDown();
+        }
+    }
+
+    /**
+     * Worker threads that hold their first task until the latch opens, so the
+     * queue can be filled deterministically.
+     */
+    private static ThreadFactory blockedUntil(final CountDownLatch release) {
+        return new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        r.run();
+                    }
+                });
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,141 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.Sanitizer;
+import org.owasp.validator.html.scan.AntiSamyDOMScanner;
+
+/**
+ * The DOM engine serializes on the first <code>getCleanHTML()</code>; what
+ * comes out must not depend on when or from which thread that happens.
+ */
+public class CleanResultsTest {
+
+    private TestPolicy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    @Test
+    public void serializedOnFirstCall() throws Exception {
+        WatchedScanner scanner = new WatchedScanner(policy);
+        CleanResults cr = scanner.scan("<b>bold</b><script>x</script>");
+        assertEquals(1, cr.getNumberOfErrors());
+        assertEquals(0, scanner.written.get());
+
+        assertEquals("<b>bold</b>", cr.getCleanHTML());
+        int written = scanner.written.get();
+        assertTrue(written > 0);
+        cr.getCleanHTML();
+        assertEquals(written, scanner.written.get());
+    }
+
+    @Test
+    public void sameHtmlEveryCall() throws Exception {
+        CleanResults cr = new AntiSamy().scan("<b>bold</b><script>x</script>", policy, AntiSamy.DOM);
+        String first = cr.getCleanHTML();
+        assertEquals("<b>bold</b>", first);
+        assertSame(first, cr.getCleanHTML());
+    }
+
+    @Test
+    public void unchangedByLaterScans() throws Exception {
+        Sanitizer sanitizer = new Sanitizer(policy, AntiSamy.DOM);
+        CleanResults first = sanitizer.sanitize("<i>one</i>");
+        CleanResults second = sanitizer.sanitize("<u>two</u>");
+        assertEquals("<u>two</u>", second.getCleanHTML());
+        assertEquals("<i>one</i>", first.getCleanHTML());
+    }
+
+    @Test
+    public void batchResultsInAnyOrder() throws Exception {
+        List<String> inputs = Arrays.asList("<b>a</b>", "<i>b</i>", "<u>c</u>", "<script>d</script>e");
+        List<CleanResults> results = new Sanitizer(policy, AntiSamy.DOM).sanitizeAll(inputs);
+        assertEquals("e", results.get(3).getCleanHTML());
+        assertEquals("<i>b</i>", results.get(1).getCleanHTML());
+        assertEquals("<b>a</b>", results.get(0).getCleanHTML());
+        assertEquals("<u>c</u>", results.get(2).getCleanHTML());
+    }
+
+    @Test
+    public void concurrentCalls() throws Exception {
+        List<String> inputs = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            inputs.add("<p>paragraph " + i + "</p>");
+        }
+        final List<CleanResults> results = new Sanitizer(policy, AntiSamy.DOM).sanitizeAll(inputs);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                final int index = i % results.size();
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() {
+                        return results.get(index).getCleanHTML();
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("<p>paragraph " + (i % results.size()) + "</p>", futures.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Counts what its Xerces serializers write.
+     */
+    private static class WatchedScanner extends AntiSamyDOMScanner {
+        final AtomicInteger written = new AtomicInteger();
+
+        WatchedScanner(Policy policy) {
+            super(policy);
+        }
+
+        @SuppressWarnings("deprecation")
+        protected org.apache.xml.serialize.HTMLSerializer getHTMLSerializer(Writer w,
+                org.apache.xml.serialize.OutputFormat format) {
+            return super.getHTMLSerializer(new FilterWriter(w) {
+                public void write(int c) throws IOException {
+                    written.incrementAndGet();
+                    super.write(c);
+                }
+
+                public void write(char[] cbuf, int off, int len) throws IOException {
+                    written.addAndGet(len);
+                    super.write(cbuf, off, len);
+                }
+
+                public void write(String str, int off, int len) throws IOException {
+                    written.addAndGet(len);
+                    super.write(str, off, len);
+                }
+            }, format);
+        }
+    }
+}
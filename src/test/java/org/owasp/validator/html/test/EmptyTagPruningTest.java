@@ -0,0 +1,72 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+
+/**
+ * Elements left empty once their content has been removed go away, along
+ * with every ancestor that is then empty, unless the tag may be empty.
+ */
+public class EmptyTagPruningTest {
+
+    private Policy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url).cloneWithDirective(Policy.FORMAT_OUTPUT, "false");
+    }
+
+    @Test
+    public void emptiedWrappersAreRemoved() throws Exception {
+        CleanResults cr = new AntiSamy().scan("<div><div><p><script>x</script></p></div></div>", policy, AntiSamy.DOM);
+        assertEquals("", cr.getCleanHTML());
+        assertEquals(1, cr.getNumberOfErrors());
+    }
+
+    @Test
+    public void onlyEmptiedWrappersAreRemoved() throws Exception {
+        CleanResults cr = new AntiSamy().scan("<div><p><script>x</script></p><p>y</p></div>", policy, AntiSamy.DOM);
+        assertEquals("<div><p>y</p></div>", cr.getCleanHTML());
+    }
+
+    @Test
+    public void allowedEmptyTagStopsPruning() throws Exception {
+        CleanResults cr = new AntiSamy().scan("<div><a href=\"http://www.owasp.org/\"><script>x</script></a></div>",
+                policy, AntiSamy.DOM);
+        assertTrue(cr.getCleanHTML().startsWith("<div><a href=\"http://www.owasp.org/\""));
+    }
+
+    @Test
+    public void manyRemovalsInDeepWrappers() throws Exception {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            html.append("<div>");
+        }
+        for (int i = 0; i < 1000; i++) {
+            html.append("<script>").append(i).append("</script>");
+        }
+        for (int i = 0; i < 100; i++) {
+            html.append("</div>");
+        }
+        CleanResults cr = new AntiSamy().scan(html.toString(), policy.cloneWithDirective("maxInputSize", "1000000"),
+                AntiSamy.DOM);
+        assertEquals("", cr.getCleanHTML());
+        assertEquals(1000, cr.getNumberOfErrors());
+    }
+
+    @Test
+    public void emptiedEncodedTag() throws Exception {
+        CleanResults cr = new AntiSamy().scan("<foo><script>x</script></foo>",
+                policy.cloneWithDirective("onUnknownTag", "encode"), AntiSamy.DOM);
+        assertEquals("&lt;foo/&gt;", cr.getCleanHTML());
+    }
+}
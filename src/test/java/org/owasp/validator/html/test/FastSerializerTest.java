@@ -0,0 +1,93 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.owasp.validator.html.test.TestCorpus.PAGES;
+import static org.owasp.validator.html.test.TestCorpus.POLICIES;
+import static org.owasp.validator.html.test.TestCorpus.SAMPLES;
+import static org.owasp.validator.html.test.TestCorpus.page;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.Sanitizer;
+
+/**
+ * The DOM engine's own writer must produce byte for byte what the Xerces
+ * serializers produce, whatever the output directives.
+ */
+public class FastSerializerTest {
+
+    @Test
+    public void samples() throws Exception {
+        for (String name : POLICIES) {
+            Policy policy = TestPolicy.getInstance(getClass().getResource("/" + name));
+            for (Policy variant : variants(policy)) {
+                for (String sample : SAMPLES) {
+                    assertSameOutput(name, sample, variant);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pages() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective("maxInputSize", "1000000");
+        for (Policy variant : variants(policy)) {
+            for (String page : PAGES) {
+                assertSameOutput(page, page(page), variant);
+            }
+        }
+    }
+
+    @Test
+    public void preservedComments() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective(Policy.PRESERVE_COMMENTS, "true");
+        for (Policy variant : variants(policy)) {
+            for (String sample : SAMPLES) {
+                assertSameOutput("preserveComments", sample, variant);
+            }
+        }
+    }
+
+    @Test
+    public void batch() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"));
+        Policy fast = policy.cloneWithDirective(Policy.FAST_SERIALIZER, "true");
+        for (int i = 0; i < SAMPLES.length; i++) {
+            List<String> inputs = Arrays.asList(SAMPLES).subList(0, i + 1);
+            List<CleanResults> expected = new Sanitizer(policy, AntiSamy.DOM).sanitizeAll(inputs);
+            List<CleanResults> actual = new Sanitizer(fast, AntiSamy.DOM).sanitizeAll(inputs);
+            for (int j = actual.size() - 1; j >= 0; j--) {
+                assertEquals(inputs.get(j), expected.get(j).getCleanHTML(), actual.get(j).getCleanHTML());
+            }
+        }
+    }
+
+    /**
+     * Every combination of the directives the writer has to honour.
+     */
+    private static Policy[] variants(Policy policy) throws Exception {
+        Policy[] variants = new Policy[16];
+        for (int i = 0; i < variants.length; i++) {
+            variants[i] = policy.cloneWithDirective(Policy.PLAIN_TEXT_FAST_PATH, "false")
+                    .cloneWithDirective(Policy.USE_XHTML, String.valueOf((i & 1) != 0))
+                    .cloneWithDirective(Policy.FORMAT_OUTPUT, String.valueOf((i & 2) != 0))
+                    .cloneWithDirective(Policy.PRESERVE_SPACE, String.valueOf((i & 4) != 0))
+                    .cloneWithDirective(Policy.ENTITY_ENCODE_INTL_CHARS, String.valueOf((i & 8) != 0));
+        }
+        return variants;
+    }
+
+    private static void assertSameOutput(String name, String html, Policy policy) throws Exception {
+        String expected = new AntiSamy().scan(html, policy, AntiSamy.DOM).getCleanHTML();
+        String actual = new AntiSamy().scan(html, policy.cloneWithDirective(Policy.FAST_SERIALIZER, "true"),
+                AntiSamy.DOM).getCleanHTML();
+        assertEquals(name + ": " + html, expected, actual);
+    }
+}
@@ -0,0 +1,87 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import java.net.URL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.Sanitizer;
+import org.w3c.dom.Document;
+import org.w3c.dom.DocumentFragment;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Fragment-only scans validate like any other scan, but never serialize and
+ * hand out a fragment no scanner holds on to.
+ */
+public class FragmentOnlyTest {
+
+    private static final String HTML = "<p>Great post, <b>thanks</b>!<script>alert(1)</script></p>";
+
+    private Policy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    @Test
+    public void sameFragmentNoHtml() throws Exception {
+        CleanResults full = new AntiSamy().scan(HTML, policy, AntiSamy.DOM);
+        CleanResults fragmentOnly = new AntiSamy().scanFragment(HTML, policy);
+
+        assertNull(fragmentOnly.getCleanHTML());
+        assertEquals(full.getErrorMessages(), fragmentOnly.getErrorMessages());
+        assertEquals(text(full.getCleanXMLDocumentFragment()), text(fragmentOnly.getCleanXMLDocumentFragment()));
+        assertEquals("p", fragmentOnly.getCleanXMLDocumentFragment().getFirstChild().getNodeName());
+    }
+
+    @Test
+    public void plainText() throws Exception {
+        DocumentFragment fragment = new AntiSamy().scanFragment("John O Smith", policy).getCleanXMLDocumentFragment();
+        assertEquals(Node.TEXT_NODE, fragment.getFirstChild().getNodeType());
+        assertEquals("John O Smith", fragment.getTextContent());
+    }
+
+    @Test
+    public void documentNotShared() throws Exception {
+        Sanitizer sanitizer = new Sanitizer(policy, AntiSamy.DOM);
+        DocumentFragment first = sanitizer.sanitizeFragment(HTML).getCleanXMLDocumentFragment();
+        DocumentFragment second = sanitizer.sanitizeFragment(HTML).getCleanXMLDocumentFragment();
+        DocumentFragment pooled = sanitizer.sanitize(HTML).getCleanXMLDocumentFragment();
+
+        assertNotSame(first.getOwnerDocument(), second.getOwnerDocument());
+        assertNotSame(first.getOwnerDocument(), pooled.getOwnerDocument());
+        assertNotSame(second.getOwnerDocument(), pooled.getOwnerDocument());
+    }
+
+    @Test
+    public void callerOwnsFragment() throws Exception {
+        Sanitizer sanitizer = new Sanitizer(policy, AntiSamy.DOM);
+        DocumentFragment fragment = sanitizer.sanitizeFragment(HTML).getCleanXMLDocumentFragment();
+        Document document = fragment.getOwnerDocument();
+        Element body = document.createElement("body");
+        body.appendChild(fragment);
+        document.appendChild(body);
+
+        assertEquals("<i>later</i>", sanitizer.sanitize("<i>later</i>").getCleanHTML());
+        assertEquals("Great post, thanks!", body.getTextContent());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void notWithSax() throws Exception {
+        new Sanitizer(policy, AntiSamy.SAX).sanitizeFragment(HTML);
+    }
+
+    private static String text(DocumentFragment fragment) {
+        return fragment.getTextContent();
+    }
+}
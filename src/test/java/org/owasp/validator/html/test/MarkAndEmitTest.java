@@ -0,0 +1,141 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.owasp.validator.html.test.TestCorpus.PAGES;
+import static org.owasp.validator.html.test.TestCorpus.POLICIES;
+import static org.owasp.validator.html.test.TestCorpus.SAMPLES;
+import static org.owasp.validator.html.test.TestCorpus.page;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.Sanitizer;
+import org.owasp.validator.html.model.Attribute;
+import org.owasp.validator.html.model.Tag;
+
+/**
+ * A DOM scan that records its decisions and writes the clean HTML from the
+ * untouched tree must produce the same HTML and the same errors, in the same
+ * order, as one that changes the tree as it goes.
+ */
+public class MarkAndEmitTest {
+
+    @Test
+    public void samples() throws Exception {
+        for (String name : POLICIES) {
+            Policy policy = TestPolicy.getInstance(getClass().getResource("/" + name))
+                    .cloneWithDirective(Policy.PLAIN_TEXT_FAST_PATH, "false");
+            for (Policy variant : variants(policy)) {
+                for (String sample : SAMPLES) {
+                    assertSameResults(name, sample, variant);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pages() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective("maxInputSize", "1000000");
+        for (Policy variant : variants(policy)) {
+            for (String page : PAGES) {
+                assertSameResults(page, page(page), variant);
+            }
+        }
+    }
+
+    /**
+     * Tags and attributes whose actions the bundled policies hardly use.
+     */
+    @Test
+    public void otherActions() throws Exception {
+        TestPolicy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"));
+        Attribute align = policy.getTagByLowercaseName("p").getAttributeByName("align");
+        policy = policy.mutateTag(new Tag("p", Collections.singletonMap("align", align.mutate("filterTag", null)),
+                Policy.ACTION_VALIDATE));
+        policy = policy.mutateTag(new Tag("div", Collections.singletonMap("align", align.mutate("encodeTag", null)),
+                Policy.ACTION_VALIDATE));
+        policy = policy.mutateTag(policy.getTagByLowercaseName("b").mutateAction(Policy.ACTION_TRUNCATE));
+        policy = policy.mutateTag(policy.getTagByLowercaseName("u").mutateAction("encode"));
+
+        Policy[] policies = {policy,
+                policy.cloneWithDirective(Policy.PRESERVE_COMMENTS, "true"),
+                policy.cloneWithDirective(Policy.ANCHORS_NOFOLLOW, "true"),
+                policy.cloneWithDirective(Policy.VALIDATE_PARAM_AS_EMBED, "true"),
+                policy.cloneWithDirective("onUnknownTag", "encode"),
+                policy.cloneWithDirective("allowUnknownTag", "true"),
+                policy.cloneWithDirective("allowUnknownAttributes", "true")};
+        for (Policy each : policies) {
+            for (Policy variant : variants(each.cloneWithDirective(Policy.PLAIN_TEXT_FAST_PATH, "false"))) {
+                for (String sample : SAMPLES) {
+                    assertSameResults("otherActions", sample, variant);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void noFragment() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective(Policy.MARK_AND_EMIT, "true");
+        CleanResults results = new AntiSamy().scan(SAMPLES[1], policy, AntiSamy.DOM);
+        assertNull(results.getCleanXMLDocumentFragment());
+
+        CleanResults fragmentOnly = new AntiSamy().scanFragment(SAMPLES[1], policy);
+        assertEquals("p", fragmentOnly.getCleanXMLDocumentFragment().getFirstChild().getNodeName());
+    }
+
+    @Test
+    public void batch() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"));
+        Policy marking = policy.cloneWithDirective(Policy.MARK_AND_EMIT, "true");
+        List<String> inputs = Arrays.asList(SAMPLES);
+        List<CleanResults> expected = new Sanitizer(policy, AntiSamy.DOM).sanitizeAll(inputs);
+        List<CleanResults> actual = new Sanitizer(marking, AntiSamy.DOM).sanitizeAll(inputs);
+        for (int i = actual.size() - 1; i >= 0; i--) {
+            assertEquals(inputs.get(i), expected.get(i).getErrorMessages(), actual.get(i).getErrorMessages());
+            assertEquals(inputs.get(i), expected.get(i).getCleanHTML(), actual.get(i).getCleanHTML());
+        }
+    }
+
+    /**
+     * Each result written before the next scan gives the scanner's Document
+     * back, so every scan after the first parses into the same one.
+     */
+    @Test
+    public void reusedDocument() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective(Policy.PLAIN_TEXT_FAST_PATH, "false");
+        Sanitizer expected = new Sanitizer(policy, AntiSamy.DOM);
+        Sanitizer actual = new Sanitizer(policy.cloneWithDirective(Policy.MARK_AND_EMIT, "true"), AntiSamy.DOM);
+        for (int round = 0; round < 2; round++) {
+            for (String sample : SAMPLES) {
+                CleanResults results = actual.sanitize(sample);
+                assertEquals(sample, expected.sanitize(sample).getCleanHTML(), results.getCleanHTML());
+            }
+        }
+    }
+
+    private static Policy[] variants(Policy policy) throws Exception {
+        Policy[] variants = new Policy[4];
+        for (int i = 0; i < variants.length; i++) {
+            variants[i] = policy.cloneWithDirective(Policy.USE_XHTML, String.valueOf((i & 1) != 0))
+                    .cloneWithDirective(Policy.FORMAT_OUTPUT, String.valueOf((i & 2) != 0));
+        }
+        return variants;
+    }
+
+    private static void assertSameResults(String name, String html, Policy policy) throws Exception {
+        CleanResults expected = new AntiSamy().scan(html, policy, AntiSamy.DOM);
+        CleanResults actual = new AntiSamy().scan(html, policy.cloneWithDirective(Policy.MARK_AND_EMIT, "true"),
+                AntiSamy.DOM);
+        assertEquals(name + ": " + html, expected.getErrorMessages(), actual.getErrorMessages());
+        assertEquals(name + ": " + html, expected.getCleanHTML(), actual.getCleanHTML());
+    }
+}
@@ -0,0 +1,126 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+
+public class NestingDepthTest {
+
+    private TestPolicy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    private static String nested(String open, String close, int depth, String content) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            sb.append(open);
+        }
+        sb.append(content);
+        for (int i = 0; i < depth; i++) {
+            sb.append(close);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void defaultLimitStillApplies() throws Exception {
+        String html = nested("<div>", "</div>", Policy.DEFAULT_MAX_NESTING_DEPTH + 10, "x");
+        try {
+            new AntiSamy().scan(html, policy.cloneWithDirective("maxInputSize", "1000000"), AntiSamy.DOM);
+            fail("Expected the scan to be refused");
+        } catch (ScanException expected) {
+            assertEquals("Too many nested tags", expected.getMessage());
+        }
+    }
+
+    @Test
+    public void limitComesFromPolicy() throws Exception {
+        String html = nested("<div>", "</div>", 20, "x");
+        try {
+            new AntiSamy().scan(html, policy.cloneWithDirective(Policy.MAX_NESTING_DEPTH, "10"), AntiSamy.DOM);
+            fail("Expected the scan to be refused");
+        } catch (ScanException expected) {
+            assertEquals("Too many nested tags", expected.getMessage());
+        }
+
+        CleanResults cr = new AntiSamy().scan(html, policy.cloneWithDirective(Policy.MAX_NESTING_DEPTH, "30"), AntiSamy.DOM);
+        assertEquals(0, cr.getNumberOfErrors());
+    }
+
+    @Test
+    public void deepInputOnSmallStack() throws Exception {
+        /*
+         * Unknown tags are filtered away, so the output is flat and only the
+         * validation walk sees how deep the input really is.
+         */
+        String html = nested("<foo>", "</foo>", 3000, "reply");
+        Policy deep = policy.cloneWithDirective(Policy.MAX_NESTING_DEPTH, "0")
+                .cloneWithDirective("maxInputSize", "1000000");
+
+        CleanResults cr = scanOnSmallStack(html, deep);
+        assertEquals(3000, cr.getNumberOfErrors());
+        assertEquals("reply", cr.getCleanHTML());
+    }
+
+    @Test
+    public void deepOutputOnSmallStack() throws Exception {
+        /*
+         * Kept elements nest as deep in the output as in the input, so the
+         * serializer has to cope with it too.
+         */
+        String html = nested("<div>", "</div>", 3000, "reply");
+        Policy deep = policy.cloneWithDirective(Policy.MAX_NESTING_DEPTH, "0")
+                .cloneWithDirective(Policy.FORMAT_OUTPUT, "false")
+                .cloneWithDirective("maxInputSize", "1000000");
+
+        assertEquals(html, scanOnSmallStack(html, deep.cloneWithDirective(Policy.FAST_SERIALIZER, "true"))
+                .getCleanHTML());
+        assertEquals(html, scanOnSmallStack(html, deep.cloneWithDirective(Policy.MARK_AND_EMIT, "true"))
+                .getCleanHTML());
+        try {
+            scanOnSmallStack(html, deep);
+            fail("Expected the Xerces serializer to be spared the scan");
+        } catch (ScanException expected) {
+            assertEquals("Too many nested tags", expected.getMessage());
+        }
+    }
+
+    /**
+     * Scans on a thread with a stack far smaller than the default, on which
+     * recursing once per element would overflow long before 3000 levels.
+     */
+    private static CleanResults scanOnSmallStack(final String html, final Policy policy) throws Exception {
+        final Object[] outcome = new Object[1];
+        Thread thread = new Thread(null, new Runnable() {
+            public void run() {
+                try {
+                    outcome[0] = new AntiSamy().scan(html, policy, AntiSamy.DOM);
+                } catch (Throwable t) {
+                    outcome[0] = t;
+                }
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+
+        if (outcome[0] instanceof ScanException) {
+            throw (ScanException) outcome[0];
+        }
+        if (outcome[0] instanceof Throwable) {
+            throw new AssertionError(outcome[0]);
+        }
+        return (CleanResults) outcome[0];
+    }
+}
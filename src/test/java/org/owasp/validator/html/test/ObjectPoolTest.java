@@ -0,0 +1,118 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.scan.AntiSamyDOMScanner;
+import org.owasp.validator.html.scan.AntiSamySAXScanner;
+import org.owasp.validator.html.util.ObjectPool;
+
+public class ObjectPoolTest {
+
+    private static ObjectPool<Object> newPool(int maxIdle, boolean threadAffinity) {
+        final AtomicInteger created = new AtomicInteger();
+        return new ObjectPool<Object>(new ObjectPool.Factory<Object>() {
+            public Object create() {
+                return "item" + created.incrementAndGet();
+            }
+        }, maxIdle, threadAffinity);
+    }
+
+    @Test
+    public void idleObjectsAreCapped() throws Exception {
+        ObjectPool<Object> pool = newPool(2, false);
+
+        List<Object> burst = new ArrayList<Object>();
+        for (int i = 0; i < 10; i++) {
+            burst.add(pool.borrow());
+        }
+        for (Object item : burst) {
+            pool.release(item);
+        }
+
+        assertEquals(10, pool.getBorrowCount());
+        assertEquals(10, pool.getMissCount());
+        assertEquals(10, pool.getCreationCount());
+        assertEquals(8, pool.getDiscardCount());
+        assertEquals(2, pool.getIdleCount());
+
+        Object reused = pool.borrow();
+        assertTrue(burst.contains(reused));
+        assertEquals(10, pool.getCreationCount());
+        assertEquals(1, pool.getIdleCount());
+
+        pool.clear();
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    public void threadAffinityReusesOwnObject() throws Exception {
+        final ObjectPool<Object> pool = newPool(4, true);
+        Object mine = pool.borrow();
+        pool.release(mine);
+        assertEquals(0, pool.getIdleCount());
+        assertSame(mine, pool.borrow());
+
+        pool.release(mine);
+        final Object[] other = new Object[1];
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    other[0] = pool.borrow();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotSame(mine, other[0]);
+        assertEquals(2, pool.getMissCount());
+    }
+
+    @Test
+    public void scannerPoolsAreInstrumented() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        TestPolicy policy = TestPolicy.getInstance(url);
+
+        long domBorrows = AntiSamyDOMScanner.getParserPool().getBorrowCount();
+        long saxBorrows = AntiSamySAXScanner.getParserPool().getBorrowCount();
+        new AntiSamy().scan("<b>x</b>", policy, AntiSamy.DOM);
+        new AntiSamy().scan("<b>x</b>", policy, AntiSamy.SAX);
+
+        assertTrue(AntiSamyDOMScanner.getParserPool().getBorrowCount() > domBorrows);
+        assertTrue(AntiSamySAXScanner.getParserPool().getBorrowCount() > saxBorrows);
+        assertTrue(AntiSamyDOMScanner.getParserPool().getIdleCount()
+                <= AntiSamyDOMScanner.getParserPool().getMaxIdle());
+    }
+
+    @Test
+    public void failedScansGiveTheirParserBack() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        Policy policy = TestPolicy.getInstance(url).cloneWithDirective("maxInputSize", "10");
+        new AntiSamy().scan("<b>x</b>", policy, AntiSamy.SAX);
+
+        long created = AntiSamySAXScanner.getParserPool().getCreationCount();
+        for (int i = 0; i <= AntiSamySAXScanner.getParserPool().getMaxIdle(); i++) {
+            try {
+                new AntiSamy().scan("<b>far too long</b>", policy, AntiSamy.SAX);
+                fail("Input larger than maxInputSize");
+            } catch (ScanException expected) {
+            }
+        }
+        new AntiSamy().scan("<b>x</b>", policy, AntiSamy.SAX);
+        assertEquals(created, AntiSamySAXScanner.getParserPool().getCreationCount());
+    }
+}
@@ -0,0 +1,116 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.owasp.validator.html.test.TestCorpus.PAGES;
+import static org.owasp.validator.html.test.TestCorpus.page;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.Sanitizer;
+
+/**
+ * Validating top-level subtrees concurrently must not change the clean HTML,
+ * nor the errors or their order.
+ */
+public class ParallelValidationTest {
+
+    private Policy sequential = null;
+    private Policy parallel = null;
+
+    @Before
+    public void setUp() throws Exception {
+        sequential = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective("maxInputSize", "1000000");
+        parallel = sequential.cloneWithDirective(Policy.PARALLEL_VALIDATION_THRESHOLD, "1");
+    }
+
+    @Test
+    public void pages() throws Exception {
+        for (String page : PAGES) {
+            assertSameResults(page, page(page));
+        }
+    }
+
+    @Test
+    public void errorsInDocumentOrder() throws Exception {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            html.append("<p>").append(i).append("</p>");
+            html.append("<foo").append(i).append(">promoted</foo").append(i).append('>');
+            html.append("<a href=\"javascript:alert(").append(i).append(")\">link</a>");
+            html.append("<script>").append(i).append("</script>");
+            html.append("<div><span></span></div><!-- ").append(i).append(" -->");
+        }
+        assertSameResults("generated", html.toString());
+    }
+
+    @Test
+    public void fewChildren() throws Exception {
+        assertSameResults("none", "");
+        assertSameResults("one", "<p><b>bold</b><script>alert(1)</script></p>");
+        assertSameResults("two", "<p>one</p><foo>two</foo>");
+        assertSameResults("text", "just text & more");
+    }
+
+    @Test
+    public void fragmentOnly() throws Exception {
+        String html = page("cnn.com");
+        CleanResults expected = new Sanitizer(sequential, AntiSamy.DOM).sanitizeFragment(html);
+        CleanResults actual = new Sanitizer(parallel, AntiSamy.DOM).sanitizeFragment(html);
+        assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+        assertEquals(expected.getCleanXMLDocumentFragment().getTextContent(),
+                actual.getCleanXMLDocumentFragment().getTextContent());
+        assertEquals(expected.getCleanXMLDocumentFragment().getOwnerDocument(),
+                expected.getCleanXMLDocumentFragment().getFirstChild().getOwnerDocument());
+        assertEquals(actual.getCleanXMLDocumentFragment().getOwnerDocument(),
+                actual.getCleanXMLDocumentFragment().getFirstChild().getOwnerDocument());
+    }
+
+    /**
+     * More scans at once than there are helper threads, so that most of
+     * them find the helpers busy with the others' parts.
+     */
+    @Test
+    public void concurrentScans() throws Exception {
+        final String html = page("cnn.com");
+        final CleanResults expected = new AntiSamy().scan(html, sequential, AntiSamy.DOM);
+        final Sanitizer sanitizer = new Sanitizer(parallel, AntiSamy.DOM);
+        final Throwable[] failures = new Throwable[4 * Runtime.getRuntime().availableProcessors()];
+        Thread[] threads = new Thread[failures.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            CleanResults actual = sanitizer.sanitize(html);
+                            assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+                            assertEquals(expected.getCleanHTML(), actual.getCleanHTML());
+                        }
+                    } catch (Throwable t) {
+                        failures[index] = t;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                throw new AssertionError(failure);
+            }
+        }
+    }
+
+    private void assertSameResults(String name, String html) throws Exception {
+        CleanResults expected = new AntiSamy().scan(html, sequential, AntiSamy.DOM);
+        CleanResults actual = new AntiSamy().scan(html, parallel, AntiSamy.DOM);
+        assertEquals(name, expected.getErrorMessages(), actual.getErrorMessages());
+        assertEquals(name, expected.getCleanHTML(), actual.getCleanHTML());
+    }
+}
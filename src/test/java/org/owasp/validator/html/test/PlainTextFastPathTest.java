@@ -0,0 +1,94 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.scan.AntisamyDOMScannerExt;
+
+/**
+ * The plain-text fast path must be invisible: every input has to come out
+ * byte for byte the same as with the fast path switched off.
+ */
+public class PlainTextFastPathTest {
+
+    private TestPolicy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    @Test
+    public void sameOutputAsFullScan() throws Exception {
+        List<String> inputs = new ArrayList<String>(Arrays.asList(
+                "John Smith",
+                "Dr. Jane O Doe-Smith, PhD",
+                "  leading blanks",
+                "trailing blank ",
+                "inner   blanks",
+                "search: foo bar (baz) [qux] {x} 100% $5 #1 @me a=b a/b a\\b ~`^|",
+                "tab\there",
+                "line\nbreak",
+                "a > b",
+                "\"quoted\"",
+                "it's",
+                "Tom & Jerry",
+                "café",
+                "<b>bold</b>",
+                "x",
+                " ",
+                ""));
+
+        Random random = new Random(42);
+        String alphabet = "abcXYZ019 .,;:!?-_=+*/()[]{}#$%@~^|`\\\t\n\"'&<>é";
+        for (int i = 0; i < 500; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = random.nextInt(20);
+            for (int j = 0; j < length; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            inputs.add(sb.toString());
+        }
+
+        Policy[] policies = {
+                policy,
+                policy.cloneWithDirective(Policy.USE_XHTML, "true"),
+                policy.cloneWithDirective(Policy.PRESERVE_SPACE, "true"),
+                policy.cloneWithDirective(Policy.FORMAT_OUTPUT, "true")
+        };
+
+        AntiSamy as = new AntiSamy();
+        for (Policy fast : policies) {
+            Policy slow = fast.cloneWithDirective(Policy.PLAIN_TEXT_FAST_PATH, "false");
+            for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+                for (String input : inputs) {
+                    CleanResults expected = as.scan(input, slow, scanType);
+                    CleanResults actual = as.scan(input, fast, scanType);
+                    assertEquals(input, expected.getCleanHTML(), actual.getCleanHTML());
+                    assertEquals(input, expected.getErrorMessages(), actual.getErrorMessages());
+                }
+            }
+            for (String input : inputs) {
+                assertEquals(input, new AntisamyDOMScannerExt(slow).scan(input, true).getCleanHTML(),
+                        new AntisamyDOMScannerExt(fast).scan(input, true).getCleanHTML());
+            }
+        }
+    }
+
+    @Test
+    public void fragmentHoldsTheText() throws Exception {
+        CleanResults results = new AntiSamy().scan("John Smith", policy, AntiSamy.DOM);
+        assertEquals("John Smith", results.getCleanXMLDocumentFragment().getTextContent());
+    }
+}
@@ -0,0 +1,144 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Sanitizer;
+import org.owasp.validator.html.scan.AntisamyDOMScannerExt;
+
+public class SanitizerTest {
+
+    private TestPolicy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    @Test
+    public void sharedInstancePerPolicyAndEngine() {
+        assertSame(Sanitizer.getInstance(policy, AntiSamy.DOM), Sanitizer.getInstance(policy, AntiSamy.DOM));
+        assertSame(Sanitizer.getInstance(policy, AntiSamy.SAX), Sanitizer.getInstance(policy, AntiSamy.SAX));
+        assertNotSame(Sanitizer.getInstance(policy, AntiSamy.DOM), Sanitizer.getInstance(policy, AntiSamy.SAX));
+        assertSame(Sanitizer.getInstance(policy, AntiSamy.AUTO), Sanitizer.getInstance(policy, AntiSamy.AUTO));
+    }
+
+    @Test
+    public void reusedScannerDoesNotLeakState() throws Exception {
+        for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+            Sanitizer sanitizer = new Sanitizer(policy, scanType);
+
+            CleanResults dirty = sanitizer.sanitize("<b>bold</b><script>alert(1)</script>");
+            CleanResults clean = sanitizer.sanitize("<i>italic</i>");
+
+            assertTrue(dirty.getNumberOfErrors() > 0);
+            assertEquals(0, clean.getNumberOfErrors());
+            assertEquals("<b>bold</b>", dirty.getCleanHTML());
+            assertEquals("<i>italic</i>", clean.getCleanHTML());
+        }
+    }
+
+    @Test
+    public void fragmentsAreNotShared() throws Exception {
+        Sanitizer sanitizer = new Sanitizer(policy, AntiSamy.DOM);
+
+        CleanResults first = sanitizer.sanitize("<b>one</b>");
+        CleanResults second = sanitizer.sanitize("<i>two</i>");
+
+        assertNotSame(first.getCleanXMLDocumentFragment(), second.getCleanXMLDocumentFragment());
+        assertEquals("one", first.getCleanXMLDocumentFragment().getTextContent());
+        assertEquals("two", second.getCleanXMLDocumentFragment().getTextContent());
+    }
+
+    @Test
+    public void batchMatchesSingleScans() throws Exception {
+        List<String> inputs = Arrays.asList(
+                "<b>bold</b>",
+                "",
+                "plain text & more",
+                "<a href=\"http://www.owasp.org\" onclick=\"x()\">link</a>",
+                "<div><script>alert(1)</script><p>para</p></div>",
+                "<style>p { color: red; }</style><p style=\"color: blue\">x</p>",
+                "<table><tr><td>cell</td></tr></table>\n");
+
+        AntiSamy as = new AntiSamy();
+        for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX, AntiSamy.AUTO}) {
+            List<CleanResults> batch = as.scanAll(inputs, policy, scanType);
+            assertEquals(inputs.size(), batch.size());
+            for (int i = 0; i < inputs.size(); i++) {
+                CleanResults single = as.scan(inputs.get(i), policy, scanType);
+                assertEquals(single.getCleanHTML(), batch.get(i).getCleanHTML());
+                assertEquals(single.getErrorMessages(), batch.get(i).getErrorMessages());
+            }
+        }
+
+        List<CleanResults> batch = new AntisamyDOMScannerExt(policy).scanAll(inputs);
+        for (int i = 0; i < inputs.size(); i++) {
+            assertEquals(new AntisamyDOMScannerExt(policy).scan(inputs.get(i)).getCleanHTML(),
+                    batch.get(i).getCleanHTML());
+        }
+    }
+
+    @Test
+    public void concurrentUse() throws Exception {
+        final Sanitizer sanitizer = Sanitizer.getInstance(policy, AntiSamy.DOM);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < 200; i++) {
+                final int n = i;
+                futures.add(executor.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        return sanitizer.sanitize("<p>" + n + "<script>x</script></p>").getCleanHTML();
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals("<p>" + i + "</p>", futures.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void autoPicksEnginePerInput() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            sb.append("<p>paragraph ").append(i).append("<script>x()</script></p>\n");
+        }
+        String large = sb.toString();
+        String small = "<b>bold</b><script>alert(1)</script>";
+        TestPolicy big = policy.cloneWithDirective("maxInputSize", String.valueOf(large.length()));
+        Sanitizer auto = Sanitizer.getInstance(big, AntiSamy.AUTO);
+
+        assertEquals(AntiSamy.SAX, auto.getScanType(large));
+        assertEquals(AntiSamy.DOM, Sanitizer.getInstance(big, AntiSamy.DOM).getScanType(large));
+
+        List<String> inputs = Arrays.asList(large, small, large, small);
+        List<CleanResults> batch = auto.sanitizeAll(inputs);
+        for (int i = 0; i < inputs.size(); i++) {
+            CleanResults expected = new AntiSamy().scan(inputs.get(i), big, auto.getScanType(inputs.get(i)));
+            assertEquals(expected.getCleanHTML(), batch.get(i).getCleanHTML());
+            assertEquals(expected.getErrorMessages(), batch.get(i).getErrorMessages());
+            assertEquals(expected.getCleanHTML(), auto.sanitize(inputs.get(i)).getCleanHTML());
+        }
+        assertEquals("bold", auto.sanitizeFragment(small).getCleanXMLDocumentFragment().getTextContent());
+    }
+}
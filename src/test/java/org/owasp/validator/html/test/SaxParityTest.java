@@ -0,0 +1,169 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.owasp.validator.html.test.TestCorpus.PAGES;
+import static org.owasp.validator.html.test.TestCorpus.POLICIES;
+import static org.owasp.validator.html.test.TestCorpus.SAMPLES;
+import static org.owasp.validator.html.test.TestCorpus.page;
+
+import java.util.Collections;
+
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.PolicyException;
+import org.owasp.validator.html.ScanException;
+import org.owasp.validator.html.model.Attribute;
+import org.owasp.validator.html.model.Tag;
+import org.owasp.validator.html.scan.AntiSamyDOMScanner;
+import org.owasp.validator.html.scan.AntiSamySAXScanner;
+
+/**
+ * The SAX engine must produce the same HTML and the same errors, in the same
+ * order, as the DOM engine. Every scan of the <code>AntiSamyTest</code>
+ * corpus is run through both engines and compared before the requested
+ * engine's results are handed back to the test.
+ */
+public class SaxParityTest extends AntiSamyTest {
+
+    private static final String[] ATTRIBUTE_VALUES = {
+            "plain",
+            "' onmouseover='alert(1)' bad='",
+            "\" onmouseover=\"alert(1)\" bad=\"",
+            "x\" style=\"behavior: url(x.htc)",
+    };
+
+    public SaxParityTest() {
+        as = new DifferentialAntiSamy();
+    }
+
+    @Test
+    public void samples() throws Exception {
+        for (String name : POLICIES) {
+            Policy policy = TestPolicy.getInstance(getClass().getResource("/" + name))
+                    .cloneWithDirective(Policy.PLAIN_TEXT_FAST_PATH, "false");
+            for (Policy variant : variants(policy)) {
+                for (String sample : SAMPLES) {
+                    as.scan(sample, variant, AntiSamy.SAX);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void pages() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective("maxInputSize", "1000000");
+        for (Policy variant : variants(policy)) {
+            for (String page : PAGES) {
+                as.scan(page(page), variant, AntiSamy.SAX);
+            }
+        }
+    }
+
+    /**
+     * Tags and attributes whose actions the bundled policies hardly use.
+     */
+    @Test
+    public void otherActions() throws Exception {
+        TestPolicy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"));
+        Attribute align = policy.getTagByLowercaseName("p").getAttributeByName("align");
+        policy = policy.mutateTag(new Tag("p", Collections.singletonMap("align", align.mutate("filterTag", null)),
+                Policy.ACTION_VALIDATE));
+        policy = policy.mutateTag(new Tag("div", Collections.singletonMap("align", align.mutate("encodeTag", null)),
+                Policy.ACTION_VALIDATE));
+        policy = policy.mutateTag(policy.getTagByLowercaseName("b").mutateAction(Policy.ACTION_TRUNCATE));
+        policy = policy.mutateTag(policy.getTagByLowercaseName("u").mutateAction("encode"));
+
+        Policy[] policies = {policy,
+                policy.cloneWithDirective(Policy.PRESERVE_COMMENTS, "true"),
+                policy.cloneWithDirective(Policy.ANCHORS_NOFOLLOW, "true"),
+                policy.cloneWithDirective(Policy.VALIDATE_PARAM_AS_EMBED, "true"),
+                policy.cloneWithDirective("onUnknownTag", "encode"),
+                policy.cloneWithDirective("allowUnknownTag", "true"),
+                policy.cloneWithDirective("allowUnknownAttributes", "true")};
+        for (Policy each : policies) {
+            for (Policy variant : variants(each.cloneWithDirective(Policy.PLAIN_TEXT_FAST_PATH, "false"))) {
+                for (String sample : SAMPLES) {
+                    as.scan(sample, variant, AntiSamy.SAX);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void maxNestingDepth() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"))
+                .cloneWithDirective(Policy.MAX_NESTING_DEPTH, "5");
+        as.scan("<div><div><div><p>shallow</p></div></div></div>", policy, AntiSamy.SAX);
+        try {
+            as.scan("<div><div><div><div><div><div><p>deep</p></div></div></div></div></div></div>", policy,
+                    AntiSamy.SAX);
+            fail("Too many nested tags");
+        } catch (ScanException expected) {
+        }
+    }
+
+    @Test
+    public void scanAttr() throws Exception {
+        Policy policy = TestPolicy.getInstance(getClass().getResource("/antixss.xml"));
+        for (String value : ATTRIBUTE_VALUES) {
+            String html = "<a title='" + value + "' href=\"http://www.owasp.org/\">link</a>";
+            CleanResults expected = new AntiSamyDOMScanner(policy).scan(html, true);
+            CleanResults actual = new AntiSamySAXScanner(policy).scan(html, true);
+            assertEquals(html, expected.getErrorMessages(), actual.getErrorMessages());
+            assertEquals(html, expected.getCleanHTML(), actual.getCleanHTML());
+        }
+    }
+
+    private static Policy[] variants(Policy policy) throws Exception {
+        Policy[] variants = new Policy[4];
+        for (int i = 0; i < variants.length; i++) {
+            variants[i] = policy.cloneWithDirective(Policy.USE_XHTML, String.valueOf((i & 1) != 0))
+                    .cloneWithDirective(Policy.FORMAT_OUTPUT, String.valueOf((i & 2) != 0));
+        }
+        return variants;
+    }
+
+    /**
+     * Scans everything with both engines. A scan that only one engine
+     * rejects fails the test; one that both reject throws what the requested
+     * engine threw.
+     */
+    private static class DifferentialAntiSamy extends AntiSamy {
+
+        @Override
+        public CleanResults scan(String taintedHTML, Policy policy, int scanType)
+                throws ScanException, PolicyException {
+            CleanResults dom;
+            CleanResults sax;
+            ScanException domFailure = null;
+            ScanException saxFailure = null;
+            try {
+                dom = super.scan(taintedHTML, policy, DOM);
+            } catch (ScanException e) {
+                dom = null;
+                domFailure = e;
+            }
+            try {
+                sax = super.scan(taintedHTML, policy, SAX);
+            } catch (ScanException e) {
+                sax = null;
+                saxFailure = e;
+            }
+
+            if (domFailure != null && saxFailure != null) {
+                throw scanType == SAX ? saxFailure : domFailure;
+            }
+            if (domFailure != null || saxFailure != null) {
+                fail(taintedHTML + ": only " + (domFailure != null ? "DOM" : "SAX") + " threw "
+                        + (domFailure != null ? domFailure : saxFailure));
+            }
+            assertEquals(taintedHTML, dom.getErrorMessages(), sax.getErrorMessages());
+            assertEquals(taintedHTML, dom.getCleanHTML(), sax.getCleanHTML());
+            return scanType == SAX ? sax : dom;
+        }
+    }
+}
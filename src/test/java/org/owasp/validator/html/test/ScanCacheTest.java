@@ -0,0 +1,121 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanCache;
+import org.owasp.validator.html.util.TinyLfuCache;
+
+public class ScanCacheTest {
+
+    private TestPolicy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    @Test
+    public void fingerprint() throws Exception {
+        TestPolicy reloaded = TestPolicy.getInstance(getClass().getResource("/antisamy.xml"));
+        assertEquals(policy.getFingerprint(), reloaded.getFingerprint());
+        assertFalse(policy.getFingerprint().equals(
+                policy.cloneWithDirective(Policy.USE_XHTML, "false").getFingerprint()));
+        assertFalse(policy.getFingerprint().equals(
+                TestPolicy.getInstance(getClass().getResource("/antisamy-slashdot.xml")).getFingerprint()));
+    }
+
+    @Test
+    public void repeatsAreServedFromCache() throws Exception {
+        AntiSamy as = new AntiSamy();
+        as.setCache(new ScanCache(100));
+        String input = "<b>sig</b><script>alert(1)</script>";
+
+        CleanResults first = as.scan(input, policy);
+        CleanResults second = as.scan(input, policy);
+
+        assertEquals(first.getCleanHTML(), second.getCleanHTML());
+        assertEquals(first.getErrorMessages(), second.getErrorMessages());
+        assertNotNull(first.getCleanXMLDocumentFragment());
+        assertNull(second.getCleanXMLDocumentFragment());
+        assertEquals(1, as.getCache().getHitCount());
+        assertEquals(1, as.getCache().getMissCount());
+
+        second.getErrorMessages().clear();
+        assertEquals(first.getErrorMessages(), as.scan(input, policy).getErrorMessages());
+    }
+
+    @Test
+    public void keyedByPolicyAndEngine() throws Exception {
+        AntiSamy as = new AntiSamy();
+        as.setCache(new ScanCache(100));
+        String input = "<br>";
+        Policy html = policy.cloneWithDirective(Policy.USE_XHTML, "false");
+
+        assertEquals(new AntiSamy().scan(input, policy).getCleanHTML(), as.scan(input, policy).getCleanHTML());
+        assertEquals(new AntiSamy().scan(input, html).getCleanHTML(), as.scan(input, html).getCleanHTML());
+        as.scan(input, policy, AntiSamy.SAX);
+        assertEquals(0, as.getCache().getHitCount());
+        assertEquals(3, as.getCache().size());
+    }
+
+    @Test
+    public void longInputsBypassCache() throws Exception {
+        ScanCache cache = new ScanCache(100, 10);
+        cache.scan("<b>a long enough input</b>", policy, AntiSamy.DOM);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void boundedWithEvictions() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(50);
+        for (int i = 0; i < 1000; i++) {
+            if (cache.get(i) == null) {
+                cache.put(i, "v" + i);
+            }
+            assertTrue(cache.size() <= 50);
+        }
+        assertEquals(950, cache.getEvictionCount());
+    }
+
+    @Test
+    public void frequentKeysSurviveScans() {
+        TinyLfuCache<Integer, String> cache = new TinyLfuCache<Integer, String>(100);
+        for (int round = 0; round < 5; round++) {
+            for (int hot = 0; hot < 20; hot++) {
+                if (cache.get(hot) == null) {
+                    cache.put(hot, "hot" + hot);
+                }
+            }
+        }
+        for (int cold = 1000; cold < 11000; cold++) {
+            if (cache.get(cold) == null) {
+                cache.put(cold, "cold" + cold);
+            }
+            if (cold % 500 == 0) {
+                for (int hot = 0; hot < 20; hot++) {
+                    cache.get(hot);
+                }
+            }
+        }
+        int survivors = 0;
+        for (int hot = 0; hot < 20; hot++) {
+            if (cache.get(hot) != null) {
+                survivors++;
+            }
+        }
+        assertEquals(20, survivors);
+    }
+}
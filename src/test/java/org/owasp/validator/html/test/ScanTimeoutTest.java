@@ -0,0 +1,126 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.Locale;
+import java.util.MissingResourceException;
+import java.util.ResourceBundle;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.css.CssScanner;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.InternalPolicy;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.ScanTimeoutException;
+import org.owasp.validator.html.util.ErrorMessageUtil;
+import org.owasp.validator.html.util.HTMLEntityEncoder;
+
+public class ScanTimeoutTest {
+
+    private TestPolicy policy = null;
+    private String slowInput;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append("<p><b>").append(i).append("</b><i style=\"color: red\">x</i><script>y</script></p>");
+        }
+        slowInput = sb.toString();
+    }
+
+    @Test
+    public void policyBudgetAbortsBothEngines() throws Exception {
+        Policy limited = policy.cloneWithDirective(Policy.MAX_SCAN_TIME, "1")
+                .cloneWithDirective("maxInputSize", "100000000");
+        for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+            try {
+                new AntiSamy().scan(slowInput, limited, scanType);
+                fail("Expected the scan to time out");
+            } catch (ScanTimeoutException expected) {
+                assertEquals(1, expected.getMaxScanTime());
+            }
+        }
+    }
+
+    @Test
+    public void perCallBudgetOverridesPolicy() throws Exception {
+        Policy unlimited = policy.cloneWithDirective("maxInputSize", "100000000");
+        try {
+            new AntiSamy().scan(slowInput, unlimited, AntiSamy.DOM, 1);
+            fail("Expected the scan to time out");
+        } catch (ScanTimeoutException expected) {
+        }
+
+        CleanResults results = new AntiSamy().scan("<b>x</b><script>y</script>", unlimited, AntiSamy.DOM, 60000);
+        assertFalse(results.isTimedOut());
+        assertEquals("<b>x</b>", results.getCleanHTML());
+    }
+
+    @Test
+    public void degradedOutput() throws Exception {
+        Policy encode = policy.cloneWithDirective(Policy.MAX_SCAN_TIME, "1")
+                .cloneWithDirective(Policy.ON_SCAN_TIMEOUT, "encode")
+                .cloneWithDirective("maxInputSize", "100000000");
+        Policy empty = encode.cloneWithDirective(Policy.ON_SCAN_TIMEOUT, "empty");
+        ResourceBundle messages;
+        try {
+            messages = ResourceBundle.getBundle("AntiSamy", Locale.getDefault());
+        } catch (MissingResourceException e) {
+            messages = ResourceBundle.getBundle("AntiSamy", Locale.US);
+        }
+        String timedOut = ErrorMessageUtil.getMessage(messages, ErrorMessageUtil.ERROR_SCAN_TIMEOUT, new Object[]{1L});
+
+        for (int scanType : new int[]{AntiSamy.DOM, AntiSamy.SAX}) {
+            CleanResults encoded = new AntiSamy().scan(slowInput, encode, scanType);
+            assertTrue(encoded.isTimedOut());
+            assertEquals(HTMLEntityEncoder.htmlEntityEncode(slowInput), encoded.getCleanHTML());
+            assertTrue(encoded.getErrorMessages().contains(timedOut));
+
+            CleanResults emptied = new AntiSamy().scan(slowInput, empty, scanType);
+            assertTrue(emptied.isTimedOut());
+            assertEquals("", emptied.getCleanHTML());
+        }
+    }
+
+    @Test
+    public void streamingScanThrows() throws Exception {
+        Policy limited = policy.cloneWithDirective(Policy.MAX_SCAN_TIME, "1")
+                .cloneWithDirective(Policy.ON_SCAN_TIMEOUT, "encode")
+                .cloneWithDirective("maxInputSize", "100000000");
+        try {
+            new AntiSamy().scan(new StringReader(slowInput), new StringWriter(), limited);
+            fail("Expected the scan to time out");
+        } catch (ScanTimeoutException expected) {
+        }
+    }
+
+    @Test
+    public void cssScanChecksDeadline() throws Exception {
+        ResourceBundle messages = ResourceBundle.getBundle("AntiSamy", Locale.US);
+        CssScanner scanner = new CssScanner((InternalPolicy) policy, messages);
+        scanner.setDeadline(System.currentTimeMillis() - 1, 5);
+        try {
+            scanner.scanStyleSheet("p { color: red; }", 1000);
+            fail("Expected the scan to time out");
+        } catch (ScanTimeoutException expected) {
+            assertEquals(5, expected.getMaxScanTime());
+        }
+        try {
+            scanner.scanInlineStyle("color: red", "p", 1000);
+            fail("Expected the scan to time out");
+        } catch (ScanTimeoutException expected) {
+        }
+    }
+}
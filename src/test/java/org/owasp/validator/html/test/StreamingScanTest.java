@@ -0,0 +1,245 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+import org.owasp.validator.html.Sanitizer;
+import org.owasp.validator.html.SanitizerSession;
+import org.owasp.validator.html.ScanException;
+
+public class StreamingScanTest {
+
+    private TestPolicy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url);
+    }
+
+    @Test
+    public void streamMatchesStringScan() throws Exception {
+        List<String> inputs = Arrays.asList(
+                "<b>bold</b>",
+                "",
+                "plain text & more",
+                "<p>para</p>\n",
+                "<p>para</p>\r\n",
+                "<div>\n<script>alert(1)</script>\n<p>x</p>\n</div>",
+                "<a href=\"http://www.owasp.org\" onclick=\"x()\">link</a>",
+                "<style>p { color: red; }</style><p style=\"color: blue\">x</p>",
+                "<table><tr><td>cell</td></tr></table>\n\n");
+
+        AntiSamy as = new AntiSamy();
+        for (String input : inputs) {
+            CleanResults expected = as.scan(input, policy, AntiSamy.SAX);
+            StringWriter out = new StringWriter();
+            CleanResults actual = as.scan(new StringReader(input), out, policy);
+
+            assertEquals(expected.getCleanHTML(), out.toString());
+            assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+            assertNull(actual.getCleanHTML());
+        }
+    }
+
+    @Test
+    public void largeInput() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append("<p>paragraph ").append(i).append("<script>x()</script></p>\n");
+        }
+        String input = sb.toString();
+        TestPolicy big = policy.cloneWithDirective("maxInputSize", String.valueOf(input.length()));
+
+        StringWriter out = new StringWriter();
+        CleanResults results = new AntiSamy().scan(new StringReader(input), out, big);
+
+        assertEquals(new AntiSamy().scan(input, big, AntiSamy.SAX).getCleanHTML(), out.toString());
+        assertEquals(20000, results.getNumberOfErrors());
+    }
+
+    @Test
+    public void inputSizeLimitEnforcedWhileReading() throws Exception {
+        TestPolicy small = policy.cloneWithDirective("maxInputSize", "100");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            sb.append("<b>x</b>");
+        }
+        try {
+            new AntiSamy().scan(new StringReader(sb.toString()), new StringWriter(), small);
+            fail("Expected the input to be rejected");
+        } catch (ScanException expected) {
+        }
+    }
+
+    @Test
+    public void domEngineFallsBackToBuffering() throws Exception {
+        String input = "<div><script>alert(1)</script><p>x</p></div>";
+        StringWriter out = new StringWriter();
+        CleanResults results = new Sanitizer(policy, AntiSamy.DOM).sanitize(new StringReader(input), out);
+
+        assertEquals(new AntiSamy().scan(input, policy, AntiSamy.DOM).getCleanHTML(), out.toString());
+        assertEquals(out.toString(), results.getCleanHTML());
+    }
+
+    @Test
+    public void sessionMatchesStringScan() throws Exception {
+        String input = "<div>\n<p align=\"center\">para <b>bold</b></p><script>alert(1)</script>"
+                + "<a href=\"http://www.owasp.org\" onclick=\"x()\">link</a>\n"
+                + "<style>p { color: red; }</style><!-- comment --><table><tr><td>cell</td></tr></table></div>\n";
+        CleanResults expected = new AntiSamy().scan(input, policy, AntiSamy.SAX);
+
+        char[] chars = input.toCharArray();
+        for (int chunk : new int[]{1, 3, 16, chars.length}) {
+            StringWriter out = new StringWriter();
+            SanitizerSession session = new AntiSamy().open(out, policy);
+            for (int off = 0; off < chars.length; off += chunk) {
+                session.feed(chars, off, Math.min(chunk, chars.length - off));
+            }
+            CleanResults actual = session.close();
+
+            assertEquals(expected.getCleanHTML(), out.toString());
+            assertEquals(expected.getErrorMessages(), actual.getErrorMessages());
+        }
+    }
+
+    @Test
+    public void sessionWritesAsChunksArrive() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            sb.append("<p>paragraph ").append(i).append("</p>\n");
+        }
+        char[] chars = sb.toString().toCharArray();
+        TestPolicy big = policy.cloneWithDirective("maxInputSize", String.valueOf(2 * chars.length));
+
+        StringWriter out = new StringWriter();
+        SanitizerSession session = new Sanitizer(big, AntiSamy.SAX).open(out);
+        session.feed(chars, 0, chars.length);
+        int before = out.getBuffer().length();
+        session.feed(chars, 0, chars.length);
+        session.close();
+
+        assertTrue(before > 0);
+        assertTrue(out.getBuffer().length() > before);
+    }
+
+    @Test
+    public void sessionEnforcesInputSizeLimit() throws Exception {
+        TestPolicy small = policy.cloneWithDirective("maxInputSize", "100");
+        char[] chars = "<b>x</b><b>x</b><b>x</b><b>x</b><b>x</b>".toCharArray();
+        SanitizerSession session = new Sanitizer(small, AntiSamy.SAX).open(new StringWriter());
+        try {
+            for (int i = 0; i < 10; i++) {
+                session.feed(chars, 0, chars.length);
+            }
+            session.close();
+            fail("Expected the input to be rejected");
+        } catch (ScanException expected) {
+        }
+    }
+
+    @Test
+    public void domSessionWritesOnClose() throws Exception {
+        String input = "<div><script>alert(1)</script><p>x</p></div>";
+        StringWriter out = new StringWriter();
+        SanitizerSession session = new Sanitizer(policy, AntiSamy.DOM).open(out);
+        session.feed(input.toCharArray(), 0, input.length());
+        assertEquals("", out.toString());
+        CleanResults results = session.close();
+
+        assertEquals(new AntiSamy().scan(input, policy, AntiSamy.DOM).getCleanHTML(), out.toString());
+        assertEquals(out.toString(), results.getCleanHTML());
+    }
+
+    @Test
+    public void abortedSessionWritesNothingAndFreesItsWorker() throws Exception {
+        String input = "<div><script>alert(1)</script><p>x</p>";
+        StringWriter out = new StringWriter();
+        SanitizerSession session = new Sanitizer(policy, AntiSamy.DOM).open(out);
+        session.feed(input.toCharArray(), 0, input.length());
+        assertEquals(1, scansWaitingForInput());
+        session.abort();
+
+        assertEquals(0, scansWaitingForInput());
+        assertEquals("", out.toString());
+        try {
+            session.feed(input.toCharArray(), 0, input.length());
+            fail("Expected the session to be over");
+        } catch (IllegalStateException expected) {
+        }
+        session.abort();
+    }
+
+    @Test
+    public void abandonedSessionFreesItsWorker() throws Exception {
+        TestPolicy impatient = policy.cloneWithDirective(Policy.MAX_SESSION_IDLE_TIME, "50");
+        String input = "<p>never <b>finished";
+        SanitizerSession session = new Sanitizer(impatient, AntiSamy.SAX).open(new StringWriter());
+        session.feed(input.toCharArray(), 0, input.length());
+        assertEquals(1, scansWaitingForInput());
+
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (scansWaitingForInput() > 0 && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, scansWaitingForInput());
+        try {
+            session.close();
+            fail("Expected the idle scan to have failed");
+        } catch (ScanException expected) {
+        }
+    }
+
+    @Test
+    public void sessionsBeyondTheLimitAreTurnedAway() throws Exception {
+        Sanitizer sanitizer = new Sanitizer(policy.cloneWithDirective(Policy.MAX_SESSIONS, "1"), AntiSamy.SAX);
+        String input = "<p>one</p>";
+        SanitizerSession first = sanitizer.open(new StringWriter());
+        first.feed(input.toCharArray(), 0, input.length());
+        try {
+            sanitizer.open(new StringWriter());
+            fail("Expected the second session to be turned away");
+        } catch (ScanException expected) {
+        }
+        first.close();
+
+        StringWriter out = new StringWriter();
+        SanitizerSession second = sanitizer.open(out);
+        second.feed(input.toCharArray(), 0, input.length());
+        second.close();
+        assertEquals(input, out.toString());
+    }
+
+    /**
+     * @return How many session workers are blocked waiting for a chunk.
+     */
+    private static int scansWaitingForInput() {
+        int waiting = 0;
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            if (!entry.getKey().getName().startsWith("antisamy-session-")) {
+                continue;
+            }
+            for (StackTraceElement frame : entry.getValue()) {
+                if (frame.getClassName().endsWith("SanitizerSession$Chunks") && "read".equals(frame.getMethodName())) {
+                    waiting++;
+                    break;
+                }
+            }
+        }
+        return waiting;
+    }
+}
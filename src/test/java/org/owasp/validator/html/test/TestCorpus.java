@@ -0,0 +1,99 @@
+package org.owasp.validator.html.test;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Inputs shared by the tests that hold two ways of scanning to the same
+ * output: the bundled policies, the sample pages and a set of short
+ * samples that between them reach every tag and attribute action.
+ */
+final class TestCorpus {
+
+    static final String[] POLICIES = {"antisamy.xml", "antisamy-anythinggoes.xml", "antisamy-ebay.xml",
+            "antisamy-myspace.xml", "antisamy-slashdot.xml", "antisamy-tinymce.xml"};
+
+    static final String[] PAGES = {"slashdot.org.htm", "fark.com", "cnn.com", "google.com.html",
+            "microsoft.com", "deadspin.com"};
+
+    static final String[] SAMPLES = {
+            "John O Smith",
+            "<p>Great post, <b>thanks</b>! See <a href=\"http://www.owasp.org/\" onclick=\"steal()\">this</a>"
+                    + " and <i style=\"color: red; behavior: url(x.htc)\">that</i>.</p>",
+            "<div><p>one</p><p>two <em>three</em> four</p><ul><li>five</li><li>six &amp; seven</li></ul></div>",
+            "<foo>unknown <bar>tags</bar></foo><script>alert(1)</script>",
+            "<p><script>alert(1)</script></p><div><span><script>x</script></span></div>text",
+            "<p><script></script><!-- left empty by a comment --></p><b><script></script>kept</b>",
+            "<div><foo><script>x</script></foo></div><div><foo></foo></div>",
+            "<style type=\"text/css\">P {\n\tmargin-bottom: 0.08in;\n}\n</style>",
+            "<style type=\"text/css\">a { color: red } /* ]]> */</style><p>after</p>",
+            "<style>behavior: url(x.htc); @import url(http://evil.com/x.css);</style>",
+            "<p style=\"color: red; font-weight: bold\" align=\"center\">styled</p>",
+            "<p style=\"\">empty style</p><p style=\"-moz-binding: url(x)\">binding</p>",
+            "text <!-- a comment --> more <p>in <!-- another --> a paragraph</p><!-- trailing -->",
+            "<!--[if IE]><p>conditional</p><![endif]--><p>after</p>",
+            "<img src=\"javascript:alert(1)\"><img src=\"http://www.owasp.org/logo.png\" onerror=\"x()\">",
+            "<a href=\"http://www.owasp.org/\" rel=\"me\">rel</a><a href=\"javascript:x()\">js</a><a>none</a>",
+            "<object width=\"560\" height=\"340\"><param name=\"movie\" value=\"http://www.youtube.com/v/Iy\"></param>"
+                    + "<param name=\"allowFullScreen\" value=\"true\"></param>"
+                    + "<param name=\"movie\" value=\"http://evil.com/bad.swf\"></param>"
+                    + "<embed src=\"http://www.youtube.com/v/Iy\" type=\"application/x-shockwave-flash\"></embed></object>",
+            "<svg><![CDATA[ some <cdata> ]]></svg><p><![CDATA[in a paragraph]]></p>",
+            "<table><tr><td>a</td><td><b>b</b></td></tr><tr><th>c</th></tr></table>",
+            "<p align=\"center\">ok</p><p align=\"diagonal\">bad <b>bold</b></p>",
+            "<div align=\"center\">ok</div><div align=\"diagonal\" class=\"x\">bad <i>italic</i></div><div align=\"x\"></div>",
+            "<b id=\"x\" class=\"y\">truncated <i>not</i> text <!-- nor --> this</b>",
+            "<u title=\"x\">encoded <i>children</i></u><u></u>",
+            "<ul><li><ul><li><script>x</script></li></ul></li></ul><p>after</p>",
+            "<br><hr><iframe></iframe><textarea></textarea><a></a><span></span>",
+            "<div>   </div><p>\n</p><span> </span>",
+            "<p title=\"b\" align=\"center\" dir=\"ltr\" lang=\"en\">sorted</p><p align=\"left\" align=\"right\">twice</p>",
+            "  leading and trailing blanks  ",
+            "line\nbreaks\r\nand\ttabs\n",
+            "<p>" + "a fairly long paragraph that has to be wrapped once the output gets formatted, "
+                    + "because it goes well beyond the eighty characters of a line</p>",
+            "<pre>  keep   this\n    as it is  </pre><textarea>  and\n this </textarea>",
+            "<br><hr><img src=\"http://www.owasp.org/logo.png\" alt=\"a &quot;logo&quot;\"><iframe></iframe>"
+                    + "<textarea></textarea><a></a><span></span>",
+            "<input type=\"checkbox\" checked=\"checked\" name=\"x\" value=\"it's &lt;here&gt;\">",
+            "<a href=\"http://www.owasp.org/?a=1&amp;b=&quot;2&quot;\" title=\"&lt;&gt;&amp;'\">link</a>",
+            "caf\u00E9 na\u00EFve \u00FCber \u00A9 \u2122 \u00F7 \u20AC \uD83D\uDE00 &eacute; &nbsp; &#169;",
+            "control\u0007 and\u000c feed",
+            "<p title=\"caf\u00E9 \u00F7 \u00A0\">caf\u00E9 \u00F7 \u00A0</p>",
+            "<!-- first --><p>after a comment</p>",
+            "<font color=\"red\" size=\"2\">font</font><center>centered</center><u>under</u>",
+            "<dl><dt>term</dt><dd>definition</dd></dl><ol><li><ol><li>nested</li></ol></li></ol>",
+            "<p><b><i><u><span>deep <b>deeper <i>deepest</i></b></span></u></i></b></p>",
+            "<blockquote cite=\"http://www.owasp.org/\">quoted\n\n  text</blockquote>",
+            "<a href=\"http://www.owasp.org/\">a</a><a href=\"http://www.owasp.org/\">b</a><td>c</td>",
+    };
+
+    private TestCorpus() {
+    }
+
+    /**
+     * @return One of the {@link #PAGES}.
+     */
+    static String page(String name) throws Exception {
+        return read("/s/" + name);
+    }
+
+    /**
+     * @return The UTF-8 test resource at <code>path</code>.
+     */
+    static String read(String path) throws Exception {
+        InputStream in = TestCorpus.class.getResourceAsStream(path);
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[8192];
+            for (int n; (n = reader.read(buffer)) != -1;) {
+                sb.append(buffer, 0, n);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.owasp.validator.html.test;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URL;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.owasp.validator.html.AntiSamy;
+import org.owasp.validator.html.CleanResults;
+import org.owasp.validator.html.Policy;
+
+/**
+ * Siblings that are removed, or that are replaced by their children, must
+ * neither hide the sibling after them nor get their children validated
+ * twice.
+ */
+public class WideDocumentTest {
+
+    private static final int WIDTH = 10000;
+
+    private Policy policy = null;
+
+    @Before
+    public void setUp() throws Exception {
+        URL url = getClass().getResource("/antisamy.xml");
+        policy = TestPolicy.getInstance(url).cloneWithDirective("maxInputSize", "1000000")
+                .cloneWithDirective(Policy.FORMAT_OUTPUT, "false");
+    }
+
+    @Test
+    public void keptSiblings() throws Exception {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < WIDTH; i++) {
+            html.append("<span>").append(i).append("</span>");
+        }
+        CleanResults cr = new AntiSamy().scan(html.toString(), policy, AntiSamy.DOM);
+        assertEquals(0, cr.getNumberOfErrors());
+        assertEquals(html.toString(), cr.getCleanHTML());
+    }
+
+    @Test
+    public void promotedSiblings() throws Exception {
+        StringBuilder html = new StringBuilder("<foo>");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < WIDTH; i++) {
+            html.append("<bar><span>").append(i).append("</span></bar>");
+            expected.append("<span>").append(i).append("</span>");
+        }
+        html.append("</foo>");
+        CleanResults cr = new AntiSamy().scan(html.toString(), policy, AntiSamy.DOM);
+        assertEquals(WIDTH + 1, cr.getNumberOfErrors());
+        assertEquals(expected.toString(), cr.getCleanHTML());
+    }
+
+    @Test
+    public void removedSiblings() throws Exception {
+        StringBuilder html = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < WIDTH; i++) {
+            if (i % 2 == 0) {
+                html.append("<script>").append(i).append("</script>");
+            } else {
+                html.append("<span>").append(i).append("</span>");
+                expected.append("<span>").append(i).append("</span>");
+            }
+        }
+        CleanResults cr = new AntiSamy().scan(html.toString(), policy, AntiSamy.DOM);
+        assertEquals(WIDTH / 2, cr.getNumberOfErrors());
+        assertEquals(expected.toString(), cr.getCleanHTML());
+    }
+}